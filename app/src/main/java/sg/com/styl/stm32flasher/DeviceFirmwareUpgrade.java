@@ -3,69 +3,96 @@ package sg.com.styl.stm32flasher;
 import android.Manifest;
 import android.app.Activity;
 import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.nfc.FormatException;
-import android.os.AsyncTask;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.support.v4.app.ActivityCompat;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DeviceFirmwareUpgrade {
 
     private static final String TAG = "DFU: ";
     private int deviceVid;
     private int devicePid;
-    private DfuFile dfuFile = null;
+    private DfuFile selectedFile = null;    // jobs open their own copy, see Firmware
     private Context context;
 
     private OnFirmwareUpgrade onFirmwareUpgrade;
 
-    private STM32F042UsbManager usb;
-    private int deviceVersion;  //STM bootloader version
+    private volatile DfuTransport usb;
+    private DfuProtocol dfu;
+    private volatile int deviceVersion;  //STM bootloader version
+    private boolean deltaMode;  // only rewrite pages that differ from the image
+    private boolean verify;     // read the image back after programming
+    private int binaryAddress = mInternalFlashStartAddress;    // where a raw .bin is placed
 
     private static final int READ_STORAGE_PERMISSION_REQUEST_CODE = 0x03;
 
-    private final static int USB_DIR_OUT = 0;
-    private final static int USB_DIR_IN = 128;       //0x80
-    private final static int DFU_RequestType = 0x21;  // '2' => Class request ; '1' => to interface
-
-    private final static int STATE_IDLE = 0x00;
-    private final static int STATE_DETACH = 0x01;
-    private final static int STATE_DFU_IDLE = 0x02;
-    private final static int STATE_DFU_DOWNLOAD_SYNC = 0x03;
-    private final static int STATE_DFU_DOWNLOAD_BUSY = 0x04;
-    private final static int STATE_DFU_DOWNLOAD_IDLE = 0x05;
-    private final static int STATE_DFU_MANIFEST_SYNC = 0x06;
-    private final static int STATE_DFU_MANIFEST = 0x07;
-    private final static int STATE_DFU_MANIFEST_WAIT_RESET = 0x08;
-    private final static int STATE_DFU_UPLOAD_IDLE = 0x09;
-    private final static int STATE_DFU_ERROR = 0x0A;
-    private final static int STATE_DFU_UPLOAD_SYNC = 0x91;
-    private final static int STATE_DFU_UPLOAD_BUSY = 0x92;
-
-    // DFU Commands, request ID code when using controlTransfers
-    private final static int DFU_DETACH = 0x00;
-    private final static int DFU_DNLOAD = 0x01;
-    private final static int DFU_UPLOAD = 0x02;
-    private final static int DFU_GETSTATUS = 0x03;
-    private final static int DFU_CLRSTATUS = 0x04;
-    private final static int DFU_GETSTATE = 0x05;
-    private final static int DFU_ABORT = 0x06;
-
-    public final static int ELEMENT1_OFFSET = 293;  // constant offset in file array where image data starts
-    public final static int TARGET_NAME_START = 22;
-    public final static int TARGET_NAME_MAX_END = 276;
-    public final static int TARGET_SIZE = 277;
-    public final static int TARGET_NUM_ELEMENTS = 281;
+    private static final String SINGLE_DEVICE = "single";
+    private static final int MAX_PENDING_LOG_LINES = 1000;
+    private static final String JOURNAL_DIRECTORY = "journal";
+    private static final String MANIFEST_DIRECTORY = "manifest";
+    private static final long DEFAULT_DFU_ENTRY_TIMEOUT_MS = 5000;
+    private static final String GANG = "gang";      // coordinates the gang sessions, no transport of its own
+
+    // one I/O thread per device; shared like the cache so it outlives the activity
+    private static final FlashJobScheduler scheduler = new FlashJobScheduler();
+    private volatile Future<?> currentJob;
+    private final AttachLatch attachLatch = new AttachLatch();
+    private volatile long dfuEntryTimeoutMillis = DEFAULT_DFU_ENTRY_TIMEOUT_MS;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final FlashEventChannel events = new FlashEventChannel(new FlashEventChannel.Dispatcher() {
+        @Override
+        public void dispatch(Runnable drain, long delayMillis) {
+            mainHandler.postDelayed(drain, delayMillis);
+        }
+    }, new FlashEventChannel.Listener() {
+        @Override
+        public void onLog(List<String> lines) {
+            StringBuilder text = new StringBuilder(lines.get(0));
+            for (int i = 1; i < lines.size(); i++) {
+                text.append('\n').append(lines.get(i));
+            }
+            onFirmwareUpgrade.onFirmwareUpgradeLog(text.toString());
+        }
+
+        @Override
+        public void onProgress(int value) {
+            onFirmwareUpgrade.onUpdateProgressBar(value);
+        }
+    }, MAX_PENDING_LOG_LINES);
+
+    private boolean sectorErase;
+
+    // parsed images, shared so they survive the activity being recreated
+    private static final FirmwareCache firmwareCache = new FirmwareCache(16 << 20);
 
 
     // Device specific parameters
@@ -87,20 +114,49 @@ public class DeviceFirmwareUpgrade {
         this.onFirmwareUpgrade = onFirmwareUpgrade;
     }
 
-    public void setUsb(STM32F042UsbManager usb) {
+    // called once the DFU interface is claimed, and with null when it is gone
+    public void setUsb(DfuTransport usb) {
         this.usb = usb;
+        this.dfu = (usb != null) ? new DfuProtocol(usb) : null;
+        if (usb != null && usb.isConnected()) {     // a job waiting for the device needs it opened
+            attachLatch.signal();
+        }
+    }
+
+    // how long a job waits for the device to enumerate in DFU mode after the reset
+    public void setDfuEntryTimeout(long dfuEntryTimeoutMillis) {
+        this.dfuEntryTimeoutMillis = dfuEntryTimeoutMillis;
     }
 
     public int getDeviceVersion() {
         return deviceVersion;
     }
 
+    public void setDeltaMode(boolean deltaMode) {
+        this.deltaMode = deltaMode;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    // erase the sectors the image covers before writing, instead of needing a mass erase first
+    public void setSectorErase(boolean sectorErase) {
+        this.sectorErase = sectorErase;
+    }
+
+    // flash address for raw binaries, which carry no address of their own
+    public void setBinaryAddress(int binaryAddress) {
+        this.binaryAddress = binaryAddress;
+    }
+
     public DfuFile getDfuFile() {
-        return dfuFile;
+        return selectedFile;
     }
 
+    // only the path is used, each job reads the file into a DfuFile of its own
     public void setDfuFile(DfuFile dfuFile) {
-        this.dfuFile = dfuFile;
+        this.selectedFile = dfuFile;
     }
 
     public DeviceFirmwareUpgrade(Context context, int deviceVid, int devicePid) {
@@ -113,676 +169,806 @@ public class DeviceFirmwareUpgrade {
         this.deviceVid = deviceVid;
         this.devicePid = devicePid;
         this.context = context;
-        this.dfuFile = dfuFile;
+        this.selectedFile = dfuFile;
     }
-    private boolean isUsbConnected() {
-        if (usb != null && usb.isConnected()) {
+    private boolean isUsbConnected(DfuProtocol dfu) {
+        if (dfu != null && dfu.getTransport().isConnected()) {
             return true;
         }
         Log.d(TAG, "isUsbConnected: " + "No device connected");
         return false;
     }
 
-    private void clearStatus() throws Exception {
-        int length = usb.controlTransfer(DFU_RequestType, DFU_CLRSTATUS, 0, 0, null, 0, 0);
-        if (length < 0) {
-            throw new Exception("USB Failed during clearStatus");
-        }
-    }
-
-    private void getUsbStatus(DfuStatus status) throws Exception {
-        byte[] buffer = new byte[6];
-        int length, retry = 5;
-        do {
-            length = usb.controlTransfer(DFU_RequestType | USB_DIR_IN, DFU_GETSTATUS, 0, 0, buffer, 6, 500);
-        } while (length < 0 && retry-- > 0);
-        if (length < 0) {
-            throw new Exception("USB Failed during getUsbStatus");
-        }
-        status.bStatus = buffer[0]; // state during request
-        status.bState = buffer[4]; // state after request
-        status.bwPollTimeout = (buffer[3] & 0xFF) << 16;
-        status.bwPollTimeout |= (buffer[2] & 0xFF) << 8;
-        status.bwPollTimeout |= (buffer[1] & 0xFF);
-    }
-
-    // use for commands
-    private void download(byte[] data) throws Exception {
-        int len = usb.controlTransfer(DFU_RequestType, DFU_DNLOAD, 0, 0, data, data.length, 50);
-        if (len < 0) {
-            throw new Exception("USB Failed during command download");
-        }
-    }
-
-    // use for firmware download
-    private void download(byte[] data, int nBlock) throws Exception {
-        int len = usb.controlTransfer(DFU_RequestType, DFU_DNLOAD, nBlock, 0, data, data.length, 0);
-        if (len < 0) {
-            throw new Exception("USB failed during firmware download");
-        }
-    }
-
-    private void setAddressPointer(int Address) throws Exception {
-        byte[] buffer = new byte[5];
-        buffer[0] = 0x21;
-        buffer[1] = (byte) (Address & 0xFF);
-        buffer[2] = (byte) ((Address >> 8) & 0xFF);
-        buffer[3] = (byte) ((Address >> 16) & 0xFF);
-        buffer[4] = (byte) ((Address >> 24) & 0xFF);
-        download(buffer);
-    }
-
-    private boolean isDeviceProtected() throws Exception {
+    private boolean isDeviceProtected(DfuProtocol dfu) throws Exception {
 
         DfuStatus dfuStatus = new DfuStatus();
         boolean isProtected = false;
 
-        do {
-            clearStatus();
-            getUsbStatus(dfuStatus);
-        } while (dfuStatus.bState != STATE_DFU_IDLE);
+        dfu.clearToIdle(dfuStatus);
 
-        setAddressPointer(mInternalFlashStartAddress);
-        getUsbStatus(dfuStatus); // to execute
-        getUsbStatus(dfuStatus);   // to verify
+        dfu.setAddressPointer(mInternalFlashStartAddress);
+        dfu.getStatus(dfuStatus); // to execute
+        dfu.getStatus(dfuStatus);   // to verify
 
-        if (dfuStatus.bState == STATE_DFU_ERROR) {
+        if (dfuStatus.bState == DfuProtocol.STATE_DFU_ERROR) {
             isProtected = true;
         }
-        while (dfuStatus.bState != STATE_DFU_IDLE) {
-            clearStatus();
-            getUsbStatus(dfuStatus);
-        }
+        dfu.clearToIdle(dfuStatus);
         return isProtected;
     }
 
-    private void unProtectCommand() throws Exception {
-        byte[] buffer = new byte[1];
-        buffer[0] = (byte) 0x92;
-        download(buffer);
-    }
-
-    private void removeReadProtection() throws Exception {
+    private void removeReadProtection(DfuProtocol dfu) throws Exception {
         DfuStatus dfuStatus = new DfuStatus();
-        unProtectCommand();
-        getUsbStatus(dfuStatus);
-        if (dfuStatus.bState != STATE_DFU_DOWNLOAD_BUSY) {
+        dfu.unProtectCommand();
+        dfu.getStatus(dfuStatus);
+        if (dfuStatus.bState != DfuProtocol.STATE_DFU_DOWNLOAD_BUSY) {
             throw new Exception("Failed to execute unprotect command");
         }
-        usb.release();     // XXX device will self-reset
+        dfu.getTransport().release();     // XXX device will self-reset
         Log.i(TAG, "USB was released");
     }
 
-    private void massEraseCommand() throws Exception {
-        byte[] buffer = new byte[1];
-        buffer[0] = 0x41;
-        download(buffer);
-    }
-
-
-    public void massErase() {
-        AsyncTaskErase asyncTaskErase = new AsyncTaskErase();
-        asyncTaskErase.execute();
-
-    }
-
-//    public void massErase() {
-//
-//        onFirmwareUpgrade.onFirmwareUpgradeLog("---------------------------------------------");
-//        if (!isUsbConnected()){
-//            onFirmwareUpgrade.onFirmwareUpgradeLog("STM32F042C4 is not connected or not in DFU mode");
-//            return;
-//        }
-//        DfuStatus dfuStatus = new DfuStatus();
-//        long startTime = System.currentTimeMillis();  // note current time
-//
-//        try {
-//            onFirmwareUpgrade.onFirmwareUpgradeLog("Getting Status of STM32 devices....");
-//            do {
-//                clearStatus();
-//                getUsbStatus(dfuStatus);
-//            } while (dfuStatus.bState != STATE_DFU_IDLE);
-//            onFirmwareUpgrade.onFirmwareUpgradeLog("STM32 devices is idle");
-//            if (isDeviceProtected()) {
-//                removeReadProtection();
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("massErase: Read Protection removed. Device resets...Wait until it   re-enumerates ");
-//                return;
-//            }
-//            onFirmwareUpgrade.onFirmwareUpgradeLog("Sending mass erase command");
-//            massEraseCommand();                 // sent erase command request
-//            getUsbStatus(dfuStatus);                // initiate erase command, returns 'download busy' even if invalid address or ROP
-//            onFirmwareUpgrade.onFirmwareUpgradeLog("Getting Status of STM32 devices....");
-//            int pollingTime = dfuStatus.bwPollTimeout;  // note requested waiting time
-//            do {
-//                /* wait specified time before next getUsbStatus call */
-//                Thread.sleep(pollingTime);
-//                clearStatus();
-//                getUsbStatus(dfuStatus);
-//            } while (dfuStatus.bState != STATE_DFU_IDLE);
-//
-//           onFirmwareUpgrade.onFirmwareUpgradeLog("massErase: Mass erase completed in " + (System.currentTimeMillis() - startTime) + " ms");
-//        } catch (InterruptedException e) {
-//            e.printStackTrace();
-//        } catch (Exception e) {
-//            onFirmwareUpgrade.onFirmwareUpgradeLog("massErase: " + e.toString());
-//        }
-//    }
-
-    private void openFile() throws Exception {
-
-        File extDownload;
-        String myFilePath = null;
-        String myFileName = null;
-        FileInputStream fileInputStream;
-        File myFile;
-
-        if (dfuFile == null) {
-            if (Environment.getExternalStorageState() != null)  // todo not sure if this works
-            {
-                extDownload = new File(Environment.getExternalStorageDirectory() + "/Download");
-
-                if (extDownload.exists()) {
-                    String[] files = extDownload.list();
-                    // todo support multiple dfu files in dir
-                    if (files.length > 0) {   // will select first dfu file found in dir
-                        for (String file : files) {
-                            if (file.endsWith(".dfu")) {
-                                myFilePath = extDownload.toString();
-                                myFileName = file;
-                                break;
-                            }
-                        }
-                    }
+    // null when another job is still running
+    public Future<FlashJobScheduler.Result<Void>> massErase() {
+        final SessionMetrics metrics = new SessionMetrics();
+        return start(SINGLE_DEVICE, new MeteredTransport(attachedUsb, metrics), new FlashJobScheduler.Job<Void>() {
+            @Override
+            public Void run(DfuProtocol dfu) throws Exception {
+                try {
+                    eraseJob(dfu, metrics);
+                } finally {
+                    log(metrics.summary() + "\n  " + dfu.getRetryPolicy() + "\n  " + dfu.getPollScheduler());
                 }
+                return null;
             }
-            if (myFileName == null) throw new Exception("No .dfu file found in Download Folder");
-
-            myFile = new File(myFilePath + "/" + myFileName);
-
-            dfuFile.filePath = myFile.toString();
-            dfuFile.file = new byte[(int) myFile.length()];
-        } else {
-            myFile = new File(dfuFile.filePath);
-            dfuFile.file = new byte[(int) myFile.length()];
-        }
-        //convert file into byte array
-        fileInputStream = new FileInputStream(myFile);
-        fileInputStream.read(dfuFile.file);
-        fileInputStream.close();
+        });
     }
 
-    private void verifyFile() throws Exception {
-
-        // todo for now i expect the file to be not corrupted
-
-        int length = dfuFile.file.length;
-
-        int crcIndex = length - 4;
-        int crc = 0;
-        crc |= dfuFile.file[crcIndex++] & 0xFF;
-        crc |= (dfuFile.file[crcIndex++] & 0xFF) << 8;
-        crc |= (dfuFile.file[crcIndex++] & 0xFF) << 16;
-        crc |= (dfuFile.file[crcIndex] & 0xFF) << 24;
-        // do crc check
-        if (crc != CRC8Utils.calculateCRC(dfuFile.file)) {
-            throw new FormatException("CRC Failed");
-        }
-
-        // Check the prefix
-        String prefix = new String(dfuFile.file, 0, 5);
-        if (prefix.compareTo("DfuSe") != 0) {
-            throw new FormatException("File signature error");
-        }
-
-        // check dfuSe Version
-        if (dfuFile.file[5] != 1) {
-            throw new FormatException("DFU file version must be 1");
+    /*
+     * One job at a time, single device or gang: they share the reset line, the settings and the
+     * USB devices. Returns null and logs why when the previous job has not finished yet.
+     */
+    private synchronized <T> Future<FlashJobScheduler.Result<T>> start(String device, DfuTransport transport,
+                                                                     FlashJobScheduler.Job<T> job) {
+        if (isBusy()) {
+            log("Another job is still running, wait for it or cancel it first");
+            return null;
         }
+        Future<FlashJobScheduler.Result<T>> future = scheduler.submit(device, transport, job);
+        currentJob = future;
+        return future;
+    }
 
-        // Check the suffix
-        String suffix = new String(dfuFile.file, length - 8, 3);
-        if (suffix.compareTo("UFD") != 0) {
-            throw new FormatException("File suffix error");
-        }
-        if ((dfuFile.file[length - 5] != 16) || (dfuFile.file[length - 10] != 0x1A) || (dfuFile.file[length - 9] != 0x01)) {
-            throw new FormatException("File number error");
-        }
+    public boolean isBusy() {
+        Future<?> job = currentJob;
+        return job != null && !job.isDone();
+    }
 
-        // Now check the target prefix, we assume there is only one target in the file
-        String target = new String(dfuFile.file, 11, 6);
-        if (target.compareTo("Target") != 0) {
-            throw new FormatException("Target signature error");
+    // stops the running job at its next block, the device is left in dfuIDLE
+    public void cancel() {
+        Future<?> job = currentJob;
+        if (job != null) {
+            job.cancel(true);
         }
+    }
 
-        if (0 != dfuFile.file[TARGET_NAME_START]) {
-            String tempName = new String(dfuFile.file, TARGET_NAME_START, TARGET_NAME_MAX_END);
-            int foundNullAt = tempName.indexOf(0);
-            dfuFile.TargetName = tempName.substring(0, foundNullAt);
-        } else {
-            throw new FormatException("No Target Name Exist in File");
+    /*
+     * The firmware of one job, read from the path selected when the job was started. Each job has
+     * its own, so a job never sees the image or block size of another. An image parsed from the
+     * file reads from it until close().
+     */
+    private class Firmware {
+        final DfuFile dfuFile = new DfuFile();
+        String key;     // cache key, set by load()
+        private FileChannel channel;
+        private FirmwareReader reader;
+
+        Firmware(DfuFile selected) {
+            dfuFile.filePath = (selected != null) ? selected.filePath : null;
+        }
+
+        // parses the file unless the cache already holds it
+        void load() throws Exception {
+            open();
+            key = firmwareKey();
+            if (firmwareCache.load(key, dfuFile)) {
+                close();
+                Log.i(TAG, "Using cached firmware");
+            } else {
+                verifyFile();
+            }
         }
-        Log.i(TAG, "Firmware Target Name: " + dfuFile.TargetName);
 
-        dfuFile.TargetSize = dfuFile.file[TARGET_SIZE] & 0xFF;
-        dfuFile.TargetSize |= (dfuFile.file[TARGET_SIZE + 1] & 0xFF) << 8;
-        dfuFile.TargetSize |= (dfuFile.file[TARGET_SIZE + 2] & 0xFF) << 16;
-        dfuFile.TargetSize |= (dfuFile.file[TARGET_SIZE + 3] & 0xFF) << 24;
+        private void open() throws Exception {
 
-        Log.i(TAG, "Firmware Target Size: " + dfuFile.TargetSize);
+            File extDownload;
+            String myFilePath = null;
+            String myFileName = null;
 
-        dfuFile.NumElements = dfuFile.file[TARGET_NUM_ELEMENTS] & 0xFF;
-        dfuFile.NumElements |= (dfuFile.file[TARGET_NUM_ELEMENTS + 1] & 0xFF) << 8;
-        dfuFile.NumElements |= (dfuFile.file[TARGET_NUM_ELEMENTS + 2] & 0xFF) << 16;
-        dfuFile.NumElements |= (dfuFile.file[TARGET_NUM_ELEMENTS + 3] & 0xFF) << 24;
+            if (dfuFile.filePath == null) {
+                if (Environment.getExternalStorageState() != null)  // todo not sure if this works
+                {
+                    extDownload = new File(Environment.getExternalStorageDirectory() + "/Download");
 
-        Log.i(TAG, "Firmware Num of Elements: " + dfuFile.NumElements);
+                    if (extDownload.exists()) {
+                        String[] files = extDownload.list();
+                        // todo support multiple firmware files in dir
+                        if (files.length > 0) {   // will select first firmware file found in dir
+                            for (String file : files) {
+                                if (file.endsWith(".dfu") || file.endsWith(".hex") || file.endsWith(".elf") || file.endsWith(".bin")) {
+                                    myFilePath = extDownload.toString();
+                                    myFileName = file;
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+                if (myFileName == null) throw new Exception("No firmware file (.dfu, .hex, .elf, .bin) found in Download Folder");
 
-        if (dfuFile.NumElements > 1) {
-            throw new FormatException("Do not support multiple Elements inside Image");
-            /*  If you get this error, that means that the C-compiler IDE is treating the Reset Vector ISR
-                and the data ( your code) as two separate elements.
-                This problem has been observed with The Atollic TrueStudio V5.5.2
-                The version of Atollic that works with this is v5.3.0
-                The version of DfuSe FileManager is v3.0.3
-                Refer to ST document UM0391 for more details on DfuSe format
-             */
+                dfuFile.filePath = new File(myFilePath + "/" + myFileName).toString();
+            }
+            close();
+            channel = openChannel(dfuFile.filePath);
         }
 
-        // Get Element Flash start address and size
-        dfuFile.elementStartAddress = dfuFile.file[285] & 0xFF;
-        dfuFile.elementStartAddress |= (dfuFile.file[286] & 0xFF) << 8;
-        dfuFile.elementStartAddress |= (dfuFile.file[287] & 0xFF) << 16;
-        dfuFile.elementStartAddress |= (dfuFile.file[288] & 0xFF) << 24;
-
-        dfuFile.elementLength = dfuFile.file[289] & 0xFF;
-        dfuFile.elementLength |= (dfuFile.file[290] & 0xFF) << 8;
-        dfuFile.elementLength |= (dfuFile.file[291] & 0xFF) << 16;
-        dfuFile.elementLength |= (dfuFile.file[292] & 0xFF) << 24;
+        // files are identified by path, size and date, content:// uris by hashing what they return
+        private String firmwareKey() throws Exception {
+            Uri uri = Uri.parse(dfuFile.filePath);
+            if ("content".equalsIgnoreCase(uri.getScheme())) {
+                return FirmwareCache.contentKey(channel);
+            }
+            return FirmwareCache.fileKey(new File(uri.getScheme() == null ? dfuFile.filePath : uri.getPath()));
+        }
 
-        if (dfuFile.elementLength < 512) {
-            throw new FormatException("Element Size is too small");
+        private void verifyFile() throws Exception {
+            reader = FirmwareReaders.open(channel, binaryAddress);
+            reader.parse(dfuFile);
+            Log.i(TAG, "Firmware Target Name: " + dfuFile.TargetName);
+            Log.i(TAG, "Firmware Target Size: " + dfuFile.TargetSize);
+            Log.i(TAG, "Firmware Num of Elements: " + dfuFile.NumElements);
         }
 
-        // Get VID, PID and version number
-        dfuFile.VID = (dfuFile.file[length - 11] & 0xFF) << 8;
-        dfuFile.VID |= (dfuFile.file[length - 12] & 0xFF);
-        dfuFile.PID = (dfuFile.file[length - 13] & 0xFF) << 8;
-        dfuFile.PID |= (dfuFile.file[length - 14] & 0xFF);
-        dfuFile.BootVersion = (dfuFile.file[length - 15] & 0xFF) << 8;
-        dfuFile.BootVersion |= (dfuFile.file[length - 16] & 0xFF);
+        void close() {
+            try {
+                if (reader != null) {
+                    reader.close();     // closes the channel too
+                } else if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            reader = null;
+            channel = null;
+        }
     }
 
-    private int deviceSizeLimit() {   // retrieves and compares the Internal Flash Memory Size  and compares to constant string
+    // what checkCompatibility() found out about one device, kept by the job that checked it
+    private static class Target {
+        final MemoryLayout flashLayout;
+        final DfuFunctionalDescriptor functional;   // null if the device has none
+        final int blockSize;
 
-        int bmRequest = 0x80;       // IN, standard request to usb device
-        byte bRequest = (byte) 0x06; // USB_REQ_GET_DESCRIPTOR
-        byte wLength = (byte) 127;   // max string size
-        byte[] descriptor = new byte[wLength];
+        Target(MemoryLayout flashLayout, DfuFunctionalDescriptor functional, int blockSize) {
+            this.flashLayout = flashLayout;
+            this.functional = functional;
+            this.blockSize = blockSize;
+        }
+    }
 
-        /* This method can be used to retrieve any memory location size by incrementing the wValue in the defined range.
-            ie. Size of: Internal Flash,  Option Bytes, OTP Size, and Feature location
-         */
-        int wValue = 0x0304;        // possible strings range from 0x304-0x307
+    // content:// uris from the file picker go through the ContentResolver, anything else is a file path
+    private FileChannel openChannel(String path) throws IOException {
+        Uri uri = Uri.parse(path);
+        if (!"content".equalsIgnoreCase(uri.getScheme())) {
+            return new FileInputStream(uri.getScheme() == null ? path : uri.getPath()).getChannel();
+        }
+        ContentResolver resolver = context.getContentResolver();
+        ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new IOException("Cannot open " + path);
+        }
+        if (descriptor.getStatSize() >= 0) {
+            return new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+        }
+        // provider hands out a pipe, spool it to the cache so the file can be read at random
+        descriptor.close();
+        File spool = File.createTempFile("firmware", ".tmp", context.getCacheDir());
+        InputStream in = resolver.openInputStream(uri);
+        FileOutputStream out = new FileOutputStream(spool);
+        try {
+            out.getChannel().transferFrom(Channels.newChannel(in), 0, Long.MAX_VALUE);
+        } finally {
+            in.close();
+            out.close();
+        }
+        FileChannel channel = new FileInputStream(spool).getChannel();
+        spool.delete();     // stays readable until the channel is closed
+        return channel;
+    }
 
-        int len = usb.controlTransfer(bmRequest, bRequest, wValue, 0, descriptor, wLength, 500);
-        if (len < 0) {
-            return -1;
-        }
-        String decoded = new String(descriptor, Charset.forName("UTF-16LE"));
-        if (decoded.contains(mInternalFlashString)) {
-            return mInternalFlashSize; // size of stm32f405RG
-        } else {
-            return -1;
+    // descriptors parsed when the device was claimed, no transfers here
+    private static DfuCapabilities capabilitiesOf(DfuTransport usb) throws Exception {
+        DfuCapabilities capabilities = usb.getCapabilities();
+        if (capabilities == null) {
+            throw new Exception("Error: Could not read the device descriptors");
         }
-
+        return capabilities;
     }
 
-    private void checkCompatibility() throws Exception {
+    private Target checkCompatibility(DfuTransport usb, DfuFile dfuFile) throws Exception {
 
-        if ((devicePid != dfuFile.PID) || (deviceVid != dfuFile.VID)) {
+        // hex, elf and bin files do not name a device
+        if ((dfuFile.PID != FirmwareReader.ANY_ID && devicePid != dfuFile.PID)
+                || (dfuFile.VID != FirmwareReader.ANY_ID && deviceVid != dfuFile.VID)) {
             throw new FormatException("PID/VID Miss match");
         }
 
         deviceVersion = usb.getDeviceVersion();
 
         // give warning and continue on
-        if (deviceVersion != dfuFile.BootVersion) {
+        if (dfuFile.BootVersion != FirmwareReader.ANY_ID && deviceVersion != dfuFile.BootVersion) {
             Log.d(TAG, "checkCompatibility: Warning: Device BootVersion: " + Integer.toHexString(deviceVersion) +
                     "\tFile BootVersion: " + Integer.toHexString(dfuFile.BootVersion) + "\n");
         }
 
-        if (dfuFile.elementStartAddress != mInternalFlashStartAddress) { // todo: this will fail with images for other memory sections, other than Internal Flash
-            throw new FormatException("Firmware does not start at beginning of internal flash");
+        DfuCapabilities capabilities = capabilitiesOf(usb);
+        MemoryLayout flashLayout = capabilities.getLayout(0);       // alternate setting 0 is the internal flash
+        if (flashLayout == null) {
+            throw new Exception("Error: Could Not Retrieve Internal Flash String");
         }
+        Log.i(TAG, "checkCompatibility: " + capabilities);
 
-        if (deviceSizeLimit() < 0) {
-            throw new Exception("Error: Could Not Retrieve Internal Flash String");
+        for (ImageRegion region : dfuFile.image.getRegions()) { // todo: other memory sections than Internal Flash
+            if (flashLayout.sectorAt(region.getAddress()) == null) {
+                DfuCapabilities.Alternate alternate = capabilities.findAlternate(region.getAddress());
+                throw new FormatException("Element at 0x" + Integer.toHexString(region.getAddress()) + " is outside internal flash"
+                        + (alternate != null ? ", in " + alternate.getLayout().getName() + " (alt " + alternate.getAlternateSetting() + ")" : ""));
+            }
+            if (!flashLayout.canWrite(region)) {
+                throw new FormatException("Firmware image too large for target");
+            }
         }
 
-        if ((dfuFile.elementStartAddress + dfuFile.elementLength) >=
-                (mInternalFlashStartAddress + mInternalFlashSize)) {
-            throw new FormatException("Firmware image too large for target");
+        Log.i(TAG, "Firmware ok and compatible");
+        return new Target(flashLayout, capabilities.getFunctional(), capabilities.getTransferSize());
+    }
+
+    // one journal per USB serial number, null when the device has none and cannot be told apart
+    private String journalKey(DfuTransport usb) throws Exception {
+        String serial = capabilitiesOf(usb).getSerial();
+        return (serial == null || serial.isEmpty()) ? null : serial;
+    }
+
+    // sector CRCs of what was last written to this device, null when it has no serial number
+    private FlashManifest openManifest(DfuTransport usb) throws Exception {
+        String serial = capabilitiesOf(usb).getSerial();
+        if (serial == null || serial.isEmpty()) {
+            return null;
         }
+        return FlashManifest.open(new File(context.getFilesDir(), MANIFEST_DIRECTORY), serial);
+    }
 
-        switch (deviceVersion) {
-            case 0x011A:
-            case 0x0200:
-                dfuFile.maxBlockSize = 1024;
-                break;
-            case 0x2100:
-            case 0x2200:
-                dfuFile.maxBlockSize = 2048;
-                break;
-            default:
-                throw new Exception("Error: Unsupported bootloader version");
+    // the flash was wiped: neither the manifest nor the journal of the device holds any more
+    private void forgetFlash(DfuTransport usb) throws Exception {
+        FlashManifest manifest = openManifest(usb);
+        if (manifest != null) {
+            manifest.delete();
         }
-        Log.i(TAG, "Firmware ok and compatible");
+        String journalKey = journalKey(usb);
+        if (journalKey != null) {
+            FlashJournal.delete(new File(context.getFilesDir(), JOURNAL_DIRECTORY), journalKey);
+        }
+    }
 
+    // checkCompatibility() once per kind of device, the result is kept with the cached image
+    private Target checkCompatibility(DfuTransport usb, Firmware firmware) throws Exception {
+        DfuCapabilities capabilities = capabilitiesOf(usb);
+        DfuFunctionalDescriptor functional = capabilities.getFunctional();
+        String deviceKey = Integer.toHexString(deviceVid) + ":" + Integer.toHexString(devicePid)
+                + ":" + Integer.toHexString(usb.getDeviceVersion())
+                + ":" + (functional != null ? functional.getTransferSize() : 0);
+        if (firmwareCache.isCompatible(firmware.key, deviceKey)) {
+            deviceVersion = usb.getDeviceVersion();
+            return new Target(capabilities.getLayout(0), functional, capabilities.getTransferSize());
+        }
+        Target target = checkCompatibility(usb, firmware.dfuFile);
+        firmwareCache.put(firmware.key, firmware.dfuFile, deviceKey);
+        return target;
     }
 
-    private void writeBlock(int address, byte[] block, int blockNumber) throws Exception {
+    // null when another job is still running
+    public Future<FlashJobScheduler.Result<Void>> program() {
+        final SessionMetrics metrics = new SessionMetrics();
+        final Firmware firmware = new Firmware(selectedFile);
+        return start(SINGLE_DEVICE, new MeteredTransport(attachedUsb, metrics), new FlashJobScheduler.Job<Void>() {
+            @Override
+            public Void run(DfuProtocol dfu) throws Exception {
+                try {
+                    programJob(dfu, metrics, firmware);
+                } finally {
+                    log(metrics.summary() + "\n  " + dfu.getRetryPolicy() + "\n  " + dfu.getPollScheduler());
+                }
+                return null;
+            }
+        });
+    }
 
-        DfuStatus dfuStatus = new DfuStatus();
+    // reads the memory behind an alternate setting (0 internal flash, 1 option bytes) into file,
+    // null when another job is still running
+    public Future<FlashJobScheduler.Result<Void>> dump(final File file, final int alternateSetting, final FlashDumper.Format format) {
+        final SessionMetrics metrics = new SessionMetrics();
+        return start(SINGLE_DEVICE, new MeteredTransport(attachedUsb, metrics), new FlashJobScheduler.Job<Void>() {
+            @Override
+            public Void run(DfuProtocol dfu) throws Exception {
+                try {
+                    dumpJob(dfu, metrics, file, alternateSetting, format);
+                } finally {
+                    log(metrics.summary() + "\n  " + dfu.getRetryPolicy() + "\n  " + dfu.getPollScheduler());
+                }
+                return null;
+            }
+        });
+    }
 
-        do {
-            clearStatus();
-            getUsbStatus(dfuStatus);
-        } while (dfuStatus.bState != STATE_DFU_IDLE);
-
-        if (0 == blockNumber) {
-            setAddressPointer(address);
-            getUsbStatus(dfuStatus);
-            getUsbStatus(dfuStatus);
-            if (dfuStatus.bState == STATE_DFU_ERROR) {
-                throw new Exception("Start address not supported");
+    // programs every device in parallel, devices are released when done. Null when another job is
+    // still running, the devices are left open then
+    public Future<FlashJobScheduler.Result<List<GangProgrammer.Result>>> programAll(final Map<String, DfuTransport> devices) {
+        final Firmware firmware = new Firmware(selectedFile);
+        return start(GANG, null, new FlashJobScheduler.Job<List<GangProgrammer.Result>>() {
+            @Override
+            public List<GangProgrammer.Result> run(DfuProtocol none) throws Exception {
+                try {
+                    return gangJob(devices, firmware);
+                } finally {
+                    for (DfuTransport device : devices.values()) {
+                        device.release();
+                    }
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onFirmwareUpgrade.onGangProgramFinished();
+                        }
+                    });
+                }
             }
-        }
+        });
+    }
 
-        do {
-            clearStatus();
-            getUsbStatus(dfuStatus);
-        } while (dfuStatus.bState != STATE_DFU_IDLE);
+    // called from job threads, coalesced to one UI update per frame
+    private void log(String text) {
+        events.log(text);
+    }
 
-        download(block, (blockNumber + 2));
-        getUsbStatus(dfuStatus);   // to execute
-        if (dfuStatus.bState != STATE_DFU_DOWNLOAD_BUSY) {
-            throw new Exception("error when downloading, was not busy ");
-        }
-        getUsbStatus(dfuStatus);   // to verify action
-        if (dfuStatus.bState == STATE_DFU_ERROR) {
-            throw new Exception("error when downloading, did not perform action");
-        }
+    private void progress(int value) {
+        events.progress(value);
+    }
 
-        while (dfuStatus.bState != STATE_DFU_IDLE) {
-            clearStatus();
-            getUsbStatus(dfuStatus);
+    // resets the target into the bootloader and waits until setUsb() hands over the new connection
+    private void enterDfuMode(SessionMetrics metrics) throws InterruptedException {
+        long start = System.nanoTime();
+        attachLatch.arm();
+        try {
+            ResetUtils.enterDfuMode();
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.endPhase(SessionMetrics.PHASE_RESET, start);
+            return;     // no reset line, use the device as it is
+        }
+        metrics.endPhase(SessionMetrics.PHASE_RESET, start);
+        start = System.nanoTime();
+        if (attachLatch.await(dfuEntryTimeoutMillis)) {
+            log("DFU device claimed after " + attachLatch.getLatencyMillis() + " ms");
+        } else {
+            log("DFU device did not enumerate within " + dfuEntryTimeoutMillis + " ms");
         }
+        metrics.endPhase(SessionMetrics.PHASE_ENUMERATION, start);
     }
 
-    private void writeImage() throws Exception {
-        int address = dfuFile.elementStartAddress;  // flash start address
-        int fileOffset = ELEMENT1_OFFSET;   // index offset of file
-        int blockSize = dfuFile.maxBlockSize;   // max block size
-        byte[] Block = new byte[blockSize];
-        int NumOfBlocks = dfuFile.elementLength / blockSize;
-        int blockNum;
-        for (blockNum = 0; blockNum < NumOfBlocks; blockNum++) {
-            System.arraycopy(dfuFile.file, (blockNum * blockSize) + fileOffset, Block, 0, blockSize);
+    /*
+     * Jobs are queued before the reset, when the DFU device may not be there yet, and it is a new
+     * connection after re-enumeration. This follows whatever setUsb() last handed over.
+     */
+    private final DfuTransport attachedUsb = new DfuTransport() {
+        @Override
+        public boolean isConnected() {
+            DfuTransport current = usb;
+            return current != null && current.isConnected();
+        }
 
-            writeBlock(address, Block, blockNum);
+        @Override
+        public int getDeviceVersion() {
+            DfuTransport current = usb;
+            return (current != null) ? current.getDeviceVersion() : 0;
         }
-        int remainder = dfuFile.elementLength - (blockNum * blockSize);
-        if (remainder > 0) {
-            System.arraycopy(dfuFile.file, (blockNum * blockSize) + fileOffset, Block, 0, remainder);
-            // Pad with 0xFF so our CRC matches the ST Bootloader and the ULink's CRC
-            while (remainder < Block.length) {
-                Block[remainder++] = (byte) 0xFF;
-            }
-            // send out the block to device
-            writeBlock(address, Block, blockNum);
+
+        @Override
+        public byte[] getRawDescriptors() {
+            DfuTransport current = usb;
+            return (current != null) ? current.getRawDescriptors() : null;
         }
-    }
 
-    public void program() {
-        AsyncTaskProgram asyncTaskProgram = new AsyncTaskProgram();
-        asyncTaskProgram.execute();
-    }
+        @Override
+        public DfuCapabilities getCapabilities() {
+            DfuTransport current = usb;
+            return (current != null) ? current.getCapabilities() : null;
+        }
 
-    private class AsyncTaskProgram extends AsyncTask<Void, Bundle, Void> {
+        @Override
+        public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+            DfuTransport current = usb;
+            return (current != null) ? current.controlTransfer(requestType, request, value, index, buffer, length, timeout) : -1;
+        }
 
         @Override
-        protected Void doInBackground(Void... voids) {
-            final String statusFlag = "status";
-            final String progressFlag = "progress";
-
-            Bundle bundle = new Bundle();
-            bundle.putString(statusFlag, "---------------------------------------------");
-            bundle.putInt(progressFlag, 0);
-            publishProgress(bundle);
-            try {
-                ResetUtils.enterDfuMode();
-                Thread.sleep(1000);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            bundle.putString(statusFlag, "Resetting Device to DFU Mode");
-            publishProgress(bundle);
-            if (!isUsbConnected()) {
-                bundle.putString(statusFlag, "STM32F042C4 is not connected or not in DFU mode");
-                publishProgress(bundle);
-                bundle.putString(statusFlag,"Try mass erase before programing");
-                publishProgress(bundle);
-                return null;
-            }
+        public boolean release() {
+            DfuTransport current = usb;
+            return current != null && current.release();
+        }
+    };
 
-            try {
-                if (isDeviceProtected()) {
-                    bundle.putString(statusFlag,"program: Device is Read-Protected...First Mass Erase");
-                    publishProgress(bundle);
-                    return null;
-                }
+    private void programJob(DfuProtocol dfu, SessionMetrics metrics, Firmware firmware) throws Exception {
+        log("---------------------------------------------");
+        progress(0);
+        enterDfuMode(metrics);
+        log("Resetting Device to DFU Mode");
+        if (!isUsbConnected(dfu)) {
+            log("STM32F042C4 is not connected or not in DFU mode");
+            log("Try mass erase before programing");
+            return;
+        }
 
-                if (!checkPermissionForReadExtertalStorage()) {
-                    bundle.putString(statusFlag,"Requesting Storage permission");
-                    publishProgress(bundle);
-                    requestPermissionForReadExtertalStorage();
+        try {
+            long phaseStart = System.nanoTime();
+            boolean isProtected = isDeviceProtected(dfu);
+            metrics.endPhase(SessionMetrics.PHASE_PROTECTION, phaseStart);
+            if (isProtected) {
+                log("program: Device is Read-Protected...First Mass Erase");
+                return;
+            }
+
+            if (!checkPermissionForReadExtertalStorage()) {
+                log("Requesting Storage permission");
+                requestPermissionForReadExtertalStorage();
+            }
+            if (!checkPermissionForReadExtertalStorage()) {
+                log("Storage permission was not granted");
+                return;
+            }
+            log("Reading firmware...");
+            phaseStart = System.nanoTime();
+            firmware.load();
+            DfuFile dfuFile = firmware.dfuFile;
+            log("Checking compatibility...");
+            Target target = checkCompatibility(dfu.getTransport(), firmware);
+            DfuFunctionalDescriptor functional = target.functional;
+            MemoryLayout flashLayout = target.flashLayout;
+            metrics.endPhase(SessionMetrics.PHASE_FILE_LOAD, phaseStart);
+            if (functional != null) {
+                log("program: " + functional);
+            }
+            // delta mode and verify read the flash back
+            boolean canUpload = functional == null || functional.canUpload();
+            if (!canUpload && (deltaMode || verify)) {
+                log("program: Device cannot upload, delta mode and verify are skipped");
+            }
+            log("program: File Path: " + dfuFile.filePath);
+            log("program: File Size: " + dfuFile.fileSize + " Bytes \n");
+            log("program: ElementAddress: 0x" + Integer.toHexString(dfuFile.elementStartAddress));
+            log("program: ElementSize: " + dfuFile.elementLength + " Bytes\n");
+            log("program: " + dfuFile.NumElements + " element(s) in " + dfuFile.NumTargets + " target(s)");
+            log("program: Start writing file in blocks of " + target.blockSize + " Bytes \n");
+            long startTime = System.currentTimeMillis();
+            phaseStart = System.nanoTime();
+            log("Writing firmware Image...");
+
+            boolean delta = deltaMode && canUpload;
+            FlashJournal journal = null;
+            boolean resumed = false;
+            boolean eraseFirst = sectorErase;
+            String journalKey = journalKey(dfu.getTransport());
+            if (!delta && journalKey != null) {
+                journal = FlashJournal.open(new File(context.getFilesDir(), JOURNAL_DIRECTORY), journalKey,
+                        dfuFile.image, target.blockSize);
+                if (!journal.isEmpty()) {
+                    resumed = canUpload && journal.prepareResume(dfu, dfuFile.image, flashLayout);
+                    if (resumed) {
+                        log("program: Resuming after " + journal.getConfirmedCount() + " confirmed blocks");
+                    } else {
+                        // the interrupted session left part of the image written, erase it before writing again
+                        log(canUpload ? "program: Journal does not match the flash, erasing and starting over"
+                                : "program: Device cannot upload, the journal cannot be checked, erasing and starting over");
+                        journal.reset();
+                        eraseFirst = true;
+                    }
                 }
-                if (checkPermissionForReadExtertalStorage()) {
-                    bundle.putString(statusFlag,"Reading firmware...");
-                    publishProgress(bundle);
-                    openFile();
-                    bundle.putString(statusFlag,"Verifying firmware...");
-                    publishProgress(bundle);
-                    verifyFile();
-                    bundle.putString(statusFlag,"Checking compatibility...");
-                    publishProgress(bundle);
-                    checkCompatibility();
-                    bundle.putString(statusFlag,"program: File Path: " + dfuFile.filePath);
-                    publishProgress(bundle);
-                    bundle.putString(statusFlag,"program: File Size: " + dfuFile.file.length + " Bytes \n");
-                    publishProgress(bundle);
-                    bundle.putString(statusFlag,"program: ElementAddress: 0x" + Integer.toHexString(dfuFile.elementStartAddress));
-                    publishProgress(bundle);
-                    bundle.putString(statusFlag,"program: ElementSize: " + dfuFile.elementLength + " Bytes\n");
-                    publishProgress(bundle);
-                    bundle.putString(statusFlag,"program: Start writing file in blocks of " + dfuFile.maxBlockSize + " Bytes \n");
-                    publishProgress(bundle);
-                    long startTime = System.currentTimeMillis();
-                    bundle.putString(statusFlag,"Writing firmware Image...");
-                    publishProgress(bundle);
-
-                    int address = dfuFile.elementStartAddress;  // flash start address
-                    int fileOffset = ELEMENT1_OFFSET;   // index offset of file
-                    int blockSize = dfuFile.maxBlockSize;   // max block size
-                    byte[] Block = new byte[blockSize];
-                    int NumOfBlocks = dfuFile.elementLength / blockSize;
-                    int blockNum;
-                    bundle.putString(statusFlag,"Blocks to be written: " + NumOfBlocks);
-                    publishProgress(bundle);
-                    for (blockNum = 0; blockNum < NumOfBlocks; blockNum++) {
-                        System.arraycopy(dfuFile.file, (blockNum * blockSize) + fileOffset, Block, 0, blockSize);
-                        bundle.putString(statusFlag,"Writing block " + (blockNum + 1));
-                        bundle.putInt(progressFlag, (blockNum + 1)*100/NumOfBlocks);
-                        publishProgress(bundle);
-                        writeBlock(address, Block, blockNum);
+            }
+            if (eraseFirst && !delta && !resumed) {
+                phaseStart = System.nanoTime();
+                int sectors = new SectorEraser(dfu).erase(flashLayout, dfuFile.image);
+                metrics.endPhase(SessionMetrics.PHASE_ERASE, phaseStart);
+                log("program: Erased " + sectors + " of " + flashLayout.getSectors().size() + " sectors");
+                phaseStart = System.nanoTime();
+            }
+            FlashManifest manifest = null;     // saved only once the flash is verified
+            if (delta) {
+                log("Delta mode: comparing flash contents...");
+                DeltaFlasher deltaFlasher = new DeltaFlasher(dfu, flashLayout, target.blockSize);
+                manifest = openManifest(dfu.getTransport());
+                deltaFlasher.program(dfuFile.image, manifest);
+                log("Pages rewritten: " + deltaFlasher.getPagesWritten() + " of " + deltaFlasher.getPagesChecked()
+                        + (deltaFlasher.isManifestUsed() ? " (from the manifest)" : " (read back)"));
+                progress(100);
+            } else {
+                FlashWriter writer = new FlashWriter(dfu, target.blockSize);
+                writer.setSkipBlank(eraseFirst && !resumed);    // only known to be erased right after the sector erase
+                writer.setJournal(journal);
+                writer.setListener(new FlashWriter.Listener() {
+                    @Override
+                    public void onBlockWritten(int address, int blocksDone, int blocksTotal) {
+                        log("Writing block " + blocksDone + " at 0x" + Integer.toHexString(address));
+                        progress(blocksDone * 100 / blocksTotal);
                     }
-                    int remainder = dfuFile.elementLength - (blockNum * blockSize);
-                    if (remainder > 0) {
-                        System.arraycopy(dfuFile.file, (blockNum * blockSize) + fileOffset, Block, 0, remainder);
-                        // Pad with 0xFF so our CRC matches the ST Bootloader and the ULink's CRC
-                        while (remainder < Block.length) {
-                            Block[remainder++] = (byte) 0xFF;
-                        }
-                        // send out the block to device
-                        writeBlock(address, Block, blockNum);
-                        bundle.putString(statusFlag,"Writing final block");
-                        publishProgress(bundle);
+                });
+                log("Blocks to be written: " + FlashWriter.countBlocks(dfuFile.image.getRegions(), target.blockSize)
+                        + " in " + dfuFile.image.getRegions().size() + " region(s)");
+                manifest = openManifest(dfu.getTransport());
+                try {
+                    if (manifest != null) {
+                        manifest.delete();
+                    }
+                    writer.write(dfuFile.image);
+                    if (journal != null) {
+                        journal.delete();
+                    }
+                    if (manifest != null) {
+                        manifest.recordImage(dfuFile.image, flashLayout);
+                    }
+                } finally {
+                    if (journal != null) {
+                        journal.close();    // kept for the next attempt if the write failed
                     }
+                }
+                if (writer.getBlocksSkipped() > 0) {
+                    log("program: Skipped " + writer.getBlocksSkipped() + " blank or already written blocks");
+                }
+            }
 
-                    bundle.putString(statusFlag,"program: Programming completed in " + (System.currentTimeMillis() - startTime) + " ms\n");
-                    publishProgress(bundle);
-                    bundle.putString(statusFlag,"Resetting Device to normal mode");
-                    publishProgress(bundle);
-                    ResetUtils.enterNormalMode();
-                } else {
-                    bundle.putString(statusFlag,"Storage permission was not granted");
-                    publishProgress(bundle);
+            metrics.endPhase(SessionMetrics.PHASE_WRITE, phaseStart);
+            log("program: Programming completed in " + (System.currentTimeMillis() - startTime) + " ms\n");
+            if (verify && canUpload) {
+                log("Verifying flash contents...");
+                long verifyStart = System.currentTimeMillis();
+                phaseStart = System.nanoTime();
+                FlashVerifier verifier = new FlashVerifier(dfu, target.blockSize);
+                if (!verifier.verify(dfuFile.image)) {
+                    throw new Exception("Verify failed at 0x" + Integer.toHexString(verifier.getFirstMismatch()));
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                bundle.putString(statusFlag,"program: " + e.toString());
-                publishProgress(bundle);
+                metrics.endPhase(SessionMetrics.PHASE_VERIFY, phaseStart);
+                log("program: Verified " + verifier.getBytesVerified() + " Bytes in " + (System.currentTimeMillis() - verifyStart) + " ms\n");
             }
-            return null;
+            if (manifest != null) {
+                manifest.save();
+            }
+            phaseStart = System.nanoTime();
+            leaveDfuMode(dfu, functional);
+            metrics.endPhase(SessionMetrics.PHASE_LEAVE, phaseStart);
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("program: " + (e instanceof InterruptedException ? "Cancelled" : e.toString()));
+            throw e;
+        } finally {
+            firmware.close();
         }
+    }
 
-        @Override
-        protected void onProgressUpdate(Bundle... values) {
-            super.onProgressUpdate(values);
-            final String statusFlag = "status";
-            final String progressFlag = "progress";
-            Bundle bundle = values[0];
-            String statusLog = bundle.getString(statusFlag);
-            int progress = bundle.getInt(progressFlag);
-            onFirmwareUpgrade.onFirmwareUpgradeLog(statusLog);
-            onFirmwareUpgrade.onUpdateProgressBar(progress);
+    // leaves over DFU as the functional descriptor allows, then the reset line releases BOOT0
+    private void leaveDfuMode(DfuProtocol dfu, DfuFunctionalDescriptor functional) throws Exception {
+        log("Leaving DFU mode" + (functional != null && functional.isManifestationTolerant() ? " with DFU_DETACH" : ""));
+        boolean detached = new DfuDownloader(dfu).leave(mInternalFlashStartAddress, functional);
+        log("Resetting Device to normal mode");
+        try {
+            ResetUtils.enterNormalMode();
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (!detached) {
+                log("program: No reset line and the device does not detach, reset it by hand");
+            }
         }
     }
 
+    private void dumpJob(DfuProtocol dfu, SessionMetrics metrics, File file, int alternateSetting,
+                         FlashDumper.Format format) throws Exception {
+        log("---------------------------------------------");
+        progress(0);
+        enterDfuMode(metrics);
+        if (!isUsbConnected(dfu)) {
+            log("STM32F042C4 is not connected or not in DFU mode");
+            return;
+        }
 
-    private class AsyncTaskErase extends AsyncTask<Void, String, Void> {
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-            publishProgress("---------------------------------------------");
-
+        try {
+            long phaseStart = System.nanoTime();
+            boolean isProtected = isDeviceProtected(dfu);
+            metrics.endPhase(SessionMetrics.PHASE_PROTECTION, phaseStart);
+            if (isProtected) {
+                log("dump: Device is Read-Protected, nothing can be read");
+                return;
+            }
+            DfuCapabilities capabilities = capabilitiesOf(dfu.getTransport());
+            if (capabilities.getFunctional() != null && !capabilities.getFunctional().canUpload()) {
+                log("dump: Device cannot upload");
+                return;
+            }
+            DfuCapabilities.Alternate alternate = capabilities.getAlternate(alternateSetting);
+            if (alternate == null) {
+                log("dump: Device has no alternate setting " + alternateSetting);
+                return;
+            }
+            log("dump: " + alternate + " to " + file);
+            long startTime = System.currentTimeMillis();
+            phaseStart = System.nanoTime();
+            FlashDumper dumper = new FlashDumper(dfu, capabilities.getTransferSize());
+            dumper.setListener(new FlashDumper.Listener() {
+                @Override
+                public void onBlockRead(int address, long bytesDone, long bytesTotal) {
+                    progress((int) (bytesDone * 100 / bytesTotal));
+                }
+            });
+            long fileSize;
+            FileChannel out = new RandomAccessFile(file, "rw").getChannel();
             try {
-                ResetUtils.enterDfuMode();
-                Thread.sleep(1000);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                out.truncate(0);
+                fileSize = dumper.dump(alternate, out, format);
+                out.force(true);
+            } finally {
+                out.close();
             }
+            metrics.endPhase(SessionMetrics.PHASE_DUMP, phaseStart);
+            log("dump: Read " + dumper.getBytesRead() + " Bytes (" + fileSize + " Bytes " + format + ") in "
+                    + (System.currentTimeMillis() - startTime) + " ms, CRC-32 0x" + Integer.toHexString(dumper.getCrc()));
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("dump: " + (e instanceof InterruptedException ? "Cancelled" : e.toString()));
+            throw e;
+        }
+    }
 
-            if (!isUsbConnected()){
-                publishProgress("STM32F042C4 is not connected or not in DFU mode");
-                return null;
+    private List<GangProgrammer.Result> gangJob(Map<String, DfuTransport> devices, final Firmware firmware) throws Exception {
+        log("---------------------------------------------");
+        progress(0);
+        if (devices.isEmpty()) {
+            log("No DFU device opened, grant USB permission and try again");
+            return Collections.emptyList();
+        }
+        log("Gang programming " + devices.size() + " device(s): " + devices.keySet());
+        try {
+            firmware.load();
+            DfuFile dfuFile = firmware.dfuFile;
+            // checked one at a time on the device threads, the cache entry is shared by the boards.
+            // A board that fails its checks gets a failed result, the others are still programmed
+            Map<String, DfuTransport> ready = new LinkedHashMap<>();
+            Map<String, GangProgrammer.Result> rejected = new HashMap<>();
+            int blockSize = Integer.MAX_VALUE;
+            for (Map.Entry<String, DfuTransport> device : devices.entrySet()) {
+                Future<FlashJobScheduler.Result<Target>> check = scheduler.submit(device.getKey(), device.getValue(),
+                        new FlashJobScheduler.Job<Target>() {
+                            @Override
+                            public Target run(DfuProtocol dfu) throws Exception {
+                                if (isDeviceProtected(dfu)) {
+                                    throw new Exception("Device is Read-Protected, remove the protection with Mass Erase first");
+                                }
+                                Target target = checkCompatibility(dfu.getTransport(), firmware);
+                                forgetFlash(dfu.getTransport());    // the board is mass erased and rewritten
+                                return target;
+                            }
+                        });
+                Target target;
+                try {
+                    target = check.get().getValue();
+                } catch (InterruptedException e) {
+                    FlashJobScheduler.cancelAndWait(check);    // the board is released once it is idle
+                    throw e;
+                } catch (ExecutionException e) {
+                    Exception cause = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                    GangProgrammer.Result result = GangProgrammer.Result.failed(device.getKey(), cause);
+                    log(result.toString());
+                    rejected.put(device.getKey(), result);
+                    continue;
+                }
+                ready.put(device.getKey(), device.getValue());
+                blockSize = Math.min(blockSize, target.blockSize);
             }
-            DfuStatus dfuStatus = new DfuStatus();
-            long startTime = System.currentTimeMillis();  // note current time
 
-            try {
-                publishProgress("Getting Status of STM32 devices....");
-                do {
-                    clearStatus();
-                    getUsbStatus(dfuStatus);
-                } while (dfuStatus.bState != STATE_DFU_IDLE);
-                publishProgress("STM32 devices is idle");
-                if (isDeviceProtected()) {
-                    removeReadProtection();
-                    publishProgress("massErase: Read Protection removed. Device resets...Wait until it   re-enumerates ");
-                    return null;
+            List<GangProgrammer.Result> programmed = Collections.emptyList();
+            long startTime = System.currentTimeMillis();
+            if (!ready.isEmpty()) {
+                final int totalBlocks = FlashWriter.countBlocks(dfuFile.image.getRegions(), blockSize) * ready.size();
+                final AtomicInteger blocksDone = new AtomicInteger();
+                GangProgrammer programmer = new GangProgrammer(scheduler, dfuFile.image, blockSize);
+                programmer.setMassErase(true);      // a tray of boards has not been erased by hand
+                programmer.setVerify(verify);
+                programmer.setListener(new GangProgrammer.Listener() {
+                    @Override
+                    public void onProgress(String device, int done, int total) {
+                        progress(blocksDone.incrementAndGet() * 100 / totalBlocks);
+                    }
+
+                    @Override
+                    public void onFinished(GangProgrammer.Result result) {
+                        log(result + "\n" + result.getMetrics().summary());
+                    }
+                });
+                programmed = programmer.program(ready);
+            }
+
+            // one result per device, in the order they were given
+            List<GangProgrammer.Result> results = new ArrayList<>();
+            Iterator<GangProgrammer.Result> next = programmed.iterator();
+            int failed = 0;
+            int cancelled = 0;
+            for (String device : devices.keySet()) {
+                GangProgrammer.Result result = rejected.containsKey(device) ? rejected.get(device) : next.next();
+                if (result.isCancelled()) {
+                    cancelled++;
+                } else if (!result.isSuccess()) {
+                    failed++;
                 }
-                publishProgress("Sending mass erase command");
-                massEraseCommand();                 // sent erase command request
-                getUsbStatus(dfuStatus);                // initiate erase command, returns 'download busy' even if invalid address or ROP
-                publishProgress("Getting Status of STM32 devices....");
-                int pollingTime = dfuStatus.bwPollTimeout;  // note requested waiting time
-                do {
-                    /* wait specified time before next getUsbStatus call */
-                    Thread.sleep(pollingTime);
-                    clearStatus();
-                    getUsbStatus(dfuStatus);
-                } while (dfuStatus.bState != STATE_DFU_IDLE);
-
-               publishProgress("massErase: Mass erase completed in " + (System.currentTimeMillis() - startTime) + " ms");
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (Exception e) {
-                publishProgress("massErase: " + e.toString());
+                results.add(result);
             }
-            return null;
+            log("Gang programming: " + (devices.size() - failed - cancelled) + " ok, " + failed + " failed, "
+                    + cancelled + " cancelled in " + (System.currentTimeMillis() - startTime) + " ms");
+            progress(100);
+            return results;
+        } catch (Exception e) {
+            e.printStackTrace();
+            log("programAll: " + (e instanceof InterruptedException ? "Cancelled" : e.toString()));
+            throw e;
+        } finally {
+            firmware.close();
         }
+    }
 
-        @Override
-        protected void onProgressUpdate(String... values) {
-            super.onProgressUpdate(values);
-            onFirmwareUpgrade.onFirmwareUpgradeLog(values[0]);
-        }
-    }
-
-
-//    public void program() {
-//
-//        onFirmwareUpgrade.onFirmwareUpgradeLog("---------------------------------------------");
-//
-//        if (!isUsbConnected()) {
-//            onFirmwareUpgrade.onFirmwareUpgradeProgress(0, 1);
-//            onFirmwareUpgrade.onFirmwareUpgradeLog("STM32F042C4 is not connected or not in DFU mode");
-//            onFirmwareUpgrade.onFirmwareUpgradeLog("Try mass erase before programing");
-//            return;
-//        }
-//
-//        try {
-//            if (isDeviceProtected()) {
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("program: Device is Read-Protected...First Mass Erase");
-//                return;
-//            }
-//
-//            if (!checkPermissionForReadExtertalStorage()) {
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("Requesting Storage permission");
-//                requestPermissionForReadExtertalStorage();
-//            }
-//            if (checkPermissionForReadExtertalStorage()) {
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("Reading firmware...");
-//                openFile();
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("Verifying firmware...");
-//                verifyFile();
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("Checking compatibility...");
-//                checkCompatibility();
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("program: File Path: " + dfuFile.filePath + "\n");
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("program: File Size: " + dfuFile.file.length + " Bytes \n");
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("program: ElementAddress: 0x" + Integer.toHexString(dfuFile.elementStartAddress));
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("program: ElementSize: " + dfuFile.elementLength + " Bytes\n");
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("program: Start writing file in blocks of " + dfuFile.maxBlockSize + " Bytes \n");
-//
-//                long startTime = System.currentTimeMillis();
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("Writing firmware Image...");
-//                writeImage();
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("program: Programming completed in " + (System.currentTimeMillis() - startTime) + " ms\n");
-//            } else {
-//                onFirmwareUpgrade.onFirmwareUpgradeLog("Storage permission was not granted");
-//            }
-//
-//        } catch (Exception e) {
-//            e.printStackTrace();
-//            onFirmwareUpgrade.onFirmwareUpgradeLog("program: " + e.toString());
-//        }
-//    }
+    private void eraseJob(DfuProtocol dfu, SessionMetrics metrics) throws Exception {
+        log("---------------------------------------------");
+        enterDfuMode(metrics);
+
+        if (!isUsbConnected(dfu)) {
+            log("STM32F042C4 is not connected or not in DFU mode");
+            return;
+        }
+        DfuStatus dfuStatus = new DfuStatus();
+        long startTime = System.currentTimeMillis();  // note current time
+
+        try {
+            log("Getting Status of STM32 devices....");
+            dfu.clearToIdle(dfuStatus);
+            log("STM32 devices is idle");
+            long phaseStart = System.nanoTime();
+            boolean isProtected = isDeviceProtected(dfu);
+            metrics.endPhase(SessionMetrics.PHASE_PROTECTION, phaseStart);
+            if (isProtected) {
+                forgetFlash(dfu.getTransport());    // the unprotect mass erases the flash
+                removeReadProtection(dfu);
+                log("massErase: Read Protection removed. Device resets...Wait until it   re-enumerates ");
+                return;
+            }
+            log("Sending mass erase command");
+            phaseStart = System.nanoTime();
+            dfu.massEraseCommand();                 // sent erase command request
+            dfu.getStatus(dfuStatus);                // initiate erase command, returns 'download busy' even if invalid address or ROP
+            log("Getting Status of STM32 devices....");
+            dfu.pollWhileBusy(dfuStatus);           // waits bwPollTimeout before the next getUsbStatus call
+            dfu.clearToIdle(dfuStatus);
+
+            metrics.endPhase(SessionMetrics.PHASE_ERASE, phaseStart);
+            forgetFlash(dfu.getTransport());
+            log("massErase: Mass erase completed in " + (System.currentTimeMillis() - startTime) + " ms");
+        } catch (Exception e) {
+            log("massErase: " + e.toString());
+            throw e;
+        }
+    }
 
     public boolean checkPermissionForReadExtertalStorage() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
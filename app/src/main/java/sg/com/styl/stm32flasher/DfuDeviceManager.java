@@ -0,0 +1,162 @@
+package sg.com.styl.stm32flasher;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Tracks every attached DFU device with the flasher's VID/PID, for programming a hub full of
+ * boards at once. Permission is asked per device and answered asynchronously, the listener hears
+ * once every dialog is answered; openAll() gives each device its own connection keyed by serial
+ * number or bus path.
+ * Uses its own permission action so STM32F042UsbManager does not open the same devices as well.
+ */
+public class DfuDeviceManager {
+
+    public interface Listener {
+        // every device asked for by requestPermissions() was granted or denied
+        void onPermissionsAnswered(int granted, int denied);
+    }
+
+    private static final String TAG = "DfuDeviceManager: ";
+    public static final String ACTION_USB_PERMISSION = "sg.com.styl.stm32flasher.USB_PERMISSION_ALL";
+
+    private final Context context;
+    private final UsbManager usbManager;
+    private final int vendorId;
+    private final int productId;
+    private final Map<String, UsbDfuDevice> opened = new LinkedHashMap<>();
+    private final Set<UsbDevice> awaiting = new HashSet<>();
+    private int granted;
+    private int denied;
+    private Listener listener;
+
+    public DfuDeviceManager(Context context, UsbManager usbManager, int vendorId, int productId) {
+        this.context = context;
+        this.usbManager = usbManager;
+        this.vendorId = vendorId;
+        this.productId = productId;
+    }
+
+    public List<UsbDevice> getAttachedDevices() {
+        List<UsbDevice> devices = new ArrayList<>();
+        for (UsbDevice device : usbManager.getDeviceList().values()) {
+            if (device.getVendorId() == vendorId && device.getProductId() == productId) {
+                devices.add(device);
+            }
+        }
+        return devices;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // returns the number of devices whose permission dialog is still to be answered
+    public synchronized int requestPermissions() {
+        PendingIntent permissionIntent = PendingIntent.getBroadcast(context, 0, new Intent(ACTION_USB_PERMISSION), 0);
+        if (awaiting.isEmpty()) {
+            granted = 0;
+            denied = 0;
+        }
+        for (UsbDevice device : getAttachedDevices()) {
+            if (!usbManager.hasPermission(device) && awaiting.add(device)) {
+                usbManager.requestPermission(device, permissionIntent);
+            }
+        }
+        return awaiting.size();
+    }
+
+    // opens every attached device we have permission for, already opened ones are kept
+    public synchronized Map<String, DfuTransport> openAll() {
+        for (UsbDevice device : getAttachedDevices()) {
+            if (!usbManager.hasPermission(device) || isOpened(device)) {
+                continue;
+            }
+            UsbDfuDevice dfuDevice = UsbDfuDevice.open(usbManager, device);
+            if (dfuDevice != null) {
+                opened.put(dfuDevice.getKey(), dfuDevice);
+            }
+        }
+        return new LinkedHashMap<String, DfuTransport>(opened);
+    }
+
+    public synchronized void closeAll() {
+        for (UsbDfuDevice device : opened.values()) {
+            device.release();
+        }
+        opened.clear();
+    }
+
+    private boolean isOpened(UsbDevice device) {
+        for (UsbDfuDevice dfuDevice : opened.values()) {
+            if (dfuDevice.getUsbDevice().equals(device)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void answered(UsbDevice device, boolean permitted) {
+        synchronized (this) {
+            if (!awaiting.remove(device)) {
+                return;
+            }
+            if (permitted) {
+                granted++;
+            } else {
+                denied++;
+            }
+            if (!awaiting.isEmpty()) {
+                return;
+            }
+        }
+        if (listener != null) {
+            listener.onPermissionsAnswered(granted, denied);
+        }
+    }
+
+    private synchronized void detached(UsbDevice device) {
+        if (awaiting.remove(device) && awaiting.isEmpty() && listener != null) {
+            listener.onPermissionsAnswered(granted, denied);
+        }
+        for (Map.Entry<String, UsbDfuDevice> entry : opened.entrySet()) {
+            if (entry.getValue().getUsbDevice().equals(device)) {
+                entry.getValue().release();
+                opened.remove(entry.getKey());
+                Log.d(TAG, "detached: " + entry.getKey());
+                return;
+            }
+        }
+    }
+
+    public BroadcastReceiver getUsbBroadcastReceiver() {
+        return broadcastReceiver;
+    }
+
+    private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+            if (device == null) {
+                return;
+            }
+            if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
+                detached(device);
+            } else if (ACTION_USB_PERMISSION.equals(intent.getAction())) {
+                answered(device, intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false));
+            }
+        }
+    };
+}
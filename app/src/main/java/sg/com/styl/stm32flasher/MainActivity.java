@@ -11,22 +11,27 @@ import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.ProgressBar;
 import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.example.nfc_programmer.GetPath;
+import java.io.File;
 
 public class MainActivity extends AppCompatActivity implements OnUsbChangeListener, OnFirmwareUpgrade{
 
     private String TAG = "MainActivity: ";
-    Button btnMassErase, btnProgram, btnSelectFW;
+    Button btnMassErase, btnProgram, btnProgramAll, btnBackup, btnCancel, btnSelectFW;
+    CheckBox chkDelta, chkVerify, chkSectorErase;
     ProgressBar upgradeProgressbar;
     TextView txtLog;
+    // the log view keeps the last lines only
+    final LogBuffer logBuffer = new LogBuffer(500);
     ScrollView scrollLog;
     final static int FILE_REQUEST = 7;
     private STM32F042UsbManager m_Stm32F042UsbManager;
+    private DfuDeviceManager dfuDeviceManager;
     private DeviceFirmwareUpgrade deviceFirmwareUpgrade;
     DfuFile dfuFile;
     @Override
@@ -50,17 +55,57 @@ public class MainActivity extends AppCompatActivity implements OnUsbChangeListen
             public void onClick(View v) {
                 if (!dfuFile.filePath.isEmpty()) {
                     deviceFirmwareUpgrade.setDfuFile(dfuFile);
+                    deviceFirmwareUpgrade.setDeltaMode(chkDelta.isChecked());
+                    deviceFirmwareUpgrade.setVerify(chkVerify.isChecked());
+                    deviceFirmwareUpgrade.setSectorErase(chkSectorErase.isChecked());
                     deviceFirmwareUpgrade.program();
                 }
 
             }
         });
+        btnProgramAll.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (deviceFirmwareUpgrade.isBusy()) {
+                    onFirmwareUpgradeLog("Program All: wait for the running job or cancel it first");
+                    return;
+                }
+                if (!dfuFile.filePath.isEmpty()) {
+                    // the single device connection would otherwise hold one of the boards
+                    deviceFirmwareUpgrade.setUsb(null);
+                    m_Stm32F042UsbManager.release();
+                    int awaiting = dfuDeviceManager.requestPermissions();
+                    if (awaiting == 0) {
+                        programAll();
+                    } else {
+                        // started from onPermissionsAnswered once the dialogs are answered
+                        onFirmwareUpgradeLog("Program All: waiting for USB permission on " + awaiting + " board(s)");
+                    }
+                }
+            }
+        });
+        btnBackup.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // internal flash as a DfuSe file that Program can write back
+                File backup = new File(getExternalFilesDir(null), "flash-backup.dfu");
+                onFirmwareUpgradeLog("Backup: " + backup.getPath());
+                deviceFirmwareUpgrade.dump(backup, 0, FlashDumper.Format.DFUSE);
+            }
+        });
+        btnCancel.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                deviceFirmwareUpgrade.cancel();
+            }
+        });
         btnSelectFW.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 Intent intent = new Intent();
                 intent.setType("*/*");
                 intent.setAction(Intent.ACTION_GET_CONTENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
                 startActivityForResult(intent, FILE_REQUEST);
             }
         });
@@ -71,7 +116,7 @@ public class MainActivity extends AppCompatActivity implements OnUsbChangeListen
         switch (requestCode){
             case FILE_REQUEST:
                 if (resultCode == RESULT_OK){
-                    String Path = GetPath.getPath(this, data.getData());
+                    String Path = data.getData().toString();   // opened through the ContentResolver
                     onFirmwareUpgradeLog(Path);
                     dfuFile.filePath = Path;
                 }
@@ -79,10 +124,22 @@ public class MainActivity extends AppCompatActivity implements OnUsbChangeListen
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    private void programAll() {
+        deviceFirmwareUpgrade.setDfuFile(dfuFile);
+        deviceFirmwareUpgrade.setVerify(chkVerify.isChecked());
+        deviceFirmwareUpgrade.programAll(dfuDeviceManager.openAll());
+    }
+
     private void findViewInXml() {
         btnSelectFW = findViewById(R.id.btnSelectF);
         btnMassErase = findViewById(R.id.btnMassErase);
         btnProgram = findViewById(R.id.btnProgram);
+        btnProgramAll = findViewById(R.id.btnProgramAll);
+        btnBackup = findViewById(R.id.btnBackup);
+        btnCancel = findViewById(R.id.btnCancel);
+        chkDelta = findViewById(R.id.chkDelta);
+        chkVerify = findViewById(R.id.chkVerify);
+        chkSectorErase = findViewById(R.id.chkSectorErase);
         txtLog = findViewById(R.id.txtLog);
         upgradeProgressbar = findViewById(R.id.upgradeProgress);
         scrollLog = findViewById(R.id.scrollLog);
@@ -100,6 +157,21 @@ public class MainActivity extends AppCompatActivity implements OnUsbChangeListen
         filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
         filter.addAction(STM32F042UsbManager.ACTION_USB_PERMISSION);
         registerReceiver(m_Stm32F042UsbManager.getUsbBroadcastReceiver(), filter);
+        dfuDeviceManager = new DfuDeviceManager(this, (UsbManager) getSystemService(Context.USB_SERVICE),
+                STM32F042UsbManager.getStm32f042UsbVid(), STM32F042UsbManager.getStm32f042UsbPid());
+        dfuDeviceManager.setListener(new DfuDeviceManager.Listener() {
+            @Override
+            public void onPermissionsAnswered(int granted, int denied) {
+                if (denied > 0) {
+                    onFirmwareUpgradeLog("Program All: " + denied + " board(s) denied USB permission are skipped");
+                }
+                programAll();
+            }
+        });
+        IntentFilter dfuFilter = new IntentFilter();
+        dfuFilter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        dfuFilter.addAction(DfuDeviceManager.ACTION_USB_PERMISSION);
+        registerReceiver(dfuDeviceManager.getUsbBroadcastReceiver(), dfuFilter);
         m_Stm32F042UsbManager.requestPermission(this, STM32F042UsbManager.getStm32f042UsbVid(), STM32F042UsbManager.getStm32f042UsbPid());
     }
 
@@ -108,8 +180,10 @@ public class MainActivity extends AppCompatActivity implements OnUsbChangeListen
         super.onStop();
         deviceFirmwareUpgrade.setUsb(null);
         m_Stm32F042UsbManager.release();
+        dfuDeviceManager.closeAll();
         try {
             unregisterReceiver(m_Stm32F042UsbManager.getUsbBroadcastReceiver());
+            unregisterReceiver(dfuDeviceManager.getUsbBroadcastReceiver());
         } catch (IllegalArgumentException e) {
             Log.d(TAG, "onStop: Already unregister");
         }
@@ -120,13 +194,14 @@ public class MainActivity extends AppCompatActivity implements OnUsbChangeListen
         Toast.makeText(getApplicationContext(), "STM32F042 Device Connected", Toast.LENGTH_SHORT).show();
         final String deviceInfo = m_Stm32F042UsbManager.getDeviceInfo(m_Stm32F042UsbManager.getUsbDevice());
         deviceFirmwareUpgrade.setUsb(m_Stm32F042UsbManager);
-        txtLog.append(deviceInfo);
+        onFirmwareUpgradeLog(deviceInfo);
     }
 
 
     @Override
     public void onFirmwareUpgradeLog(String logText) {
-        txtLog.append(logText + "\n");
+        logBuffer.add(logText);
+        txtLog.setText(logBuffer.toString());
         scrollLog.post(new Runnable() {
             @Override
             public void run() {
@@ -139,4 +214,11 @@ public class MainActivity extends AppCompatActivity implements OnUsbChangeListen
     public void onUpdateProgressBar(int value) {
         upgradeProgressbar.setProgress(value);
     }
+
+    @Override
+    public void onGangProgramFinished() {
+        dfuDeviceManager.closeAll();
+        // reopen the single device connection
+        m_Stm32F042UsbManager.requestPermission(this, STM32F042UsbManager.getStm32f042UsbVid(), STM32F042UsbManager.getStm32f042UsbPid());
+    }
 }
@@ -17,7 +17,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 
 
-public class STM32F042UsbManager {
+public class STM32F042UsbManager implements DfuTransport {
 
     private Context m_Context;
     private UsbManager usbManager;
@@ -28,6 +28,7 @@ public class STM32F042UsbManager {
     private UsbDeviceConnection mConnection;
     private UsbInterface mInterface;
     private int mDeviceVersion;
+    private volatile DfuCapabilities mCapabilities;
     private OnUsbChangeListener mOnUsbChangeListener;
 
     public static final String ACTION_USB_PERMISSION = "sg.com.styl.stm32flasher.USB_PERMISSION";
@@ -68,11 +69,20 @@ public class STM32F042UsbManager {
                 Log.d(TAG, "setDevice: USB Device Opened");
                 mConnection = usbDeviceConnection;
                 byte[] rawDescriptor = mConnection.getRawDescriptors();
-                mDeviceVersion = rawDescriptor[13] << 8;
-                mDeviceVersion |= rawDescriptor[12];
+                mDeviceVersion = (rawDescriptor[13] & 0xFF) << 8 | (rawDescriptor[12] & 0xFF);
+                try {
+                    mCapabilities = DfuCapabilities.forDevice(mConnection.getSerial(), this);
+                    Log.d(TAG, "setDevice: " + mCapabilities);
+                } catch (Exception e) {
+                    Log.d(TAG, "setDevice: descriptors not read: " + e.getMessage());
+                    mCapabilities = null;
+                }
 
             } else {
                 Log.d(TAG, "setDevice: USB Device not Opened");
+                if (usbDeviceConnection != null) {
+                    usbDeviceConnection.close();
+                }
                 mConnection = null;
             }
         }
@@ -116,6 +126,7 @@ public class STM32F042UsbManager {
         return mDevice;
     }
 
+    @Override
     public boolean release() {
         boolean isReleased = false;
         if (mConnection != null) {
@@ -154,7 +165,9 @@ public class STM32F042UsbManager {
                         if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
                             if (usbDevice != null) {
                                 setDevice(usbDevice);
-                                if (mOnUsbChangeListener != null) {
+                                if (!isConnected()) {
+                                    Toast.makeText(context, "USB device could not be opened", Toast.LENGTH_SHORT).show();
+                                } else if (mOnUsbChangeListener != null) {
                                     mOnUsbChangeListener.onUsbConnected();
                                 }
                             }
@@ -189,12 +202,25 @@ public class STM32F042UsbManager {
         }
     }
 
+    @Override
     public boolean isConnected() {
         return (mConnection != null);
     }
+    @Override
     public int getDeviceVersion() {
         return mDeviceVersion;
     }
+
+    @Override
+    public byte[] getRawDescriptors() {
+        return (mConnection != null) ? mConnection.getRawDescriptors() : null;
+    }
+
+    @Override
+    public DfuCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+    @Override
     public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
         synchronized (this) {
             return mConnection.controlTransfer(requestType, request, value, index, buffer, length, timeout);
@@ -0,0 +1,102 @@
+package sg.com.styl.stm32flasher;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+/*
+ * One opened DFU device, with its own connection, for sessions that run side by side.
+ */
+public class UsbDfuDevice implements DfuTransport {
+
+    private static final String TAG = "UsbDfuDevice: ";
+
+    private final UsbDevice device;
+    private final UsbInterface usbInterface;
+    private UsbDeviceConnection connection;
+    private final int deviceVersion;
+    private final String key;
+    private DfuCapabilities capabilities;
+
+    private UsbDfuDevice(UsbDevice device, UsbInterface usbInterface, UsbDeviceConnection connection) {
+        this.device = device;
+        this.usbInterface = usbInterface;
+        this.connection = connection;
+        byte[] rawDescriptor = connection.getRawDescriptors();
+        deviceVersion = (rawDescriptor[13] & 0xFF) << 8 | (rawDescriptor[12] & 0xFF);    // bcdDevice
+        String serial = connection.getSerial();
+        key = (serial != null && !serial.isEmpty()) ? serial : device.getDeviceName();
+        try {
+            capabilities = DfuCapabilities.forDevice(serial, this);
+            Log.d(TAG, "open: " + capabilities);
+        } catch (Exception e) {
+            Log.d(TAG, "open: " + device.getDeviceName() + " descriptors not read: " + e.getMessage());
+        }
+    }
+
+    // returns null when the device cannot be opened or its interface is taken
+    public static UsbDfuDevice open(UsbManager usbManager, UsbDevice device) {
+        UsbInterface usbInterface = device.getInterface(0);
+        UsbDeviceConnection connection = usbManager.openDevice(device);
+        if (connection == null) {
+            Log.d(TAG, "open: " + device.getDeviceName() + " not opened");
+            return null;
+        }
+        if (!connection.claimInterface(usbInterface, true)) {
+            Log.d(TAG, "open: " + device.getDeviceName() + " interface not claimed");
+            connection.close();
+            return null;
+        }
+        return new UsbDfuDevice(device, usbInterface, connection);
+    }
+
+    // serial number, or the bus path (/dev/bus/usb/...) when the device reports none
+    public String getKey() {
+        return key;
+    }
+
+    public UsbDevice getUsbDevice() {
+        return device;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return connection != null;
+    }
+
+    @Override
+    public int getDeviceVersion() {
+        return deviceVersion;
+    }
+
+    @Override
+    public synchronized byte[] getRawDescriptors() {
+        return (connection != null) ? connection.getRawDescriptors() : null;
+    }
+
+    @Override
+    public DfuCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    @Override
+    public synchronized int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        if (connection == null) {
+            return -1;
+        }
+        return connection.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+    }
+
+    @Override
+    public synchronized boolean release() {
+        boolean isReleased = false;
+        if (connection != null) {
+            isReleased = connection.releaseInterface(usbInterface);
+            connection.close();
+            connection = null;
+        }
+        return isReleased;
+    }
+}
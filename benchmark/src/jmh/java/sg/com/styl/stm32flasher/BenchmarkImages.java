@@ -0,0 +1,92 @@
+package sg.com.styl.stm32flasher;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/*
+ * Inputs shared by the benchmarks: random firmware data, the same data wrapped in a DfuSe file,
+ * and a transport that answers like an idle bootloader without doing any work, so the host side
+ * of the protocol can be timed on its own.
+ */
+class BenchmarkImages {
+
+    static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    // one target with one element, suffix CRC included
+    static byte[] dfuSe(int address, byte[] data) {
+        ByteBuffer file = ByteBuffer.allocate(11 + 274 + 8 + data.length + 16).order(ByteOrder.LITTLE_ENDIAN);
+        file.put("DfuSe".getBytes()).put((byte) 1).putInt(file.capacity() - 16).put((byte) 1);
+        byte[] name = new byte[255];
+        System.arraycopy("ST...".getBytes(), 0, name, 0, 5);
+        file.put("Target".getBytes()).put((byte) 0).putInt(1).put(name).putInt(8 + data.length).putInt(1);
+        file.putInt(address).putInt(data.length).put(data);
+        file.putShort((short) 0x2200).putShort((short) 0xDF11).putShort((short) 0x0483).putShort((short) 0x011A);
+        file.put("UFD".getBytes()).put((byte) 16);
+        file.putInt(CRC8Utils.update(-1, file.array(), 0, file.position()));
+        return file.array();
+    }
+
+    // every request succeeds at once: DNLOAD -> dfuDNBUSY -> dfuDNLOAD-IDLE, UPLOAD returns 0xFF
+    static class IdleTransport implements DfuTransport {
+        private int state = DfuProtocol.STATE_DFU_IDLE;
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public int getDeviceVersion() {
+            return 0x2200;
+        }
+
+        @Override
+        public byte[] getRawDescriptors() {
+            return null;
+        }
+
+        @Override
+        public DfuCapabilities getCapabilities() {
+            return null;
+        }
+
+        @Override
+        public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+            switch (request) {
+                case DfuProtocol.DFU_DNLOAD:
+                    state = DfuProtocol.STATE_DFU_DOWNLOAD_SYNC;
+                    return length;
+                case DfuProtocol.DFU_GETSTATUS:
+                    state = (state == DfuProtocol.STATE_DFU_DOWNLOAD_SYNC) ? DfuProtocol.STATE_DFU_DOWNLOAD_BUSY
+                            : (state == DfuProtocol.STATE_DFU_DOWNLOAD_BUSY) ? DfuProtocol.STATE_DFU_DOWNLOAD_IDLE : state;
+                    buffer[0] = DfuProtocol.STATUS_OK;
+                    buffer[1] = buffer[2] = buffer[3] = 0;
+                    buffer[4] = (byte) state;
+                    buffer[5] = 0;
+                    return 6;
+                case DfuProtocol.DFU_UPLOAD:
+                    state = DfuProtocol.STATE_DFU_UPLOAD_IDLE;
+                    for (int i = 0; i < length; i++) {
+                        buffer[i] = (byte) 0xFF;
+                    }
+                    return length;
+                case DfuProtocol.DFU_ABORT:
+                case DfuProtocol.DFU_CLRSTATUS:
+                    state = DfuProtocol.STATE_DFU_IDLE;
+                    return 0;
+                default:
+                    return -1;
+            }
+        }
+
+        @Override
+        public boolean release() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package sg.com.styl.stm32flasher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/*
+ * DfuSe suffix CRC over a whole file, as done by verifyFile(), against the other CRC paths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class CrcBenchmark {
+
+    @Param({"16384", "65536", "262144", "1048576"})
+    public int imageSize;
+
+    private byte[] file;
+    private final Crc32 crc32 = new Crc32();
+
+    @Setup
+    public void setUp() {
+        file = BenchmarkImages.randomData(imageSize);
+    }
+
+    @Benchmark
+    public int calculateCRC() {
+        return CRC8Utils.calculateCRC(file);
+    }
+
+    @Benchmark
+    public int parallel() throws Exception {
+        return Crc32.compute(ByteBuffer.wrap(file, 0, file.length - 4));
+    }
+
+    @Benchmark
+    public int zipCrc32() {
+        crc32.update(file, 0, file.length - 4);
+        return crc32.finish();
+    }
+}
@@ -0,0 +1,51 @@
+package sg.com.styl.stm32flasher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+/*
+ * What verifyFile() does with a DfuSe file: sniff the format, walk prefix, targets, elements and
+ * suffix, and check the file CRC. The file is in the page cache, so this is the CPU side only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class DfuSeParseBenchmark {
+
+    @Param({"16384", "65536", "262144", "1048576"})
+    public int imageSize;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = File.createTempFile("benchmark", ".dfu");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(BenchmarkImages.dfuSe(DfuSeEmulator.FLASH_START, BenchmarkImages.randomData(imageSize)));
+        out.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public DfuFile verifyFile() throws Exception {
+        DfuFile dfuFile = new DfuFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FirmwareReader reader = FirmwareReaders.open(raf.getChannel(), DfuSeEmulator.FLASH_START)) {
+            reader.parse(dfuFile);
+        }
+        return dfuFile;
+    }
+}
@@ -0,0 +1,39 @@
+package sg.com.styl.stm32flasher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Slicing the image into blocks, padding the last one and the per-block request sequence, with a
+ * transport that costs nothing, i.e. the host overhead that is added to every USB round trip.
+ * The image is a few bytes short of whole blocks so the padding path is taken.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class FlashWriterBenchmark {
+
+    @Param({"16384", "65536", "262144", "1048576"})
+    public int imageSize;
+
+    @Param({"1024", "2048"})
+    public int blockSize;
+
+    private FirmwareImage image;
+    private DfuProtocol dfu;
+
+    @Setup
+    public void setUp() {
+        image = new ByteArrayImage(DfuSeEmulator.FLASH_START, BenchmarkImages.randomData(imageSize - 7));
+        dfu = new DfuProtocol(new BenchmarkImages.IdleTransport());
+    }
+
+    @Benchmark
+    public int writeImage() throws Exception {
+        return new FlashWriter(dfu, blockSize).write(image);
+    }
+}
@@ -0,0 +1,44 @@
+package sg.com.styl.stm32flasher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+ * Mass erase, write and read-back verify against the simulated bootloader (simulated time, so
+ * the numbers are host CPU only). The emulator is sized to hold the largest image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class ProgramCycleBenchmark {
+
+    @Param({"16384", "65536", "262144", "1048576"})
+    public int imageSize;
+
+    @Param({"1024", "2048"})
+    public int blockSize;
+
+    private FirmwareImage image;
+    private DfuSeEmulator emulator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        image = new ByteArrayImage(DfuSeEmulator.FLASH_START, BenchmarkImages.randomData(imageSize));
+        emulator = new DfuSeEmulator(imageSize);
+    }
+
+    @Benchmark
+    public boolean program() throws Exception {
+        DfuProtocol dfu = new DfuProtocol(emulator);
+        DfuDownloader downloader = new DfuDownloader(dfu);
+        downloader.massErase();
+        downloader.finish();
+        new FlashWriter(dfu, blockSize).write(image);
+        return new FlashVerifier(dfu, blockSize).verify(image);
+    }
+}
@@ -0,0 +1,43 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Lets a job wait for the DFU device to come back after a reset. arm() before the reset,
+ * signal() once the re-enumerated interface is claimed, await() in between. Claims before
+ * arm() do not count, so a connection from before the reset is not mistaken for the new one.
+ */
+public class AttachLatch {
+
+    private CountDownLatch latch = new CountDownLatch(1);
+    private long armedNanos;
+    private long signalledNanos;
+
+    public synchronized void arm() {
+        latch = new CountDownLatch(1);
+        armedNanos = System.nanoTime();
+        signalledNanos = 0;
+    }
+
+    public synchronized void signal() {
+        if (latch.getCount() > 0) {
+            signalledNanos = System.nanoTime();
+            latch.countDown();
+        }
+    }
+
+    // true when signalled within the timeout
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        CountDownLatch current;
+        synchronized (this) {
+            current = latch;
+        }
+        return current.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // from arm() to signal(), -1 when not signalled yet
+    public synchronized long getLatencyMillis() {
+        return (signalledNanos == 0) ? -1 : (signalledNanos - armedNanos) / 1000000;
+    }
+}
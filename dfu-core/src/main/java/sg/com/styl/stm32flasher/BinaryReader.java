@@ -0,0 +1,39 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/*
+ * Raw binary, the whole file is one segment placed at a base address given by the user.
+ */
+public class BinaryReader extends SegmentedImage {
+
+    private final int baseAddress;
+
+    public BinaryReader(FileChannel channel, int baseAddress) throws IOException {
+        super(channel);
+        this.baseAddress = baseAddress;
+    }
+
+    @Override
+    public void parse(DfuFile dfuFile) throws Exception {
+        if (size > Integer.MAX_VALUE) {
+            throw new FirmwareFormatException("File too large");
+        }
+        clearSegments();
+        addSegment(baseAddress, (int) size, 0);
+        layout();
+
+        dfuFile.TargetName = "Binary";
+        dfuFile.TargetSize = (int) size;
+        dfuFile.NumTargets = 1;
+        dfuFile.NumElements = 1;
+        dfuFile.elementStartAddress = getAddress();
+        dfuFile.elementLength = getLength();
+        dfuFile.VID = ANY_ID;
+        dfuFile.PID = ANY_ID;
+        dfuFile.BootVersion = ANY_ID;
+        dfuFile.fileSize = size;
+        dfuFile.image = this;
+    }
+}
@@ -0,0 +1,53 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ByteArrayImage implements FirmwareImage {
+
+    private final int address;
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    public ByteArrayImage(int address, byte[] data) {
+        this(address, data, 0, data.length);
+    }
+
+    public ByteArrayImage(int address, byte[] data, int offset, int length) {
+        this.address = address;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int getAddress() {
+        return address;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public List<ImageRegion> getRegions() {
+        return Collections.singletonList(new ImageRegion(address, length));
+    }
+
+    @Override
+    public void read(int at, byte[] buffer, int bufferOffset, int count) {
+        Arrays.fill(buffer, bufferOffset, bufferOffset + count, (byte) 0xFF);
+        long from = Math.max(at, address);
+        long to = Math.min((long) at + count, (long) address + length);
+        if (from < to) {
+            System.arraycopy(data, (int) (offset + from - address), buffer, (int) (bufferOffset + from - at), (int) (to - from));
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
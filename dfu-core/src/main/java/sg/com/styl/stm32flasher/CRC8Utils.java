@@ -0,0 +1,16 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * Despite the name this is the CRC-32 register stored in a DfuSe suffix, see Crc32.
+ */
+public class CRC8Utils {
+    public static int calculateCRC(byte[] FileData) {
+        return update(-1, FileData, 0, FileData.length - 4);
+    }
+
+    // continues a DfuSe CRC (start with -1, no final inversion) over data[offset, offset + length)
+    public static int update(int crc, byte[] data, int offset, int length) {
+        return Crc32.update(crc, data, offset, length);
+    }
+
+}
@@ -0,0 +1,178 @@
+package sg.com.styl.stm32flasher;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/*
+ * CRC-32 (IEEE 802.3, reflected 0xEDB88320).
+ * An instance runs bulk data through java.util.zip.CRC32, which is a JIT intrinsic or native zlib
+ * and several times faster than any table in Java; direct and mapped buffers are fed to it in
+ * array sized pieces since CRC32.update(ByteBuffer) needs API 26. finish() returns the usual
+ * inverted value, and values of consecutive pieces can be joined with combine().
+ * The static update() continues a raw register (start -1, no final inversion, as stored in a DfuSe
+ * suffix) with the same CRC32 and combine().
+ */
+public class Crc32 {
+
+    private static final int POLY = 0xEDB88320;
+    private static final int PARALLEL_THRESHOLD = 1 << 20;     // smaller inputs are done in one pass
+    private static ExecutorService executor;     // shared by compute(), threads are created on first use
+
+    private static final int SCRATCH_SIZE = 65536;
+
+    private final CRC32 crc = new CRC32();
+    private byte[] scratch;
+
+    public void update(byte[] data, int offset, int length) {
+        crc.update(data, offset, length);
+    }
+
+    // consumes the buffer's remaining bytes
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (scratch == null) {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+        while (buffer.hasRemaining()) {
+            int n = Math.min(scratch.length, buffer.remaining());
+            buffer.get(scratch, 0, n);
+            crc.update(scratch, 0, n);
+        }
+    }
+
+    // CRC-32 of everything passed to update(), then starts over for the next message
+    public int finish() {
+        int value = (int) crc.getValue();
+        crc.reset();
+        return value;
+    }
+
+    // continues a raw register (start -1, no final inversion, as stored in a DfuSe suffix)
+    public static int update(int crc, byte[] data, int offset, int length) {
+        CRC32 zip = new CRC32();
+        zip.update(data, offset, length);
+        if (crc == -1) {
+            return ~(int) zip.getValue();
+        }
+        return ~combine(~crc, (int) zip.getValue(), length);
+    }
+
+    /*
+     * CRC-32 of the buffer's remaining bytes, split into one slice per core when it is large.
+     * The slice CRCs are joined with combine(), so the result equals a single pass.
+     */
+    public static int compute(ByteBuffer buffer, int threads) throws Exception {
+        int length = buffer.remaining();
+        if (threads < 2 || length < PARALLEL_THRESHOLD) {
+            Crc32 crc = new Crc32();
+            crc.update(buffer.duplicate());
+            return crc.finish();
+        }
+        final int sliceLength = (length + threads - 1) / threads;
+        ExecutorService pool = executor();
+        List<Future<Integer>> slices = new ArrayList<>();
+        for (int start = 0; start < length; start += sliceLength) {
+            final ByteBuffer slice = buffer.duplicate();
+            slice.position(buffer.position() + start);
+            slice.limit(buffer.position() + Math.min(length, start + sliceLength));
+            slices.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    Crc32 crc = new Crc32();
+                    crc.update(slice);
+                    return crc.finish();
+                }
+            }));
+        }
+        int crc = slices.get(0).get();
+        for (int i = 1; i < slices.size(); i++) {
+            int sliceCrc = slices.get(i).get();
+            crc = combine(crc, sliceCrc, Math.min(sliceLength, length - i * sliceLength));
+        }
+        return crc;
+    }
+
+    // one daemon thread per core, kept for the life of the process
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "crc32");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    public static int compute(ByteBuffer buffer) throws Exception {
+        return compute(buffer, Runtime.getRuntime().availableProcessors());
+    }
+
+    /*
+     * CRC-32 of A followed by B from crc(A), crc(B) and the length of B (zlib's crc32_combine):
+     * crc1 is run through len2 zero bytes by squaring the GF(2) operator for one zero bit.
+     */
+    public static int combine(int crc1, int crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+
+        odd[0] = POLY;      // operator for one zero bit
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd);  // two zero bits
+        square(odd, even);  // four zero bits
+
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Rewrites only the flash pages whose contents differ from the image. Pages are the sectors of
+ * the device's memory layout, the unit one page erase clears: 1 KB on the F042, 2 KB or 16 KB
+ * and more on other parts.
+ * The pages covering the image are read back with DFU_UPLOAD in transfer sized blocks and compared
+ * as they arrive, then each run of differing pages is page-erased and written whole.
+ * Bytes of a page outside the image are expected to be erased (0xFF), as after a mass erase.
+ *
+ * With a FlashManifest of the device the read-back is skipped: pages whose CRC matches the manifest
+ * are taken as unchanged once a few of them, picked at random, read back with the expected CRC.
+ */
+public class DeltaFlasher {
+
+    private static final int SAMPLE_PAGES = 2;
+
+    private final DfuDownloader downloader;
+    private final DfuUploader uploader;
+    private final MemoryLayout layout;
+    private final int blockSize;
+    private final Random random = new Random();
+
+    private int pagesChecked;
+    private int pagesWritten;
+    private boolean manifestUsed;
+
+    public DeltaFlasher(DfuProtocol dfu, MemoryLayout layout, int blockSize) {
+        this.downloader = new DfuDownloader(dfu);
+        this.uploader = new DfuUploader(dfu, downloader);
+        this.layout = layout;
+        this.blockSize = blockSize;
+    }
+
+    public int getPagesChecked() {
+        return pagesChecked;
+    }
+
+    public int getPagesWritten() {
+        return pagesWritten;
+    }
+
+    // whether the last program() trusted the manifest instead of reading the pages back
+    public boolean isManifestUsed() {
+        return manifestUsed;
+    }
+
+    public void program(FirmwareImage image) throws Exception {
+        program(image, null);
+    }
+
+    // manifest may be null; it is deleted before the first write and updated once the image is on the
+    // device, saving it is left to the caller once the flash has been verified
+    public void program(FirmwareImage image, FlashManifest manifest) throws Exception {
+        pagesChecked = 0;
+        pagesWritten = 0;
+        List<MemoryLayout.Sector> pages = layout.sectorsFor(image.getRegions());
+        for (MemoryLayout.Sector page : pages) {
+            if (!page.isErasable()) {
+                throw new Exception("Sector " + page + " of " + layout.getName() + " cannot be erased");
+            }
+        }
+        int[] crcs = new int[pages.size()];
+        if (manifest != null) {
+            for (int i = 0; i < pages.size(); i++) {
+                crcs[i] = FlashManifest.pageCrc(image, pages.get(i).getAddress(), pages.get(i).getSize());
+            }
+        }
+        manifestUsed = manifest != null && !manifest.isEmpty() && sampleMatches(pages, crcs, manifest);
+        if (manifest != null) {
+            manifest.delete();      // an interrupted write leaves no manifest rather than a wrong one
+        }
+        boolean[] dirty = manifestUsed ? manifestDirty(pages, crcs, manifest) : readBackDirty(pages, image);
+        pagesChecked = pages.size();
+        writeDirty(pages, dirty, image);
+        downloader.finish();
+        if (manifest != null) {
+            if (!manifestUsed) {
+                manifest.clear();   // did not match the flash, pages outside the image are unknown too
+            }
+            for (int i = 0; i < pages.size(); i++) {
+                manifest.put(pages.get(i).getAddress(), pages.get(i).getSize(), crcs[i]);
+            }
+        }
+    }
+
+    // pages[index] starts where the page before it ends
+    private static boolean follows(List<MemoryLayout.Sector> pages, int index) {
+        return pages.get(index).getAddress() == (int) pages.get(index - 1).getEnd();
+    }
+
+    // reads back up to SAMPLE_PAGES of the pages the manifest says are unchanged
+    private boolean sampleMatches(List<MemoryLayout.Sector> pages, int[] crcs, FlashManifest manifest) throws Exception {
+        List<Integer> unchanged = new ArrayList<>();
+        for (int i = 0; i < pages.size(); i++) {
+            if (manifest.matches(pages.get(i).getAddress(), pages.get(i).getSize(), crcs[i])) {
+                unchanged.add(i);
+            }
+        }
+        try {
+            for (int n = 0; n < SAMPLE_PAGES && !unchanged.isEmpty(); n++) {
+                int page = unchanged.remove(random.nextInt(unchanged.size()));
+                if (deviceCrc(pages.get(page)) != crcs[page]) {
+                    return false;
+                }
+            }
+        } finally {
+            uploader.finish();
+        }
+        return true;
+    }
+
+    private int deviceCrc(MemoryLayout.Sector page) throws Exception {
+        int size = Math.min(blockSize, page.getSize());
+        byte[] block = new byte[size];
+        Crc32 crc = new Crc32();
+        for (int done = 0; done < page.getSize(); done += size) {
+            uploader.read(page.getAddress() + done, block, size);
+            crc.update(block, 0, size);
+        }
+        return crc.finish();
+    }
+
+    private boolean[] manifestDirty(List<MemoryLayout.Sector> pages, int[] crcs, FlashManifest manifest) {
+        boolean[] dirty = new boolean[pages.size()];
+        for (int i = 0; i < pages.size(); i++) {
+            dirty[i] = !manifest.matches(pages.get(i).getAddress(), pages.get(i).getSize(), crcs[i]);
+        }
+        return dirty;
+    }
+
+    // each run of adjacent pages is read in blocks that may span pages
+    private boolean[] readBackDirty(List<MemoryLayout.Sector> pages, FirmwareImage image) throws Exception {
+        boolean[] dirty = new boolean[pages.size()];
+        byte[] block = new byte[blockSize];
+        byte[] expected = new byte[blockSize];
+        for (int first = 0; first < pages.size(); ) {
+            int last = first + 1;
+            while (last < pages.size() && follows(pages, last)) {
+                last++;
+            }
+            int page = first;
+            int pageEnd = (int) pages.get(page).getEnd();
+            int end = (int) pages.get(last - 1).getEnd();
+            for (int chunk = pages.get(first).getAddress(); chunk != end; ) {
+                int size = Math.min(blockSize, end - chunk);
+                uploader.read(chunk, block, size);
+                image.read(chunk, expected, 0, size);
+                for (int i = 0; i < size; i++) {
+                    if (chunk + i == pageEnd) {
+                        pageEnd = (int) pages.get(++page).getEnd();
+                    }
+                    if (!dirty[page] && block[i] != expected[i]) {
+                        dirty[page] = true;
+                    }
+                }
+                chunk += size;
+            }
+            first = last;
+        }
+        uploader.finish();
+        return dirty;
+    }
+
+    private void writeDirty(List<MemoryLayout.Sector> pages, boolean[] dirty, FirmwareImage image) throws Exception {
+        for (int page = 0; page < pages.size(); ) {
+            if (!dirty[page]) {
+                page++;
+                continue;
+            }
+            int last = page;
+            do {
+                downloader.erasePage(pages.get(last).getAddress());
+                last++;
+            } while (last < pages.size() && dirty[last] && follows(pages, last));
+            writeRange(pages.get(page).getAddress(), (int) pages.get(last - 1).getEnd(), image);
+            pagesWritten += last - page;
+            page = last;
+        }
+    }
+
+    private void writeRange(int from, int to, FirmwareImage image) throws Exception {
+        byte[] block = new byte[blockSize];
+        for (int chunk = from; chunk != to; chunk += block.length) {
+            if (to - chunk < block.length) {
+                block = new byte[to - chunk];     // never pad into a page that was not erased
+            }
+            image.read(chunk, block, 0, block.length);
+            downloader.writeBlock(chunk, block);
+        }
+    }
+}
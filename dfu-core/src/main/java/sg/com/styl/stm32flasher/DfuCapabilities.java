@@ -0,0 +1,286 @@
+package sg.com.styl.stm32flasher;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * What a DFU device told us about itself: device, configuration, interface/alternate setting,
+ * DFU functional and string descriptors. Read once when the interface is claimed and kept per
+ * serial number, so programming does not ask the device again.
+ */
+public class DfuCapabilities {
+
+    private static final int DESCRIPTOR_DEVICE = 0x01;
+    private static final int DESCRIPTOR_CONFIGURATION = 0x02;
+    private static final int DESCRIPTOR_STRING = 0x03;
+    private static final int DESCRIPTOR_INTERFACE = 0x04;
+
+    private static final int USB_REQ_GET_DESCRIPTOR = 0x06;
+    private static final int LANGID_EN_US = 0x0409;
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+
+    private static final ConcurrentMap<String, DfuCapabilities> cache = new ConcurrentHashMap<>();
+
+    /* One alternate setting of the DFU interface; the name is a memory layout on DfuSe devices */
+    public static class Alternate {
+        private final int interfaceNumber;
+        private final int alternateSetting;
+        private final String name;
+        private final MemoryLayout layout;
+
+        Alternate(int interfaceNumber, int alternateSetting, String name, MemoryLayout layout) {
+            this.interfaceNumber = interfaceNumber;
+            this.alternateSetting = alternateSetting;
+            this.name = name;
+            this.layout = layout;
+        }
+
+        public int getInterfaceNumber() {
+            return interfaceNumber;
+        }
+
+        public int getAlternateSetting() {
+            return alternateSetting;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // null when the name is not a DfuSe memory layout
+        public MemoryLayout getLayout() {
+            return layout;
+        }
+
+        @Override
+        public String toString() {
+            return "alt " + alternateSetting + ": " + (layout != null ? layout : name);
+        }
+    }
+
+    private final int vendorId;
+    private final int productId;
+    private final int deviceVersion;
+    private final String manufacturer;
+    private final String product;
+    private final String serial;
+    private final int configurationValue;
+    private final List<Alternate> alternates;
+    private final DfuFunctionalDescriptor functional;
+
+    private DfuCapabilities(int vendorId, int productId, int deviceVersion, String manufacturer, String product,
+                            String serial, int configurationValue, List<Alternate> alternates,
+                            DfuFunctionalDescriptor functional) {
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.deviceVersion = deviceVersion;
+        this.manufacturer = manufacturer;
+        this.product = product;
+        this.serial = serial;
+        this.configurationValue = configurationValue;
+        this.alternates = Collections.unmodifiableList(alternates);
+        this.functional = functional;
+    }
+
+    // cached per vid:pid:serial; a device without a serial number is read every time
+    public static DfuCapabilities forDevice(String serial, DfuTransport usb) throws Exception {
+        if (serial == null || serial.isEmpty()) {
+            return read(usb, null);
+        }
+        byte[] raw = usb.getRawDescriptors();
+        if (raw == null || raw.length < 18) {
+            throw new Exception("Error: Could not read the device descriptor");
+        }
+        String key = Integer.toHexString(getShort(raw, 8)) + ":" + Integer.toHexString(getShort(raw, 10)) + ":" + serial;
+        DfuCapabilities capabilities = cache.get(key);
+        if (capabilities == null) {
+            capabilities = read(usb, serial);
+            cache.put(key, capabilities);
+        }
+        return capabilities;
+    }
+
+    // e.g. after the bootloader of this device was replaced
+    public static void forget(String serial) {
+        for (String key : cache.keySet()) {
+            if (key.endsWith(":" + serial)) {
+                cache.remove(key);
+            }
+        }
+    }
+
+    // parses the raw descriptors and fetches the string descriptors they refer to; serial null reads iSerialNumber
+    public static DfuCapabilities read(DfuTransport usb, String serial) throws Exception {
+        byte[] raw = usb.getRawDescriptors();
+        if (raw == null || raw.length < 18 || (raw[1] & 0xFF) != DESCRIPTOR_DEVICE) {
+            throw new Exception("Error: Could not read the device descriptor");
+        }
+        int langId = readLangId(usb);
+        int configurationValue = 0;
+        List<Alternate> alternates = new ArrayList<>();
+        for (int offset = 0; offset + 2 <= raw.length; ) {
+            int length = raw[offset] & 0xFF;
+            if (length < 2 || offset + length > raw.length) {
+                throw new FirmwareFormatException("Malformed descriptor at offset " + offset);
+            }
+            int type = raw[offset + 1] & 0xFF;
+            if (type == DESCRIPTOR_CONFIGURATION && length >= 9 && configurationValue == 0) {
+                configurationValue = raw[offset + 5] & 0xFF;
+            } else if (type == DESCRIPTOR_INTERFACE && length >= 9 && isDfuInterface(raw, offset)) {
+                String name = readString(usb, raw[offset + 8] & 0xFF, langId);
+                alternates.add(new Alternate(raw[offset + 2] & 0xFF, raw[offset + 3] & 0xFF, name, layoutOf(name)));
+            }
+            offset += length;
+        }
+        if (serial == null) {
+            serial = readString(usb, raw[16] & 0xFF, langId);
+        }
+        return new DfuCapabilities(getShort(raw, 8), getShort(raw, 10), getShort(raw, 12),
+                readString(usb, raw[14] & 0xFF, langId), readString(usb, raw[15] & 0xFF, langId), serial,
+                configurationValue, alternates, DfuFunctionalDescriptor.parse(raw));
+    }
+
+    // application specific class 0xFE, subclass 0x01
+    private static boolean isDfuInterface(byte[] raw, int offset) {
+        return (raw[offset + 5] & 0xFF) == 0xFE && (raw[offset + 6] & 0xFF) == 0x01;
+    }
+
+    private static MemoryLayout layoutOf(String name) {
+        if (name == null || !name.startsWith("@")) {
+            return null;
+        }
+        try {
+            return MemoryLayout.parse(name);
+        } catch (FirmwareFormatException e) {
+            return null;
+        }
+    }
+
+    // first language of string descriptor 0
+    private static int readLangId(DfuTransport usb) {
+        byte[] descriptor = new byte[255];
+        int len = usb.controlTransfer(0x80, USB_REQ_GET_DESCRIPTOR, DESCRIPTOR_STRING << 8, 0, descriptor, descriptor.length, 500);
+        return (len >= 4) ? getShort(descriptor, 2) : LANGID_EN_US;
+    }
+
+    // null for index 0 or when the device stalls the request
+    private static String readString(DfuTransport usb, int index, int langId) {
+        if (index == 0) {
+            return null;
+        }
+        byte[] descriptor = new byte[255];
+        int len = usb.controlTransfer(0x80, USB_REQ_GET_DESCRIPTOR, DESCRIPTOR_STRING << 8 | index, langId,
+                descriptor, descriptor.length, 500);
+        if (len <= 2) {
+            return null;
+        }
+        return new String(descriptor, 2, Math.min(len, descriptor[0] & 0xFF) - 2, UTF_16LE);
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    public int getVendorId() {
+        return vendorId;
+    }
+
+    public int getProductId() {
+        return productId;
+    }
+
+    // bcdDevice, the bootloader version on ST parts
+    public int getDeviceVersion() {
+        return deviceVersion;
+    }
+
+    public String getManufacturer() {
+        return manufacturer;
+    }
+
+    public String getProduct() {
+        return product;
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    public int getConfigurationValue() {
+        return configurationValue;
+    }
+
+    public List<Alternate> getAlternates() {
+        return alternates;
+    }
+
+    public Alternate getAlternate(int alternateSetting) {
+        for (Alternate alternate : alternates) {
+            if (alternate.getAlternateSetting() == alternateSetting) {
+                return alternate;
+            }
+        }
+        return null;
+    }
+
+    // layout of an alternate setting, null if there is none
+    public MemoryLayout getLayout(int alternateSetting) {
+        Alternate alternate = getAlternate(alternateSetting);
+        return (alternate != null) ? alternate.getLayout() : null;
+    }
+
+    // the alternate setting whose memory holds address, e.g. 1 for the option bytes of an F042
+    public Alternate findAlternate(int address) {
+        for (Alternate alternate : alternates) {
+            if (alternate.getLayout() != null && alternate.getLayout().sectorAt(address) != null) {
+                return alternate;
+            }
+        }
+        return null;
+    }
+
+    // null when the device has no DFU functional descriptor
+    public DfuFunctionalDescriptor getFunctional() {
+        return functional;
+    }
+
+    // wTransferSize of the DFU functional descriptor, or the block size of the known ST bootloaders
+    public int getTransferSize() throws Exception {
+        if (functional != null && functional.getTransferSize() > 0) {
+            if (!functional.canDownload()) {
+                throw new Exception("Error: Device does not accept downloads");
+            }
+            return functional.getTransferSize();
+        }
+        switch (deviceVersion) {
+            case 0x011A:
+            case 0x0200:
+                return 1024;
+            case 0x2100:
+            case 0x2200:
+                return 2048;
+            default:
+                throw new Exception("Error: Unsupported bootloader version " + Integer.toHexString(deviceVersion)
+                        + " and no DFU functional descriptor");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(product).append(" ").append(Integer.toHexString(vendorId)).append(":")
+                .append(Integer.toHexString(productId)).append(" bcdDevice ").append(Integer.toHexString(deviceVersion))
+                .append(", serial ").append(serial);
+        if (functional != null) {
+            sb.append(", ").append(functional);
+        }
+        for (Alternate alternate : alternates) {
+            sb.append("\n  ").append(alternate);
+        }
+        return sb.toString();
+    }
+}
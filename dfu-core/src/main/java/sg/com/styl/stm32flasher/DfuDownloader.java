@@ -0,0 +1,182 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * Block writer that keeps track of the device state between blocks, so a block costs
+ * DNLOAD + GETSTATUS (busy) + GETSTATUS (dfuDNLOAD-IDLE) and the address pointer is only
+ * sent when the next block does not follow on from the previous one.
+ * CLRSTATUS is only issued when the device actually reports dfuERROR.
+ */
+public class DfuDownloader {
+
+    private static final int STATE_UNKNOWN = -1;
+
+    private final DfuProtocol dfu;
+    private final DfuStatus dfuStatus = new DfuStatus();
+    private int state = STATE_UNKNOWN;
+
+    private int baseAddress;        // last address pointer set on the device
+    private int nextBlockNumber;    // wBlockNum that continues after the previous block
+    private int transferSize;       // wLength of the blocks since baseAddress
+
+    public DfuDownloader(DfuProtocol dfu) {
+        this.dfu = dfu;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    // forget the cached state, e.g. after another code path talked to the device
+    public void invalidate() {
+        state = STATE_UNKNOWN;
+        nextBlockNumber = 0;
+    }
+
+    public void setAddress(int address) throws Exception {
+        ready();
+        dfu.setAddressPointer(address);
+        if (!execute()) {
+            throw new Exception("Start address not supported: 0x" + Integer.toHexString(address));
+        }
+        baseAddress = address;
+        nextBlockNumber = 2;
+        transferSize = 0;
+    }
+
+    public void writeBlock(int address, byte[] block) throws Exception {
+        checkCancelled(address);
+        if (nextBlockNumber == 0 || transferSize != 0 && transferSize != block.length
+                || address != baseAddress + (nextBlockNumber - 2) * block.length) {
+            setAddress(address);
+        }
+        ready();
+        transferSize = block.length;
+        dfu.download(block, nextBlockNumber);
+        if (!execute()) {
+            nextBlockNumber = 0;
+            throw new Exception("error when downloading block at 0x" + Integer.toHexString(address)
+                    + ", status " + dfuStatus.bStatus);
+        }
+        nextBlockNumber++;
+    }
+
+    public void erasePage(int address) throws Exception {
+        ready();
+        dfu.erasePageCommand(address);
+        nextBlockNumber = 0;
+        if (!execute()) {
+            throw new Exception("Page erase failed at 0x" + Integer.toHexString(address));
+        }
+    }
+
+    public void massErase() throws Exception {
+        ready();
+        dfu.massEraseCommand();
+        nextBlockNumber = 0;
+        if (!execute()) {
+            throw new Exception("Mass erase failed, status " + dfuStatus.bStatus);
+        }
+    }
+
+    /*
+     * Leaves DFU mode and starts the firmware at address: the address pointer, then a zero-length
+     * DNLOAD starts manifestation. A device that is not manifestation tolerant is gone once the
+     * first bwPollTimeout is over, a tolerant one returns to dfuIDLE and is sent DFU_DETACH with its
+     * detach timeout. Returns true when the device leaves by itself, false when it has to be reset.
+     */
+    public boolean leave(int address, DfuFunctionalDescriptor functional) throws Exception {
+        setAddress(address);
+        ready();
+        dfu.download(new byte[0], nextBlockNumber);
+        invalidate();
+        dfu.getStatus(dfuStatus);
+        if (dfuStatus.bState == DfuProtocol.STATE_DFU_ERROR) {
+            clearError();
+            throw new Exception("Leaving DFU mode failed, status " + dfuStatus.bStatus);
+        }
+        // a DfuSe bootloader without the descriptor resets itself, like the STM32 ones do
+        boolean willDetach = functional == null || functional.willDetach();
+        if (functional == null || !functional.isManifestationTolerant()) {
+            dfu.getPollScheduler().waitOut(dfuStatus.bwPollTimeout);
+            return willDetach;
+        }
+        dfu.getPollScheduler().pollWhileManifesting(dfu, dfuStatus);
+        state = dfuStatus.bState;
+        if (!willDetach) {
+            return false;
+        }
+        dfu.detach(functional.getDetachTimeout());
+        return true;
+    }
+
+    // another request (e.g. ABORT after an upload) left the device in dfuIDLE
+    public void markIdle() {
+        state = DfuProtocol.STATE_DFU_IDLE;
+        nextBlockNumber = 0;
+    }
+
+    // back to dfuIDLE, so other requests can follow
+    public void finish() throws Exception {
+        if (state != DfuProtocol.STATE_DFU_IDLE) {
+            ready();
+            if (state == DfuProtocol.STATE_DFU_DOWNLOAD_IDLE) {
+                abort();
+            }
+        }
+        nextBlockNumber = 0;
+    }
+
+    // a cancelled job stops between blocks, never in the middle of one
+    static void checkCancelled(int address) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Cancelled at 0x" + Integer.toHexString(address));
+        }
+    }
+
+    // brings the device to dfuIDLE or dfuDNLOAD-IDLE
+    private void ready() throws Exception {
+        if (state == DfuProtocol.STATE_DFU_IDLE || state == DfuProtocol.STATE_DFU_DOWNLOAD_IDLE) {
+            return;
+        }
+        dfu.getStatus(dfuStatus);
+        state = dfuStatus.bState;
+        if (state == DfuProtocol.STATE_DFU_ERROR) {
+            clearError();
+        } else if (state != DfuProtocol.STATE_DFU_IDLE && state != DfuProtocol.STATE_DFU_DOWNLOAD_IDLE) {
+            abort();
+        }
+        if (state != DfuProtocol.STATE_DFU_IDLE && state != DfuProtocol.STATE_DFU_DOWNLOAD_IDLE) {
+            throw new Exception("Device not idle, state " + state);
+        }
+    }
+
+    // GETSTATUS starts the request, GETSTATUS again once bwPollTimeout has passed. Returns false if the device reported dfuERROR
+    private boolean execute() throws Exception {
+        state = DfuProtocol.STATE_DFU_DOWNLOAD_SYNC;
+        dfu.getStatus(dfuStatus);
+        if (dfuStatus.bState != DfuProtocol.STATE_DFU_DOWNLOAD_BUSY && dfuStatus.bState != DfuProtocol.STATE_DFU_ERROR) {
+            state = STATE_UNKNOWN;
+            throw new Exception("error when downloading, was not busy");
+        }
+        dfu.pollWhileBusy(dfuStatus);
+        state = dfuStatus.bState;
+        if (state == DfuProtocol.STATE_DFU_ERROR) {
+            clearError();
+            return false;
+        }
+        return true;
+    }
+
+    private void clearError() throws Exception {
+        int bStatus = dfuStatus.bStatus;
+        dfu.clearStatus();
+        dfu.getStatus(dfuStatus);
+        state = dfuStatus.bState;
+        dfuStatus.bStatus = (byte) bStatus;     // keep the error for the caller
+    }
+
+    private void abort() throws Exception {
+        dfu.abort();
+        state = DfuProtocol.STATE_DFU_IDLE;
+    }
+}
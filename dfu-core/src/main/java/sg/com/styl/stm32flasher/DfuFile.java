@@ -0,0 +1,19 @@
+package sg.com.styl.stm32flasher;
+
+public class DfuFile {
+        String filePath;    // file path or content:// uri
+        FirmwareImage image;
+        long fileSize;
+        int PID;
+        int VID;
+        int BootVersion;
+        int maxBlockSize = 1024;
+
+        int elementStartAddress;    // span of all elements, gaps included
+        int elementLength;
+
+        String TargetName;
+        int TargetSize;
+        int NumTargets;
+        int NumElements;    // over all targets
+    }
\ No newline at end of file
@@ -0,0 +1,92 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * DFU functional descriptor (DFU 1.1 table 4.2, type 0x21), found after the DFU interface
+ * descriptor in the configuration. wTransferSize is the largest DNLOAD/UPLOAD the device accepts.
+ */
+public class DfuFunctionalDescriptor {
+
+    public static final int TYPE = 0x21;
+
+    private static final int CAN_DOWNLOAD = 0x01;
+    private static final int CAN_UPLOAD = 0x02;
+    private static final int MANIFESTATION_TOLERANT = 0x04;
+    private static final int WILL_DETACH = 0x08;
+
+    private final int attributes;
+    private final int detachTimeout;
+    private final int transferSize;
+    private final int dfuVersion;
+
+    public DfuFunctionalDescriptor(int attributes, int detachTimeout, int transferSize, int dfuVersion) {
+        this.attributes = attributes;
+        this.detachTimeout = detachTimeout;
+        this.transferSize = transferSize;
+        this.dfuVersion = dfuVersion;
+    }
+
+    // walks the descriptors by bLength; null when there is no functional descriptor
+    public static DfuFunctionalDescriptor parse(byte[] rawDescriptors) {
+        if (rawDescriptors == null) {
+            return null;
+        }
+        for (int offset = 0; offset + 2 <= rawDescriptors.length; ) {
+            int length = rawDescriptors[offset] & 0xFF;
+            if (length < 2) {
+                return null;    // malformed, would loop forever
+            }
+            if ((rawDescriptors[offset + 1] & 0xFF) == TYPE && length >= 7 && offset + length <= rawDescriptors.length) {
+                return new DfuFunctionalDescriptor(rawDescriptors[offset + 2] & 0xFF,
+                        getShort(rawDescriptors, offset + 3), getShort(rawDescriptors, offset + 5),
+                        length >= 9 ? getShort(rawDescriptors, offset + 7) : 0x0100);   // DFU 1.0 has no bcdDFUVersion
+            }
+            offset += length;
+        }
+        return null;
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    public boolean canDownload() {
+        return (attributes & CAN_DOWNLOAD) != 0;
+    }
+
+    public boolean canUpload() {
+        return (attributes & CAN_UPLOAD) != 0;
+    }
+
+    public boolean isManifestationTolerant() {
+        return (attributes & MANIFESTATION_TOLERANT) != 0;
+    }
+
+    public boolean willDetach() {
+        return (attributes & WILL_DETACH) != 0;
+    }
+
+    public int getAttributes() {
+        return attributes;
+    }
+
+    // ms the device waits for a USB reset after DFU_DETACH
+    public int getDetachTimeout() {
+        return detachTimeout;
+    }
+
+    public int getTransferSize() {
+        return transferSize;
+    }
+
+    public int getDfuVersion() {
+        return dfuVersion;
+    }
+
+    @Override
+    public String toString() {
+        return "DFU " + Integer.toHexString(dfuVersion) + ", wTransferSize " + transferSize
+                + (canDownload() ? ", download" : "") + (canUpload() ? ", upload" : "")
+                + (isManifestationTolerant() ? ", manifestation tolerant" : "")
+                + (willDetach() ? ", will detach" : "") + ", detach timeout " + detachTimeout + " ms";
+    }
+}
@@ -0,0 +1,175 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * DfuSe requests on top of a DfuTransport. Refer to ST document AN3156 for the command set.
+ */
+public class DfuProtocol {
+
+    public final static int USB_DIR_OUT = 0;
+    public final static int USB_DIR_IN = 128;       //0x80
+    public final static int DFU_RequestType = 0x21;  // '2' => Class request ; '1' => to interface
+
+    public final static int STATE_IDLE = 0x00;
+    public final static int STATE_DETACH = 0x01;
+    public final static int STATE_DFU_IDLE = 0x02;
+    public final static int STATE_DFU_DOWNLOAD_SYNC = 0x03;
+    public final static int STATE_DFU_DOWNLOAD_BUSY = 0x04;
+    public final static int STATE_DFU_DOWNLOAD_IDLE = 0x05;
+    public final static int STATE_DFU_MANIFEST_SYNC = 0x06;
+    public final static int STATE_DFU_MANIFEST = 0x07;
+    public final static int STATE_DFU_MANIFEST_WAIT_RESET = 0x08;
+    public final static int STATE_DFU_UPLOAD_IDLE = 0x09;
+    public final static int STATE_DFU_ERROR = 0x0A;
+    public final static int STATE_DFU_UPLOAD_SYNC = 0x91;
+    public final static int STATE_DFU_UPLOAD_BUSY = 0x92;
+
+    // DFU Commands, request ID code when using controlTransfers
+    public final static int DFU_DETACH = 0x00;
+    public final static int DFU_DNLOAD = 0x01;
+    public final static int DFU_UPLOAD = 0x02;
+    public final static int DFU_GETSTATUS = 0x03;
+    public final static int DFU_CLRSTATUS = 0x04;
+    public final static int DFU_GETSTATE = 0x05;
+    public final static int DFU_ABORT = 0x06;
+
+    // bStatus codes returned by DFU_GETSTATUS
+    public final static int STATUS_OK = 0x00;
+    public final static int STATUS_ERR_TARGET = 0x01;
+    public final static int STATUS_ERR_WRITE = 0x03;
+    public final static int STATUS_ERR_ERASE = 0x04;
+    public final static int STATUS_ERR_PROG = 0x06;
+    public final static int STATUS_ERR_VERIFY = 0x07;
+    public final static int STATUS_ERR_ADDRESS = 0x08;
+    public final static int STATUS_ERR_UNKNOWN = 0x0E;
+    public final static int STATUS_ERR_STALLEDPKT = 0x0F;
+
+    // DfuSe commands, sent as DNLOAD with wBlockNum = 0
+    public final static int CMD_SET_ADDRESS_POINTER = 0x21;
+    public final static int CMD_ERASE = 0x41;
+    public final static int CMD_READ_UNPROTECT = 0x92;
+
+    // standard SET_INTERFACE, selects the memory an alternate setting stands for
+    public final static int USB_RequestType_Interface = 0x01;
+    public final static int USB_REQ_SET_INTERFACE = 0x0B;
+
+    private static final int TIMEOUT_MS = 500;
+    private static final int MAX_CLEAR_ROUNDS = 5;
+
+    private DfuTransport usb;
+    private final RetryPolicy retryPolicy;
+    private final PollScheduler pollScheduler;
+
+    public DfuProtocol(DfuTransport usb) {
+        this(usb, new RetryPolicy());
+    }
+
+    // waits on the transport's clock when it has one (a simulated device), otherwise on System.nanoTime()
+    public DfuProtocol(DfuTransport usb, RetryPolicy retryPolicy) {
+        this.usb = usb;
+        this.retryPolicy = retryPolicy;
+        this.pollScheduler = new PollScheduler(PollScheduler.clockOf(usb));
+    }
+
+    public DfuTransport getTransport() {
+        return usb;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public PollScheduler getPollScheduler() {
+        return pollScheduler;
+    }
+
+    public void clearStatus() throws Exception {
+        retryPolicy.transfer(usb, "clearStatus", false, DFU_RequestType, DFU_CLRSTATUS, 0, 0, null, 0, TIMEOUT_MS);
+    }
+
+    public void getStatus(DfuStatus status) throws Exception {
+        byte[] buffer = new byte[6];
+        retryPolicy.transfer(usb, "getUsbStatus", true, DFU_RequestType | USB_DIR_IN, DFU_GETSTATUS, 0, 0, buffer, 6, TIMEOUT_MS);
+        status.bStatus = buffer[0]; // state during request
+        status.bState = buffer[4]; // state after request
+        status.bwPollTimeout = (buffer[3] & 0xFF) << 16;
+        status.bwPollTimeout |= (buffer[2] & 0xFF) << 8;
+        status.bwPollTimeout |= (buffer[1] & 0xFF);
+    }
+
+    // status holds a dfuDNLOAD-BUSY reply: GETSTATUS again once bwPollTimeout has passed, until done
+    public void pollWhileBusy(DfuStatus status) throws Exception {
+        pollScheduler.pollWhileBusy(this, status);
+    }
+
+    // CLRSTATUS and GETSTATUS until status reports dfuIDLE, a bounded number of times
+    public void clearToIdle(DfuStatus status) throws Exception {
+        for (int round = 0; status.bState != STATE_DFU_IDLE; round++) {
+            if (round == MAX_CLEAR_ROUNDS) {
+                throw new Exception("Device not idle after " + MAX_CLEAR_ROUNDS + " CLRSTATUS, state " + status.bState);
+            }
+            clearStatus();
+            getStatus(status);
+        }
+    }
+
+    // wTimeout is how long the device waits for the USB reset that ends DFU mode
+    public void detach(int timeout) throws Exception {
+        retryPolicy.transfer(usb, "detach", false, DFU_RequestType, DFU_DETACH, timeout, 0, null, 0, TIMEOUT_MS);
+    }
+
+    public void abort() throws Exception {
+        retryPolicy.transfer(usb, "abort", false, DFU_RequestType, DFU_ABORT, 0, 0, null, 0, TIMEOUT_MS);
+    }
+
+    // use for commands
+    public void download(byte[] data) throws Exception {
+        retryPolicy.transfer(usb, "command download", false, DFU_RequestType, DFU_DNLOAD, 0, 0, data, data.length, TIMEOUT_MS);
+    }
+
+    // use for firmware download
+    public void download(byte[] data, int nBlock) throws Exception {
+        retryPolicy.transfer(usb, "firmware download", false, DFU_RequestType, DFU_DNLOAD, nBlock, 0, data, data.length, TIMEOUT_MS);
+    }
+
+    // returns the number of bytes the device sent
+    public int upload(byte[] buffer, int length, int nBlock) throws Exception {
+        return retryPolicy.transfer(usb, "upload", false, DFU_RequestType | USB_DIR_IN, DFU_UPLOAD, nBlock, 0, buffer, length, TIMEOUT_MS);
+    }
+
+    public void selectAlternate(int interfaceNumber, int alternateSetting) throws Exception {
+        retryPolicy.transfer(usb, "selectAlternate", true, USB_RequestType_Interface, USB_REQ_SET_INTERFACE,
+                alternateSetting, interfaceNumber, null, 0, TIMEOUT_MS);
+    }
+
+    public void setAddressPointer(int Address) throws Exception {
+        byte[] buffer = new byte[5];
+        buffer[0] = CMD_SET_ADDRESS_POINTER;
+        buffer[1] = (byte) (Address & 0xFF);
+        buffer[2] = (byte) ((Address >> 8) & 0xFF);
+        buffer[3] = (byte) ((Address >> 16) & 0xFF);
+        buffer[4] = (byte) ((Address >> 24) & 0xFF);
+        download(buffer);
+    }
+
+    public void unProtectCommand() throws Exception {
+        byte[] buffer = new byte[1];
+        buffer[0] = (byte) CMD_READ_UNPROTECT;
+        download(buffer);
+    }
+
+    public void erasePageCommand(int Address) throws Exception {
+        byte[] buffer = new byte[5];
+        buffer[0] = CMD_ERASE;
+        buffer[1] = (byte) (Address & 0xFF);
+        buffer[2] = (byte) ((Address >> 8) & 0xFF);
+        buffer[3] = (byte) ((Address >> 16) & 0xFF);
+        buffer[4] = (byte) ((Address >> 24) & 0xFF);
+        download(buffer);
+    }
+
+    public void massEraseCommand() throws Exception {
+        byte[] buffer = new byte[1];
+        buffer[0] = CMD_ERASE;
+        download(buffer);
+    }
+}
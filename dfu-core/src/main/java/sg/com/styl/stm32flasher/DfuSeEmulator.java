@@ -0,0 +1,541 @@
+package sg.com.styl.stm32flasher;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * In-memory model of the STM32F042 ROM bootloader (DfuSe, AN3156) so the protocol engine can be run
+ * and timed on a host JVM. Flash follows the F0 programming rules (a half-word can only be written
+ * when erased) and every operation reports the worst case bwPollTimeout from the datasheet while
+ * actually completing in the typical time.
+ *
+ * By default time is simulated: getSimulatedNanos() adds up bus round trips and device busy time.
+ * With setRealTime(true) transfers really take that long, for wall clock measurements.
+ */
+public class DfuSeEmulator implements DfuTransport, PollScheduler.Clock {
+
+    public static final int FLASH_START = 0x08000000;
+    public static final int FLASH_SIZE = 32768;
+    public static final int FLASH_PAGE_SIZE = 1024;
+    public static final int OPTION_BYTES_START = 0x1FFFF800;
+    public static final int OPTION_BYTES_SIZE = 16;
+    public static final int SYSTEM_MEMORY_START = 0x1FFFC400;
+    public static final int SYSTEM_MEMORY_SIZE = 0x3400;
+
+    private static final int BOOTLOADER_VERSION = 0x2200;
+    private static final String[] DEVICE_STRINGS = {"STMicroelectronics", "STM32  BOOTLOADER", "FFFFFFFEFFFF"};
+
+    // STM32F042 datasheet: tPROG 53.5us typ / 60us max per half-word, tERASE and tME 20..40ms
+    private static final int PROG_HALFWORD_TYP_NS = 53500;
+    private static final int PROG_HALFWORD_MAX_NS = 60000;
+    private static final int ERASE_TYP_MS = 25;
+    private static final int ERASE_MAX_MS = 40;
+    private static final int COMMAND_POLL_MS = 1;
+
+    private static final int DFU_ATTRIBUTES = 0x0B;     // will detach, can upload, can download
+    private static final int DETACH_TIMEOUT_MS = 255;
+
+    private final String[] memoryStrings;
+    private int transferSize = 2048;
+    private DfuCapabilities capabilities;
+    private final byte[] flash;
+    private final int pageSize;     // what one page erase clears
+    private final byte[] optionBytes = new byte[OPTION_BYTES_SIZE];
+    private final byte[] systemMemory = new byte[SYSTEM_MEMORY_SIZE];
+    private boolean readProtected;
+    private boolean connected = true;
+
+    private int state = DfuProtocol.STATE_DFU_IDLE;
+    private int status = DfuProtocol.STATUS_OK;
+    private int addressPointer = FLASH_START;
+    private int alternateSetting;
+
+    // request received in dfuDNLOAD-SYNC, executed on the next GETSTATUS
+    private byte[] pendingData;
+    private int pendingBlock;
+    private int pendingResult = DfuProtocol.STATUS_OK;
+    private boolean resetAfterBusy;
+
+    private boolean realTime;
+    private long transferLatencyNanos = 1000000;    // one round trip on a full speed bus
+    private long simulatedNanos;
+    private long busyUntil;
+
+    private final int[] requestCounts = new int[256];
+    private int transferCount;
+
+    public DfuSeEmulator() {
+        this(FLASH_SIZE);
+    }
+
+    // a part with more flash than the F042, e.g. to time large images; flashSize in whole pages
+    public DfuSeEmulator(int flashSize) {
+        this(flashSize, FLASH_PAGE_SIZE);
+    }
+
+    // a part with larger pages, e.g. the 2 KB of an F072; pageSize in whole KB
+    public DfuSeEmulator(int flashSize, int pageSize) {
+        this.pageSize = pageSize;
+        flash = new byte[flashSize];
+        memoryStrings = new String[]{
+                String.format("@Internal Flash  /0x08000000/%03d*%04dKg", flashSize / pageSize, pageSize / 1024),
+                "@Option Bytes  /0x1FFFF800/01*016 e",
+        };
+        Arrays.fill(flash, (byte) 0xFF);
+        Arrays.fill(optionBytes, (byte) 0xFF);
+    }
+
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+        busyUntil = 0;
+    }
+
+    public void setTransferLatencyMicros(int micros) {
+        transferLatencyNanos = micros * 1000L;
+    }
+
+    // wTransferSize reported in the DFU functional descriptor; longer DNLOAD/UPLOAD requests stall
+    public synchronized void setTransferSize(int transferSize) {
+        this.transferSize = transferSize;
+        capabilities = null;
+    }
+
+    public synchronized void setReadProtected(boolean readProtected) {
+        this.readProtected = readProtected;
+    }
+
+    public synchronized boolean isReadProtected() {
+        return readProtected;
+    }
+
+    // bootloader comes back after a reset or a replug
+    public synchronized void reconnect() {
+        connected = true;
+        state = DfuProtocol.STATE_DFU_IDLE;
+        status = DfuProtocol.STATUS_OK;
+        addressPointer = FLASH_START;
+        alternateSetting = 0;
+        pendingData = null;
+    }
+
+    // last SET_INTERFACE; the address pointer still reaches every memory whatever the alternate
+    public synchronized int getAlternateSetting() {
+        return alternateSetting;
+    }
+
+    public synchronized byte[] readMemory(int address, int length) {
+        byte[] memory = memoryAt(address, length);
+        if (memory == null) {
+            throw new IllegalArgumentException("No memory at 0x" + Integer.toHexString(address));
+        }
+        return Arrays.copyOfRange(memory, address - baseOf(memory), address - baseOf(memory) + length);
+    }
+
+    // preload memory contents, bypassing the flash programming rules
+    public synchronized void writeMemory(int address, byte[] data) {
+        byte[] memory = memoryAt(address, data.length);
+        if (memory == null) {
+            throw new IllegalArgumentException("No memory at 0x" + Integer.toHexString(address));
+        }
+        System.arraycopy(data, 0, memory, address - baseOf(memory), data.length);
+    }
+
+    public synchronized int getTransferCount() {
+        return transferCount;
+    }
+
+    public synchronized int getTransferCount(int dfuRequest) {
+        return requestCounts[dfuRequest & 0xFF];
+    }
+
+    public synchronized long getSimulatedNanos() {
+        return simulatedNanos;
+    }
+
+    public synchronized void resetCounters() {
+        Arrays.fill(requestCounts, 0);
+        transferCount = 0;
+        simulatedNanos = 0;
+        busyUntil = 0;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public int getDeviceVersion() {
+        return BOOTLOADER_VERSION;
+    }
+
+    // device, configuration, one interface per alternate setting and the DFU functional descriptor
+    @Override
+    public synchronized byte[] getRawDescriptors() {
+        int alternates = memoryStrings.length;
+        byte[] raw = new byte[18 + 9 + 9 * alternates + 9];
+        byte[] device = {18, 0x01, 0x00, 0x02, 0, 0, 0, 64, (byte) 0x83, 0x04, 0x11, (byte) 0xDF,
+                (byte) BOOTLOADER_VERSION, (byte) (BOOTLOADER_VERSION >> 8), 1, 2, 3, 1};
+        System.arraycopy(device, 0, raw, 0, device.length);
+        int totalLength = raw.length - 18;
+        byte[] configuration = {9, 0x02, (byte) totalLength, (byte) (totalLength >> 8), 1, 1, 0, (byte) 0xC0, 50};
+        System.arraycopy(configuration, 0, raw, 18, configuration.length);
+        int offset = 27;
+        for (int alternate = 0; alternate < alternates; alternate++, offset += 9) {
+            byte[] usbInterface = {9, 0x04, 0, (byte) alternate, 0, (byte) 0xFE, 0x01, 0x02, (byte) (4 + alternate)};
+            System.arraycopy(usbInterface, 0, raw, offset, usbInterface.length);
+        }
+        byte[] functional = {9, DfuFunctionalDescriptor.TYPE, DFU_ATTRIBUTES, (byte) DETACH_TIMEOUT_MS, 0,
+                (byte) transferSize, (byte) (transferSize >> 8), 0x1A, 0x01};
+        System.arraycopy(functional, 0, raw, offset, functional.length);
+        return raw;
+    }
+
+    // read through the string descriptor requests on first use, like a real claim
+    @Override
+    public synchronized DfuCapabilities getCapabilities() {
+        if (capabilities == null) {
+            try {
+                capabilities = DfuCapabilities.read(this, null);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return capabilities;
+    }
+
+    @Override
+    public synchronized boolean release() {
+        boolean wasConnected = connected;
+        connected = false;
+        return wasConnected;
+    }
+
+    @Override
+    public synchronized int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        if (!connected) {
+            return -1;
+        }
+        transferCount++;
+        waitUntil(busyUntil);   // device NAKs everything while a flash operation runs
+        advance(transferLatencyNanos);
+
+        if ((requestType & 0x7F) != DfuProtocol.DFU_RequestType) {
+            if (requestType == 0x80 && request == 0x06) {
+                return getDescriptor(value, buffer, length);
+            }
+            if (requestType == DfuProtocol.USB_RequestType_Interface && request == DfuProtocol.USB_REQ_SET_INTERFACE) {
+                if (index != 0 || value >= memoryStrings.length) {
+                    return -1;
+                }
+                alternateSetting = value;
+                return 0;
+            }
+            return -1;
+        }
+        requestCounts[request & 0xFF]++;
+
+        switch (request) {
+            case DfuProtocol.DFU_DNLOAD:
+                return (length > transferSize) ? stall() : dnload(value, buffer, length);
+            case DfuProtocol.DFU_UPLOAD:
+                return (length > transferSize) ? stall() : upload(value, buffer, length);
+            case DfuProtocol.DFU_GETSTATUS:
+                return getStatus(buffer, length);
+            case DfuProtocol.DFU_CLRSTATUS:
+                // the ST stack accepts CLRSTATUS in any state, but outside dfuERROR it *enters* dfuERROR
+                if (state == DfuProtocol.STATE_DFU_ERROR) {
+                    state = DfuProtocol.STATE_DFU_IDLE;
+                    status = DfuProtocol.STATUS_OK;
+                } else {
+                    state = DfuProtocol.STATE_DFU_ERROR;
+                    status = DfuProtocol.STATUS_ERR_UNKNOWN;
+                }
+                return 0;
+            case DfuProtocol.DFU_GETSTATE:
+                if (buffer == null || length < 1) {
+                    return stall();
+                }
+                buffer[0] = (byte) state;
+                return 1;
+            case DfuProtocol.DFU_ABORT:
+                if (state == DfuProtocol.STATE_DFU_ERROR) {
+                    return stall();
+                }
+                state = DfuProtocol.STATE_DFU_IDLE;
+                pendingData = null;
+                return 0;
+            case DfuProtocol.DFU_DETACH:
+                return 0;
+            default:
+                return stall();
+        }
+    }
+
+    private int dnload(int blockNum, byte[] buffer, int length) {
+        if (state != DfuProtocol.STATE_DFU_IDLE && state != DfuProtocol.STATE_DFU_DOWNLOAD_IDLE) {
+            return stall();
+        }
+        if (length == 0) {
+            if (state != DfuProtocol.STATE_DFU_DOWNLOAD_IDLE) {
+                return stall();
+            }
+            state = DfuProtocol.STATE_DFU_MANIFEST_SYNC;    // leave DFU, jump to addressPointer
+            return 0;
+        }
+        if (blockNum == 1) {
+            return stall();
+        }
+        pendingData = Arrays.copyOf(buffer, length);
+        pendingBlock = blockNum;
+        state = DfuProtocol.STATE_DFU_DOWNLOAD_SYNC;
+        return length;
+    }
+
+    private int upload(int blockNum, byte[] buffer, int length) {
+        if (state != DfuProtocol.STATE_DFU_IDLE && state != DfuProtocol.STATE_DFU_UPLOAD_IDLE) {
+            return stall();
+        }
+        if (blockNum == 0) {
+            byte[] commands = {0x00, DfuProtocol.CMD_SET_ADDRESS_POINTER, DfuProtocol.CMD_ERASE,
+                    (byte) DfuProtocol.CMD_READ_UNPROTECT};
+            int n = Math.min(length, commands.length);
+            System.arraycopy(commands, 0, buffer, 0, n);
+            state = DfuProtocol.STATE_DFU_UPLOAD_IDLE;
+            return n;
+        }
+        if (blockNum == 1) {
+            return stall();
+        }
+        int address = addressPointer + (blockNum - 2) * length;
+        byte[] memory = memoryAt(address, 1);
+        if (memory == null || (readProtected && memory == flash)) {
+            state = DfuProtocol.STATE_DFU_ERROR;
+            status = readProtected ? DfuProtocol.STATUS_ERR_TARGET : DfuProtocol.STATUS_ERR_ADDRESS;
+            return -1;
+        }
+        int offset = address - baseOf(memory);
+        int n = Math.min(length, memory.length - offset);
+        System.arraycopy(memory, offset, buffer, 0, n);
+        advance(n * 1000L);     // 64 byte packets, roughly 1us per byte at full speed
+        state = DfuProtocol.STATE_DFU_UPLOAD_IDLE;
+        return n;
+    }
+
+    private int getStatus(byte[] buffer, int length) {
+        if (buffer == null || length < 6) {
+            return stall();
+        }
+        int pollTimeout = 0;
+        switch (state) {
+            case DfuProtocol.STATE_DFU_DOWNLOAD_SYNC:
+                if (pendingData != null) {
+                    pollTimeout = execute();
+                    state = DfuProtocol.STATE_DFU_DOWNLOAD_BUSY;
+                } else if (pendingResult != DfuProtocol.STATUS_OK) {
+                    state = DfuProtocol.STATE_DFU_ERROR;
+                    status = pendingResult;
+                    pendingResult = DfuProtocol.STATUS_OK;
+                } else {
+                    state = DfuProtocol.STATE_DFU_DOWNLOAD_IDLE;
+                }
+                break;
+            case DfuProtocol.STATE_DFU_MANIFEST_SYNC:
+                state = DfuProtocol.STATE_DFU_MANIFEST;
+                pollTimeout = COMMAND_POLL_MS;
+                resetAfterBusy = true;
+                break;
+        }
+        buffer[0] = (byte) status;
+        buffer[1] = (byte) (pollTimeout & 0xFF);
+        buffer[2] = (byte) ((pollTimeout >> 8) & 0xFF);
+        buffer[3] = (byte) ((pollTimeout >> 16) & 0xFF);
+        buffer[4] = (byte) state;
+        buffer[5] = 0;
+
+        // the request runs once the status stage completes
+        if (state == DfuProtocol.STATE_DFU_DOWNLOAD_BUSY) {
+            state = DfuProtocol.STATE_DFU_DOWNLOAD_SYNC;
+        }
+        if (resetAfterBusy) {
+            resetAfterBusy = false;
+            connected = false;
+        }
+        return 6;
+    }
+
+    // executes the pending DNLOAD, returns the bwPollTimeout to report
+    private int execute() {
+        byte[] data = pendingData;
+        int blockNum = pendingBlock;
+        pendingData = null;
+        pendingResult = DfuProtocol.STATUS_OK;
+
+        if (blockNum == 0) {
+            int command = data[0] & 0xFF;
+            int address = 0;
+            if (data.length == 5) {
+                address = (data[1] & 0xFF) | (data[2] & 0xFF) << 8 | (data[3] & 0xFF) << 16 | (data[4] & 0xFF) << 24;
+            }
+            if (command == DfuProtocol.CMD_SET_ADDRESS_POINTER && data.length == 5) {
+                if (readProtected) {
+                    pendingResult = DfuProtocol.STATUS_ERR_TARGET;
+                } else if (memoryAt(address, 1) == null) {
+                    pendingResult = DfuProtocol.STATUS_ERR_ADDRESS;
+                } else {
+                    addressPointer = address;
+                }
+                return busy(0, COMMAND_POLL_MS);
+            }
+            if (command == DfuProtocol.CMD_ERASE && data.length == 1) {
+                if (readProtected) {
+                    pendingResult = DfuProtocol.STATUS_ERR_TARGET;
+                } else {
+                    Arrays.fill(flash, (byte) 0xFF);
+                }
+                return busy(ERASE_TYP_MS * 1000000L, ERASE_MAX_MS);
+            }
+            if (command == DfuProtocol.CMD_ERASE && data.length == 5) {
+                if (readProtected) {
+                    pendingResult = DfuProtocol.STATUS_ERR_TARGET;
+                } else if (memoryAt(address, 1) != flash) {
+                    pendingResult = DfuProtocol.STATUS_ERR_ADDRESS;
+                } else {
+                    int page = (address - FLASH_START) / pageSize * pageSize;
+                    Arrays.fill(flash, page, page + pageSize, (byte) 0xFF);
+                }
+                return busy(ERASE_TYP_MS * 1000000L, ERASE_MAX_MS);
+            }
+            if (command == DfuProtocol.CMD_READ_UNPROTECT && data.length == 1) {
+                Arrays.fill(flash, (byte) 0xFF);
+                readProtected = false;
+                resetAfterBusy = true;
+                return busy(ERASE_TYP_MS * 1000000L, ERASE_MAX_MS);
+            }
+            pendingResult = DfuProtocol.STATUS_ERR_STALLEDPKT;
+            return busy(0, COMMAND_POLL_MS);
+        }
+
+        int halfWords = (data.length + 1) / 2;
+        int pollTimeout = (int) ((halfWords * (long) PROG_HALFWORD_MAX_NS + 999999) / 1000000);
+        long busyNanos = halfWords * (long) PROG_HALFWORD_TYP_NS;
+        int address = addressPointer + (blockNum - 2) * data.length;
+        if (readProtected) {
+            pendingResult = DfuProtocol.STATUS_ERR_TARGET;
+            return busy(0, pollTimeout);
+        }
+        if (memoryAt(address, data.length) != flash) {
+            pendingResult = DfuProtocol.STATUS_ERR_ADDRESS;
+            return busy(0, pollTimeout);
+        }
+        int offset = address - FLASH_START;
+        for (int i = 0; i < data.length; i += 2) {
+            boolean odd = (i + 1 == data.length);
+            int current = (flash[offset + i] & 0xFF) | (odd ? 0xFF00 : (flash[offset + i + 1] & 0xFF) << 8);
+            int next = (data[i] & 0xFF) | (odd ? 0xFF00 : (data[i + 1] & 0xFF) << 8);
+            if (current != 0xFFFF && next != 0x0000) {
+                pendingResult = DfuProtocol.STATUS_ERR_PROG;     // PGERR, location not erased
+                break;
+            }
+            flash[offset + i] = (byte) next;
+            if (!odd) {
+                flash[offset + i + 1] = (byte) (next >> 8);
+            }
+        }
+        return busy(busyNanos, pollTimeout);
+    }
+
+    private int busy(long actualNanos, int reportedMillis) {
+        busyUntil = now() + actualNanos;
+        return reportedMillis;
+    }
+
+    private int stall() {
+        state = DfuProtocol.STATE_DFU_ERROR;
+        status = DfuProtocol.STATUS_ERR_STALLEDPKT;
+        return -1;
+    }
+
+    private int getDescriptor(int value, byte[] buffer, int length) {
+        int type = (value >> 8) & 0xFF;
+        int index = value & 0xFF;
+        if (type != 0x03) {
+            return -1;
+        }
+        byte[] descriptor;
+        if (index == 0) {
+            descriptor = new byte[]{4, 0x03, 0x09, 0x04};   // LANGID en-US
+        } else if (index >= 1 && index <= DEVICE_STRINGS.length || index >= 4 && index - 4 < memoryStrings.length) {
+            String string = (index < 4) ? DEVICE_STRINGS[index - 1] : memoryStrings[index - 4];
+            byte[] text = string.getBytes(Charset.forName("UTF-16LE"));
+            descriptor = new byte[text.length + 2];
+            descriptor[0] = (byte) descriptor.length;
+            descriptor[1] = 0x03;
+            System.arraycopy(text, 0, descriptor, 2, text.length);
+        } else {
+            return -1;
+        }
+        int n = Math.min(length, descriptor.length);
+        System.arraycopy(descriptor, 0, buffer, 0, n);
+        return n;
+    }
+
+    private byte[] memoryAt(int address, int length) {
+        byte[][] memories = {flash, optionBytes, systemMemory};
+        for (byte[] memory : memories) {
+            long offset = (long) address - baseOf(memory);
+            if (offset >= 0 && offset + length <= memory.length) {
+                return memory;
+            }
+        }
+        return null;
+    }
+
+    private int baseOf(byte[] memory) {
+        if (memory == flash) {
+            return FLASH_START;
+        }
+        return (memory == optionBytes) ? OPTION_BYTES_START : SYSTEM_MEMORY_START;
+    }
+
+    // the host waits on the same clock as the device: simulated, or real with setRealTime(true)
+    @Override
+    public synchronized long nanoTime() {
+        return now();
+    }
+
+    @Override
+    public void parkNanos(long nanos) {
+        if (realTime) {
+            LockSupport.parkNanos(nanos);
+        } else {
+            synchronized (this) {
+                simulatedNanos += nanos;
+            }
+        }
+    }
+
+    private long now() {
+        return realTime ? System.nanoTime() : simulatedNanos;
+    }
+
+    private void advance(long nanos) {
+        if (realTime) {
+            waitUntil(System.nanoTime() + nanos);
+        } else {
+            simulatedNanos += nanos;
+        }
+    }
+
+    private void waitUntil(long deadline) {
+        if (!realTime) {
+            simulatedNanos = Math.max(simulatedNanos, deadline);
+            return;
+        }
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/*
+ * DfuSe file (UM0391). parse() checks the CRC in one streaming pass and walks the prefix, every
+ * target and element header and the suffix, noting where each element's data sits in the file.
+ * The elements of all targets are then served through FirmwareImage as one address space.
+ */
+public class DfuSeReader extends SegmentedImage {
+
+    private static final int PREFIX_SIZE = 11;
+    private static final int TARGET_PREFIX_SIZE = 274;
+    private static final int TARGET_NAME_OFFSET = 11;   // within the target prefix
+    private static final int TARGET_NAME_LENGTH = 255;
+    private static final int ELEMENT_HEADER_SIZE = 8;
+    private static final int SUFFIX_SIZE = 16;
+    private static final int CRC_CHUNK = 16384;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    public DfuSeReader(FileChannel channel) throws IOException {
+        super(channel);
+    }
+
+    @Override
+    public void parse(DfuFile dfuFile) throws Exception {
+        if (size < PREFIX_SIZE + TARGET_PREFIX_SIZE + ELEMENT_HEADER_SIZE + SUFFIX_SIZE) {
+            throw new FirmwareFormatException("File too short");
+        }
+        byte[] suffix = readBytes(size - SUFFIX_SIZE, SUFFIX_SIZE);
+        if (getInt(suffix, 12) != calculateCrc()) {
+            throw new FirmwareFormatException("CRC Failed");
+        }
+
+        // Check the prefix
+        byte[] prefix = readBytes(0, PREFIX_SIZE);
+        if (!"DfuSe".equals(new String(prefix, 0, 5, ASCII))) {
+            throw new FirmwareFormatException("File signature error");
+        }
+        // check dfuSe Version
+        if (prefix[5] != 1) {
+            throw new FirmwareFormatException("DFU file version must be 1");
+        }
+
+        // Check the suffix
+        if (!"UFD".equals(new String(suffix, 8, 3, ASCII))) {
+            throw new FirmwareFormatException("File suffix error");
+        }
+        if ((suffix[11] != 16) || (suffix[6] != 0x1A) || (suffix[7] != 0x01)) {
+            throw new FirmwareFormatException("File number error");
+        }
+
+        // Walk every target and element once and note where each element's data sits in the file
+        int targets = prefix[10] & 0xFF;
+        if (targets == 0) {
+            throw new FirmwareFormatException("No Target in File");
+        }
+        long dataEnd = size - SUFFIX_SIZE;
+        long position = PREFIX_SIZE;
+        clearSegments();
+        dfuFile.NumElements = 0;
+        for (int t = 0; t < targets; t++) {
+            if (position + TARGET_PREFIX_SIZE > dataEnd) {
+                throw new FirmwareFormatException("Target exceeds file size");
+            }
+            byte[] target = readBytes(position, TARGET_PREFIX_SIZE);
+            if (!"Target".equals(new String(target, 0, 6, ASCII))) {
+                throw new FirmwareFormatException("Target signature error");
+            }
+            int targetSize = getInt(target, TARGET_NAME_OFFSET + TARGET_NAME_LENGTH);
+            int numElements = getInt(target, TARGET_NAME_OFFSET + TARGET_NAME_LENGTH + 4);
+            if (t == 0) {
+                if (0 == target[TARGET_NAME_OFFSET]) {
+                    throw new FirmwareFormatException("No Target Name Exist in File");
+                }
+                int nameLength = 0;
+                while (nameLength < TARGET_NAME_LENGTH && target[TARGET_NAME_OFFSET + nameLength] != 0) {
+                    nameLength++;
+                }
+                dfuFile.TargetName = new String(target, TARGET_NAME_OFFSET, nameLength, ASCII);
+                dfuFile.TargetSize = targetSize;
+            }
+            position += TARGET_PREFIX_SIZE;
+            long targetEnd = position + (targetSize & 0xFFFFFFFFL);
+            if (targetEnd > dataEnd) {
+                throw new FirmwareFormatException("Target exceeds file size");
+            }
+            for (int e = 0; e < numElements; e++) {
+                if (position + ELEMENT_HEADER_SIZE > targetEnd) {
+                    throw new FirmwareFormatException("Element exceeds target size");
+                }
+                byte[] element = readBytes(position, ELEMENT_HEADER_SIZE);
+                position += ELEMENT_HEADER_SIZE;
+                int address = getInt(element, 0);
+                int length = getInt(element, 4);
+                if (position + (length & 0xFFFFFFFFL) > targetEnd) {
+                    throw new FirmwareFormatException("Element exceeds target size");
+                }
+                addSegment(address, length, position);
+                position += length;
+            }
+            if (position != targetEnd) {
+                throw new FirmwareFormatException("Target size mismatch");
+            }
+            dfuFile.NumElements += numElements;
+        }
+        dfuFile.NumTargets = targets;
+
+        if (layout() < 512) {
+            throw new FirmwareFormatException("Element Size is too small");
+        }
+        dfuFile.elementStartAddress = getAddress();
+        dfuFile.elementLength = getLength();
+
+        // Get VID, PID and version number
+        dfuFile.VID = getShort(suffix, 4);
+        dfuFile.PID = getShort(suffix, 2);
+        dfuFile.BootVersion = getShort(suffix, 0);
+        dfuFile.fileSize = size;
+        dfuFile.image = this;
+    }
+
+    // stored CRC covers everything but its own 4 bytes, kept as the register without final inversion
+    private int calculateCrc() throws Exception {
+        ByteBuffer mapped = view(0, size - 4);
+        if (mapped != null) {
+            return ~Crc32.compute(mapped);
+        }
+        byte[] chunk = new byte[CRC_CHUNK];
+        Crc32 crc = new Crc32();
+        long end = size - 4;
+        for (long position = 0; position < end; ) {
+            int n = (int) Math.min(chunk.length, end - position);
+            readFile(position, chunk, 0, n);
+            crc.update(chunk, 0, n);
+            position += n;
+        }
+        return ~crc.finish();
+    }
+}
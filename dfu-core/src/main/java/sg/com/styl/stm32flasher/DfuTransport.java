@@ -0,0 +1,22 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * Control pipe of a device running the ST DfuSe bootloader.
+ * STM32F042UsbManager talks to real hardware, DfuSeEmulator to a simulated bootloader on the host.
+ */
+public interface DfuTransport {
+    boolean isConnected();
+
+    int getDeviceVersion();     // bcdDevice of the bootloader
+
+    // device and configuration descriptors as returned by UsbDeviceConnection.getRawDescriptors, or null
+    byte[] getRawDescriptors();
+
+    // descriptors parsed when the interface was claimed, or null if they could not be read
+    DfuCapabilities getCapabilities();
+
+    // same contract as UsbDeviceConnection.controlTransfer: bytes transferred, or negative on failure/stall
+    int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout);
+
+    boolean release();
+}
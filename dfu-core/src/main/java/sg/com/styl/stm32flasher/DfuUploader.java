@@ -0,0 +1,55 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * Reads memory back with DFU_UPLOAD. The address pointer is set through the DfuDownloader,
+ * consecutive reads of the same size then just continue the wBlockNum sequence.
+ */
+public class DfuUploader {
+
+    private final DfuProtocol dfu;
+    private final DfuDownloader downloader;
+
+    private int baseAddress;
+    private int nextBlockNumber;
+    private int transferSize;
+
+    public DfuUploader(DfuProtocol dfu, DfuDownloader downloader) {
+        this.dfu = dfu;
+        this.downloader = downloader;
+    }
+
+    // reads length bytes at address into buffer, length must not exceed the device transfer size
+    public void read(int address, byte[] buffer, int length) throws Exception {
+        DfuDownloader.checkCancelled(address);
+        if (nextBlockNumber == 0 || transferSize != length
+                || address != baseAddress + (nextBlockNumber - 2) * length) {
+            downloader.setAddress(address);
+            downloader.finish();    // UPLOAD is only accepted from dfuIDLE
+            baseAddress = address;
+            nextBlockNumber = 2;
+            transferSize = length;
+        }
+        downloader.invalidate();    // device is leaving dfuIDLE
+        int len;
+        try {
+            len = dfu.upload(buffer, length, nextBlockNumber);
+        } catch (Exception e) {
+            nextBlockNumber = 0;
+            throw e;
+        }
+        if (len != length) {
+            finish();
+            throw new Exception("Short upload at 0x" + Integer.toHexString(address) + ": " + len + " of " + length);
+        }
+        nextBlockNumber++;
+    }
+
+    // back to dfuIDLE
+    public void finish() throws Exception {
+        if (nextBlockNumber != 0) {
+            nextBlockNumber = 0;
+            dfu.abort();
+            downloader.markIdle();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/*
+ * 32-bit little-endian ELF executable. Every PT_LOAD program header with file data becomes a
+ * segment at its physical (load) address, so initialised data is placed where the startup code
+ * copies it from. Sections and symbols are never read.
+ */
+public class ElfReader extends SegmentedImage {
+
+    private static final int EHDR_SIZE = 52;
+    private static final int PHDR_SIZE = 32;
+    private static final int ELFCLASS32 = 1;
+    private static final int ELFDATA2LSB = 1;
+    private static final int PT_LOAD = 1;
+
+    public ElfReader(FileChannel channel) throws IOException {
+        super(channel);
+    }
+
+    @Override
+    public void parse(DfuFile dfuFile) throws Exception {
+        if (size < EHDR_SIZE) {
+            throw new FirmwareFormatException("File too short");
+        }
+        byte[] header = readBytes(0, EHDR_SIZE);
+        if (header[0] != 0x7F || header[1] != 'E' || header[2] != 'L' || header[3] != 'F') {
+            throw new FirmwareFormatException("File signature error");
+        }
+        if (header[4] != ELFCLASS32 || header[5] != ELFDATA2LSB) {
+            throw new FirmwareFormatException("Only 32-bit little-endian ELF files are supported");
+        }
+        long phoff = getInt(header, 28) & 0xFFFFFFFFL;
+        int phentsize = getShort(header, 42);
+        int phnum = getShort(header, 44);
+        if (phnum == 0 || phentsize < PHDR_SIZE || phoff + (long) phnum * phentsize > size) {
+            throw new FirmwareFormatException("Program header table error");
+        }
+
+        clearSegments();
+        byte[] programHeader = new byte[PHDR_SIZE];
+        for (int i = 0; i < phnum; i++) {
+            readFile(phoff + (long) i * phentsize, programHeader, 0, PHDR_SIZE);
+            if (getInt(programHeader, 0) != PT_LOAD) {
+                continue;
+            }
+            long offset = getInt(programHeader, 4) & 0xFFFFFFFFL;
+            int physicalAddress = getInt(programHeader, 12);
+            int fileSize = getInt(programHeader, 16);     // memory beyond this is .bss, not stored in flash
+            addSegment(physicalAddress, fileSize, offset);
+        }
+        long dataLength = layout();
+
+        dfuFile.TargetName = "ELF";
+        dfuFile.TargetSize = (int) dataLength;
+        dfuFile.NumTargets = 1;
+        dfuFile.NumElements = getSegmentCount();
+        dfuFile.elementStartAddress = getAddress();
+        dfuFile.elementLength = getLength();
+        dfuFile.VID = ANY_ID;
+        dfuFile.PID = ANY_ID;
+        dfuFile.BootVersion = ANY_ID;
+        dfuFile.fileSize = size;
+        dfuFile.image = this;
+    }
+}
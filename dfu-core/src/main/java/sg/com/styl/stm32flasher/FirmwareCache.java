@@ -0,0 +1,151 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Parsed and validated firmware kept in memory, so programming the same image again skips reading,
+ * CRC checking and parsing the file. Files are keyed by path, size and modification time,
+ * content:// uris by a SHA-256 of their bytes. Each entry holds the header fields, the image
+ * regions and the devices the image was found compatible with. The block size is left out, it
+ * belongs to the device being programmed rather than the image.
+ * Least recently used entries are evicted once the byte budget is exceeded.
+ */
+public class FirmwareCache {
+
+    private static final int ENTRY_OVERHEAD = 512;  // header fields and bookkeeping, roughly
+
+    private static class Entry {
+        final DfuFile dfuFile;
+        final long bytes;
+        final Set<String> compatibleDevices = new HashSet<>();
+
+        Entry(DfuFile dfuFile, long bytes) {
+            this.dfuFile = dfuFile;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long byteBudget;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private int hits;
+    private int misses;
+
+    public FirmwareCache(long byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    public static String fileKey(File file) {
+        return "file:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
+    public static String contentKey(FileChannel channel) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        long position = 0;
+        int n;
+        while ((n = channel.read(buffer, position)) >= 0) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+            position += n;
+        }
+        StringBuilder key = new StringBuilder("sha256:");
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b & 0xFF));
+        }
+        return key.toString();
+    }
+
+    // fills dfuFile from the cache, the file path and block size are kept. Returns false on a miss
+    public synchronized boolean load(String key, DfuFile dfuFile) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return false;
+        }
+        hits++;
+        String filePath = dfuFile.filePath;
+        copy(entry.dfuFile, dfuFile);
+        dfuFile.filePath = filePath;
+        return true;
+    }
+
+    public synchronized boolean isCompatible(String key, String device) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.compatibleDevices.contains(device);
+    }
+
+    // keeps a copy of a parsed dfuFile that passed the compatibility check for device
+    public synchronized void put(String key, DfuFile dfuFile, String device) throws IOException, FirmwareFormatException {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            SparseImage image = SparseImage.copyOf(dfuFile.image);
+            long size = image.getDataLength() + ENTRY_OVERHEAD;
+            if (size > byteBudget) {
+                return;
+            }
+            DfuFile copy = new DfuFile();
+            copy(dfuFile, copy);
+            copy.image = image;
+            entry = new Entry(copy, size);
+            entries.put(key, entry);
+            bytes += size;
+            evict();
+        }
+        entry.compatibleDevices.add(device);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > byteBudget && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+        }
+    }
+
+    private static void copy(DfuFile from, DfuFile to) {
+        to.filePath = from.filePath;
+        to.image = from.image;
+        to.fileSize = from.fileSize;
+        to.PID = from.PID;
+        to.VID = from.VID;
+        to.BootVersion = from.BootVersion;
+        to.elementStartAddress = from.elementStartAddress;
+        to.elementLength = from.elementLength;
+        to.TargetName = from.TargetName;
+        to.TargetSize = from.TargetSize;
+        to.NumTargets = from.NumTargets;
+        to.NumElements = from.NumElements;
+    }
+}
@@ -0,0 +1,9 @@
+package sg.com.styl.stm32flasher;
+
+public class FirmwareFormatException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public FirmwareFormatException(String message) {
+        super(message);
+    }
+}
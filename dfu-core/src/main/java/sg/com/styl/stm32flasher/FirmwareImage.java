@@ -0,0 +1,19 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/*
+ * Flash contents of a firmware file, read on demand so the whole file never has to sit in memory.
+ */
+public interface FirmwareImage extends Closeable {
+    int getAddress();   // flash address of the first byte
+
+    int getLength();    // from the first to the last byte, including gaps between regions
+
+    List<ImageRegion> getRegions();     // sorted by address, touching regions joined
+
+    // copies the bytes for [address, address + length) into buffer, bytes outside the image read as 0xFF
+    void read(int address, byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,11 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * A firmware file format. parse() checks the file and fills in the DfuFile, after which the
+ * flash contents are served through FirmwareImage.
+ */
+public interface FirmwareReader extends FirmwareImage {
+    int ANY_ID = 0xFFFF;    // VID/PID/bcdDevice of formats that do not name a device, as in a DFU suffix
+
+    void parse(DfuFile dfuFile) throws Exception;
+}
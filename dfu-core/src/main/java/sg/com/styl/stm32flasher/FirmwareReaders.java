@@ -0,0 +1,48 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Picks the reader for a firmware file from its first bytes, so content:// uris without a file
+ * name work too. Anything that is not DfuSe, ELF or Intel HEX is taken as a raw binary.
+ */
+public class FirmwareReaders {
+
+    public static FirmwareReader open(FileChannel channel, int binaryAddress) throws IOException {
+        byte[] head = new byte[9];
+        ByteBuffer buffer = ByteBuffer.wrap(head);
+        int length = 0;
+        while (length < head.length) {
+            int n = channel.read(buffer, length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        if (length >= 5 && head[0] == 'D' && head[1] == 'f' && head[2] == 'u' && head[3] == 'S' && head[4] == 'e') {
+            return new DfuSeReader(channel);
+        }
+        if (length >= 4 && head[0] == 0x7F && head[1] == 'E' && head[2] == 'L' && head[3] == 'F') {
+            return new ElfReader(channel);
+        }
+        if (length == head.length && isHexRecordStart(head)) {
+            return new IntelHexReader(channel);
+        }
+        return new BinaryReader(channel, binaryAddress);
+    }
+
+    // ':' and the byte count, address and type of the first record, all hex digits
+    private static boolean isHexRecordStart(byte[] head) {
+        if (head[0] != ':') {
+            return false;
+        }
+        for (int i = 1; i < head.length; i++) {
+            if (Character.digit(head[i], 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,244 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Reads memory back with DFU_UPLOAD straight into a file, one transfer-size block at a time, so a
+ * dump never sits in memory whole. BIN is the raw bytes with gaps between regions filled with 0xFF,
+ * DFUSE a one-target DfuSe file (UM0391) that DfuSeReader and DfuSe Demo can program back.
+ * The header sizes are known before the first block, so both formats are written in one pass
+ * and their CRCs updated as the blocks go out.
+ */
+public class FlashDumper {
+
+    public enum Format {BIN, DFUSE}
+
+    public interface Listener {
+        void onBlockRead(int address, long bytesDone, long bytesTotal);
+    }
+
+    private static final int PREFIX_SIZE = 11;
+    private static final int TARGET_PREFIX_SIZE = 274;
+    private static final int TARGET_NAME_LENGTH = 255;
+    private static final int ELEMENT_HEADER_SIZE = 8;
+    private static final int SUFFIX_SIZE = 16;
+    private static final int MAX_BIN_GAP = 1 << 20;     // further apart only a DfuSe file makes sense
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final DfuProtocol dfu;
+    private final int blockSize;
+    private Listener listener;
+
+    private final Crc32 dataCrc = new Crc32();
+    private final Crc32 fileCrc = new Crc32();
+    private int crc;
+    private long bytesRead;
+
+    public FlashDumper(DfuProtocol dfu, int blockSize) {
+        this.dfu = dfu;
+        this.blockSize = blockSize;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // CRC-32 of the memory read by the last dump, gap filling and file headers not included
+    public int getCrc() {
+        return crc;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    // the readable sectors of a layout, adjacent ones joined
+    public static List<ImageRegion> readableRegions(MemoryLayout layout) {
+        List<ImageRegion> regions = new ArrayList<>();
+        int start = 0;
+        long end = -1;
+        for (MemoryLayout.Sector sector : layout.getSectors()) {
+            if (!sector.isReadable()) {
+                continue;
+            }
+            if (sector.getAddress() != end) {
+                if (end >= 0) {
+                    regions.add(new ImageRegion(start, (int) (end - (start & 0xFFFFFFFFL))));
+                }
+                start = sector.getAddress();
+            }
+            end = sector.getEnd();
+        }
+        if (end >= 0) {
+            regions.add(new ImageRegion(start, (int) (end - (start & 0xFFFFFFFFL))));
+        }
+        return regions;
+    }
+
+    // everything readable behind one alternate setting, named after its layout in a DfuSe file
+    public long dump(DfuCapabilities.Alternate alternate, FileChannel out, Format format) throws Exception {
+        MemoryLayout layout = alternate.getLayout();
+        if (layout == null) {
+            throw new Exception("Alternate " + alternate.getAlternateSetting() + " has no memory layout: " + alternate.getName());
+        }
+        return dump(readableRegions(layout), alternate.getInterfaceNumber(), alternate.getAlternateSetting(),
+                layout.getName(), out, format);
+    }
+
+    // regions in address order; writes from the channel's position on, returns the bytes written
+    public long dump(List<ImageRegion> regions, int interfaceNumber, int alternateSetting, String targetName,
+                     FileChannel out, Format format) throws Exception {
+        if (regions.isEmpty()) {
+            throw new Exception("Nothing to dump");
+        }
+        long dataSize = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            ImageRegion region = regions.get(i);
+            dataSize += region.getLength();
+            if (i > 0) {
+                long gap = (region.getAddress() & 0xFFFFFFFFL) - (regions.get(i - 1).getEnd() & 0xFFFFFFFFL);
+                if (gap < 0) {
+                    throw new Exception("Regions overlap or are out of order at 0x" + Integer.toHexString(region.getAddress()));
+                }
+                if (format == Format.BIN) {
+                    if (gap > MAX_BIN_GAP) {
+                        throw new Exception("Regions 0x" + Integer.toHexString(regions.get(i - 1).getEnd()) + " to 0x"
+                                + Integer.toHexString(region.getAddress()) + " are too far apart for a BIN file, dump to DfuSe");
+                    }
+                    dataSize += gap;
+                }
+            }
+        }
+        bytesRead = 0;
+        fileCrc.finish();   // starts over
+        long fileSize = dataSize;
+        if (format == Format.DFUSE) {
+            long targetSize = dataSize + regions.size() * (long) ELEMENT_HEADER_SIZE;
+            fileSize = PREFIX_SIZE + TARGET_PREFIX_SIZE + targetSize + SUFFIX_SIZE;
+            if (fileSize > 0xFFFFFFFFL) {
+                throw new Exception("Dump too large for a DfuSe file");
+            }
+            write(out, prefix(fileSize - SUFFIX_SIZE));
+            write(out, targetPrefix(alternateSetting, targetName, targetSize, regions.size()));
+        }
+
+        DfuUploader uploader = new DfuUploader(dfu, new DfuDownloader(dfu));
+        byte[] block = new byte[blockSize];
+        long memorySize = dataSize - (format == Format.BIN ? gaps(regions) : 0);
+        boolean selected = false;
+        try {
+            if (alternateSetting != 0) {
+                dfu.selectAlternate(interfaceNumber, alternateSetting);
+                selected = true;
+            }
+            ImageRegion previous = null;
+            for (ImageRegion region : regions) {
+                if (format == Format.DFUSE) {
+                    ByteBuffer element = ByteBuffer.allocate(ELEMENT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                    element.putInt(region.getAddress()).putInt(region.getLength()).flip();
+                    write(out, element);
+                } else if (previous != null) {
+                    fill(out, block, (region.getAddress() & 0xFFFFFFFFL) - (previous.getEnd() & 0xFFFFFFFFL));
+                }
+                for (int done = 0; done < region.getLength(); ) {
+                    int address = region.getAddress() + done;
+                    int size = Math.min(blockSize, region.getLength() - done);
+                    uploader.read(address, block, size);
+                    dataCrc.update(block, 0, size);
+                    write(out, ByteBuffer.wrap(block, 0, size));
+                    done += size;
+                    bytesRead += size;
+                    if (listener != null) {
+                        listener.onBlockRead(address, bytesRead, memorySize);
+                    }
+                }
+                previous = region;
+            }
+        } finally {
+            crc = dataCrc.finish();
+            try {
+                uploader.finish();
+            } finally {
+                if (selected) {
+                    dfu.selectAlternate(interfaceNumber, 0);   // the rest of the flasher works on alternate 0
+                }
+            }
+        }
+
+        if (format == Format.DFUSE) {
+            write(out, suffix(dfu.getTransport().getCapabilities()));
+            // stored CRC covers everything but its own 4 bytes, kept as the register without final inversion
+            ByteBuffer stored = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            stored.putInt(~fileCrc.finish()).flip();
+            writeFully(out, stored);
+        }
+        return fileSize;
+    }
+
+    private static long gaps(List<ImageRegion> regions) {
+        long gaps = 0;
+        for (int i = 1; i < regions.size(); i++) {
+            gaps += (regions.get(i).getAddress() & 0xFFFFFFFFL) - (regions.get(i - 1).getEnd() & 0xFFFFFFFFL);
+        }
+        return gaps;
+    }
+
+    private static ByteBuffer prefix(long imageSize) {
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        prefix.put("DfuSe".getBytes(ASCII)).put((byte) 1).putInt((int) imageSize).put((byte) 1).flip();
+        return prefix;
+    }
+
+    private static ByteBuffer targetPrefix(int alternateSetting, String name, long targetSize, int elements) {
+        ByteBuffer target = ByteBuffer.allocate(TARGET_PREFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        target.put("Target".getBytes(ASCII)).put((byte) alternateSetting);
+        byte[] nameBytes = (name == null || name.isEmpty() ? "ST..." : name).getBytes(ASCII);
+        target.putInt(1);   // bTargetNamed
+        target.put(Arrays.copyOf(nameBytes, TARGET_NAME_LENGTH));
+        target.putInt((int) targetSize).putInt(elements).flip();
+        return target;
+    }
+
+    // bcdDevice, PID and VID of the device when known, 0xFFFF (any) otherwise
+    private static ByteBuffer suffix(DfuCapabilities capabilities) {
+        ByteBuffer suffix = ByteBuffer.allocate(SUFFIX_SIZE - 4).order(ByteOrder.LITTLE_ENDIAN);
+        if (capabilities != null) {
+            suffix.putShort((short) capabilities.getDeviceVersion())
+                    .putShort((short) capabilities.getProductId())
+                    .putShort((short) capabilities.getVendorId());
+        } else {
+            suffix.putShort((short) 0xFFFF).putShort((short) 0xFFFF).putShort((short) 0xFFFF);
+        }
+        suffix.putShort((short) 0x011A).put("UFD".getBytes(ASCII)).put((byte) SUFFIX_SIZE).flip();
+        return suffix;
+    }
+
+    // everything but the stored CRC goes through here
+    private void write(FileChannel out, ByteBuffer data) throws IOException {
+        fileCrc.update(data.duplicate());
+        writeFully(out, data);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+
+    private void fill(FileChannel out, byte[] block, long length) throws IOException {
+        Arrays.fill(block, (byte) 0xFF);
+        while (length > 0) {
+            int n = (int) Math.min(block.length, length);
+            write(out, ByteBuffer.wrap(block, 0, n));
+            length -= n;
+        }
+    }
+}
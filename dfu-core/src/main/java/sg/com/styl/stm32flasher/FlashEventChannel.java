@@ -0,0 +1,100 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Carries log lines and progress from the job threads to the UI. Events are not delivered one by
+ * one: at most one drain per frame is scheduled, which hands over the lines logged since the last
+ * drain in one batch and only the latest progress value. If the UI falls behind, the oldest
+ * pending lines are dropped and replaced by a single "lines dropped" note.
+ */
+public class FlashEventChannel {
+
+    public static final long FRAME_MILLIS = 16;
+
+    private static final int NO_PROGRESS = -1;
+
+    public interface Listener {
+        // called by the dispatcher, i.e. on the main thread
+        void onLog(List<String> lines);
+
+        void onProgress(int value);
+    }
+
+    public interface Dispatcher {
+        void dispatch(Runnable drain, long delayMillis);
+    }
+
+    private final Dispatcher dispatcher;
+    private final Listener listener;
+    private final int maxPending;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final AtomicInteger progress = new AtomicInteger(NO_PROGRESS);
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long lastDrainNanos;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    public FlashEventChannel(Dispatcher dispatcher, Listener listener, int maxPending) {
+        this.dispatcher = dispatcher;
+        this.listener = listener;
+        this.maxPending = maxPending;
+    }
+
+    public void log(String text) {
+        pending.add(text);
+        if (pendingCount.incrementAndGet() > maxPending && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+        schedule();
+    }
+
+    public void progress(int value) {
+        progress.set(value);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            long sinceDrain = (System.nanoTime() - lastDrainNanos) / 1000000;
+            dispatcher.dispatch(drain, Math.max(0, FRAME_MILLIS - sinceDrain));
+        }
+    }
+
+    void drain() {
+        // cleared first, events arriving from now on schedule the next drain
+        scheduled.set(false);
+        lastDrainNanos = System.nanoTime();
+
+        int value = progress.getAndSet(NO_PROGRESS);
+        if (value != NO_PROGRESS) {
+            listener.onProgress(value);
+        }
+        List<String> lines = new ArrayList<>();
+        int skipped = dropped.getAndSet(0);
+        if (skipped > 0) {
+            lines.add("... " + skipped + " lines dropped");
+        }
+        String line;
+        while ((line = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            lines.add(line);
+        }
+        if (!lines.isEmpty()) {
+            listener.onLog(lines);
+        }
+    }
+}
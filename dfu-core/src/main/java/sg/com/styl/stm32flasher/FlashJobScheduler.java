@@ -0,0 +1,243 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Runs flash jobs with one I/O thread per device, so jobs for a device run one after the other
+ * and never interleave their control transfers, while different devices run side by side.
+ * submit() returns a Future; cancelling it with mayInterruptIfRunning stops the job at the next
+ * block boundary (see DfuDownloader.checkCancelled), after which the device is brought back
+ * to dfuIDLE. Unlike a FutureTask, a cancelled job is only done once it has really stopped and
+ * the device is idle, and get() then returns a cancelled Result with the timings.
+ */
+public class FlashJobScheduler {
+
+    public interface Job<T> {
+        // dfu is null for jobs submitted without a transport
+        T run(DfuProtocol dfu) throws Exception;
+    }
+
+    public static class Result<T> {
+        private final String device;
+        private final T value;
+        private final long queuedMillis;
+        private final long runMillis;
+        private final boolean cancelled;
+
+        Result(String device, T value, long queuedMillis, long runMillis, boolean cancelled) {
+            this.device = device;
+            this.value = value;
+            this.queuedMillis = queuedMillis;
+            this.runMillis = runMillis;
+            this.cancelled = cancelled;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        // time spent waiting behind earlier jobs of the same device
+        public long getQueuedMillis() {
+            return queuedMillis;
+        }
+
+        public long getRunMillis() {
+            return runMillis;
+        }
+
+        // the job was cancelled; the value is null unless it still got to return one
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final Map<String, ExecutorService> workers = new HashMap<>();
+
+    public <T> Future<Result<T>> submit(String device, DfuTransport transport, Job<T> job) {
+        JobFuture<T> future = new JobFuture<>(device, transport, job);
+        worker(device).execute(future);
+        return future;
+    }
+
+    // cancels a job and waits until it has stopped, interrupts of the caller are kept for later.
+    // Returns null if the job failed before the cancel reached it
+    public static <T> Result<T> cancelAndWait(Future<Result<T>> job) {
+        job.cancel(true);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return job.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return null;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // waits for nothing, running jobs are interrupted and queued ones come back cancelled
+    public synchronized void shutdown() {
+        for (ExecutorService worker : workers.values()) {
+            for (Runnable queued : worker.shutdownNow()) {
+                ((JobFuture<?>) queued).skip();
+            }
+        }
+        workers.clear();
+    }
+
+    private synchronized ExecutorService worker(final String device) {
+        ExecutorService worker = workers.get(device);
+        if (worker == null) {
+            worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "dfu-" + device);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            workers.put(device, worker);
+        }
+        return worker;
+    }
+
+    private static class JobFuture<T> implements Future<Result<T>>, Runnable {
+        private final String device;
+        private final DfuTransport transport;
+        private final Job<T> job;
+        private final long queued = System.nanoTime();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // guarded by this
+        private Thread runner;
+        private boolean cancelled;
+        private Result<T> result;
+        private Throwable error;
+
+        JobFuture(String device, DfuTransport transport, Job<T> job) {
+            this.device = device;
+            this.transport = transport;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            synchronized (this) {
+                if (cancelled) {
+                    finish(null, null, start, start);
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            DfuProtocol dfu = (transport != null) ? new DfuProtocol(transport) : null;
+            T value = null;
+            Throwable failure = null;
+            try {
+                value = job.run(dfu);
+            } catch (Throwable e) {
+                failure = e;
+            }
+            synchronized (this) {
+                runner = null;
+            }
+            Thread.interrupted();   // a late cancel must not reach the clean up or the next job
+            if (failure != null) {
+                recover(dfu);
+            }
+            finish(value, failure, start, System.nanoTime());
+        }
+
+        // never run, the worker was shut down
+        void skip() {
+            synchronized (this) {
+                cancelled = true;
+            }
+            long now = System.nanoTime();
+            finish(null, null, now, now);
+        }
+
+        private synchronized void finish(T value, Throwable failure, long start, long end) {
+            if (failure == null || cancelled) {
+                result = new Result<>(device, value, (start - queued) / 1000000, (end - start) / 1000000, cancelled);
+            } else {
+                error = failure;
+            }
+            done.countDown();
+        }
+
+        @Override
+        public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+            if (cancelled || isDone()) {
+                return false;
+            }
+            cancelled = true;
+            if (mayInterruptIfRunning && runner != null) {
+                runner.interrupt();
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Result<T> get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        @Override
+        public Result<T> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return report();
+        }
+
+        private synchronized Result<T> report() throws ExecutionException {
+            if (result == null) {
+                throw new ExecutionException(error);
+            }
+            return result;
+        }
+    }
+
+    // after a failed or cancelled job: clear a dfuERROR and abort a pending download or upload
+    private static void recover(DfuProtocol dfu) {
+        if (dfu == null || !dfu.getTransport().isConnected()) {
+            return;
+        }
+        try {
+            new DfuDownloader(dfu).finish();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Per-device record of the blocks of an image that the device has confirmed, so a session that
+ * lost the USB link can continue instead of starting again at block 0.
+ *
+ * File layout (little endian): "DFUJ", version, block size, image start, image end, SHA-256 of
+ * the image, then one record per confirmed block: address and CRC-32 of the block as sent.
+ * Records are appended as blocks complete; a torn record at the end is ignored.
+ * A journal written for another image or block size is discarded when opened.
+ */
+public class FlashJournal implements Closeable {
+
+    private static final int MAGIC = 0x4A554644;    // "DFUJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20 + 32;
+    private static final int RECORD_SIZE = 8;
+    private static final int SAMPLE_BLOCKS = 2;     // read back besides the first and the last
+
+    private final File file;
+    private final FileChannel channel;
+    private final int blockSize;
+    private final byte[] header;
+    private final Map<Integer, Integer> confirmed = new LinkedHashMap<>();  // address -> CRC, in write order
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final Crc32 crc = new Crc32();
+    private final Random random = new Random();
+
+    private FlashJournal(File file, int blockSize, byte[] header) throws IOException {
+        this.file = file;
+        this.blockSize = blockSize;
+        this.header = header;
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        load();
+    }
+
+    public static FlashJournal open(File directory, String deviceKey, FirmwareImage image, int blockSize) throws Exception {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(blockSize).putInt(image.getAddress())
+                .putInt(image.getAddress() + image.getLength()).put(hash(image));
+        return new FlashJournal(fileFor(directory, deviceKey), blockSize, header.array());
+    }
+
+    // the device's flash was wiped, e.g. by a mass erase: its journal no longer holds
+    public static void delete(File directory, String deviceKey) throws IOException {
+        File file = fileFor(directory, deviceKey);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    private static File fileFor(File directory, String deviceKey) {
+        return new File(directory, deviceKey.replaceAll("[^A-Za-z0-9._-]", "_") + ".journal");
+    }
+
+    // SHA-256 over the address, length and contents of every region
+    static byte[] hash(FirmwareImage image) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer position = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] chunk = new byte[64 * 1024];
+        for (ImageRegion region : image.getRegions()) {
+            position.clear();
+            digest.update(position.putInt(region.getAddress()).putInt(region.getLength()).array());
+            for (int done = 0; done < region.getLength(); ) {
+                int size = Math.min(chunk.length, region.getLength() - done);
+                image.read(region.getAddress() + done, chunk, 0, size);
+                digest.update(chunk, 0, size);
+                done += size;
+            }
+        }
+        return digest.digest();
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer existing = ByteBuffer.allocate((int) Math.min(size, HEADER_SIZE));
+        channel.read(existing, 0);
+        if (size < HEADER_SIZE || !Arrays.equals(existing.array(), header)) {
+            reset();
+            return;
+        }
+        ByteBuffer records = ByteBuffer.allocate((int) ((size - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(records, HEADER_SIZE);
+        records.flip();
+        while (records.remaining() >= RECORD_SIZE) {
+            confirmed.put(records.getInt(), records.getInt());
+        }
+        channel.truncate(HEADER_SIZE + confirmed.size() * (long) RECORD_SIZE);
+        channel.position(channel.size());
+    }
+
+    // starts the journal over, e.g. when the flash no longer matches it
+    public void reset() throws IOException {
+        confirmed.clear();
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(header), 0);
+        channel.position(HEADER_SIZE);
+    }
+
+    public boolean isEmpty() {
+        return confirmed.isEmpty();
+    }
+
+    public int getConfirmedCount() {
+        return confirmed.size();
+    }
+
+    public boolean isConfirmed(int address) {
+        return confirmed.containsKey(address);
+    }
+
+    // the block was programmed and its GETSTATUS came back without error
+    public void record(int address, byte[] block) throws IOException {
+        crc.update(block, 0, block.length);
+        int blockCrc = crc.finish();
+        record.clear();
+        record.putInt(address).putInt(blockCrc).flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        confirmed.put(address, blockCrc);
+    }
+
+    // drops the given blocks, e.g. because the sector holding them is erased again
+    void forget(List<Integer> addresses) throws IOException {
+        Map<Integer, Integer> kept = new LinkedHashMap<>(confirmed);
+        kept.keySet().removeAll(addresses);
+        reset();
+        ByteBuffer records = ByteBuffer.allocate(kept.size() * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (Map.Entry<Integer, Integer> entry : kept.entrySet()) {
+            records.putInt(entry.getKey()).putInt(entry.getValue());
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            channel.write(records);
+        }
+        confirmed.putAll(kept);
+    }
+
+    /*
+     * Makes the flash fit to continue from the journal. Some confirmed blocks are read back and
+     * compared with their CRC (see confirmedOnFlash); if one does not match, the journal is started
+     * over and false returned, the caller then has to erase. Otherwise the sectors under the first
+     * unconfirmed block, which may have been half programmed when the link dropped, are erased
+     * again and any confirmed blocks that shared them are forgotten.
+     */
+    public boolean prepareResume(DfuProtocol dfu, FirmwareImage image, MemoryLayout layout) throws Exception {
+        if (confirmed.isEmpty()) {
+            return false;
+        }
+        if (!confirmedOnFlash(dfu)) {
+            reset();
+            return false;
+        }
+        int next = firstUnconfirmed(image);
+        if (next == -1) {
+            return true;
+        }
+        List<ImageRegion> inFlight = new ArrayList<>();
+        inFlight.add(new ImageRegion(next, blockSize));
+        List<MemoryLayout.Sector> sectors = layout.sectorsFor(inFlight);
+        List<Integer> lost = new ArrayList<>();
+        for (MemoryLayout.Sector sector : sectors) {
+            for (int address : confirmed.keySet()) {
+                long offset = (address & 0xFFFFFFFFL) - (sector.getAddress() & 0xFFFFFFFFL);
+                if (offset > -blockSize && offset < sector.getSize()) {
+                    lost.add(address);
+                }
+            }
+        }
+        if (!lost.isEmpty()) {
+            forget(lost);
+        }
+        DfuDownloader downloader = new DfuDownloader(dfu);
+        for (MemoryLayout.Sector sector : sectors) {
+            downloader.erasePage(sector.getAddress());
+        }
+        downloader.finish();
+        return true;
+    }
+
+    /*
+     * Reads back the first and the last confirmed block and a few picked at random. A blank block
+     * matches an erased or another chip just as well, so when every one of those is blank the rest
+     * of the confirmed blocks are read back too.
+     */
+    private boolean confirmedOnFlash(DfuProtocol dfu) throws Exception {
+        List<Integer> addresses = new ArrayList<>(confirmed.keySet());
+        List<Integer> sample = new ArrayList<>();
+        sample.add(addresses.remove(0));
+        if (!addresses.isEmpty()) {
+            sample.add(addresses.remove(addresses.size() - 1));
+        }
+        for (int n = 0; n < SAMPLE_BLOCKS && !addresses.isEmpty(); n++) {
+            sample.add(addresses.remove(random.nextInt(addresses.size())));
+        }
+        byte[] blank = new byte[blockSize];
+        Arrays.fill(blank, (byte) 0xFF);
+        crc.update(blank, 0, blank.length);
+        int blankCrc = crc.finish();
+
+        FlashVerifier verifier = new FlashVerifier(dfu, blockSize);
+        boolean allBlank = true;
+        for (int address : sample) {
+            if (!verifier.verifyCrc(address, blockSize, confirmed.get(address))) {
+                return false;
+            }
+            allBlank &= confirmed.get(address) == blankCrc;
+        }
+        if (allBlank) {
+            for (int address : addresses) {
+                if (!verifier.verifyCrc(address, blockSize, confirmed.get(address))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // address of the first block FlashWriter would send that is not confirmed, -1 when all are
+    private int firstUnconfirmed(FirmwareImage image) {
+        for (ImageRegion region : ImageRegion.coalesce(image.getRegions(), blockSize)) {
+            for (int address = region.getAddress(); address - region.getEnd() < 0; address += blockSize) {
+                if (!confirmed.containsKey(address)) {
+                    return address;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // the image is on the device, nothing left to resume
+    public void delete() throws IOException {
+        channel.close();
+        if (!file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,140 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * What one device's flash holds, as a CRC-32 per sector of its memory layout, written after each
+ * successful program so the next one can tell the changed sectors from the image alone. Absent
+ * sectors are unknown. Sectors are called pages here, after the 1 KB pages of the F042.
+ *
+ * File layout (little endian): "DFUM", version, page count, then address, size and CRC per page.
+ * Saved to a temporary file and renamed, so a crash leaves the old manifest or the new one.
+ */
+public class FlashManifest {
+
+    private static final int MAGIC = 0x4D554644;    // "DFUM"
+    private static final int VERSION = 2;       // 1 had a single page size for the whole file
+    private static final int HEADER_SIZE = 12;
+    private static final int RECORD_SIZE = 12;
+
+    private final File file;
+    private final Map<Integer, int[]> pages = new TreeMap<>();    // address -> {size, CRC}
+
+    private FlashManifest(File file) {
+        this.file = file;
+    }
+
+    // one manifest per USB serial number; one of an older version is started over
+    public static FlashManifest open(File directory, String serial) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        FlashManifest manifest = new FlashManifest(
+                new File(directory, serial.replaceAll("[^A-Za-z0-9._-]", "_") + ".manifest"));
+        if (manifest.file.exists()) {
+            manifest.load();
+        }
+        return manifest;
+    }
+
+    // CRC-32 of the page as it is on flash once the image is written, 0xFF outside the image
+    public static int pageCrc(FirmwareImage image, int address, int pageSize) throws IOException {
+        byte[] page = new byte[pageSize];
+        image.read(address, page, 0, pageSize);
+        Crc32 crc = new Crc32();
+        crc.update(page, 0, pageSize);
+        return crc.finish();
+    }
+
+    private void load() throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                return;
+            }
+            ByteBuffer data = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (data.hasRemaining() && channel.read(data) >= 0) {
+                // read it all
+            }
+            data.flip();
+            int count;
+            if (data.getInt() != MAGIC || data.getInt() != VERSION
+                    || (count = data.getInt()) < 0 || data.remaining() < count * (long) RECORD_SIZE) {
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                pages.put(data.getInt(), new int[]{data.getInt(), data.getInt()});
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    public boolean isEmpty() {
+        return pages.isEmpty();
+    }
+
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    // true when the manifest says the page of this size at address holds contents with this CRC
+    public boolean matches(int address, int size, int crc) {
+        int[] known = pages.get(address);
+        return known != null && known[0] == size && known[1] == crc;
+    }
+
+    public void put(int address, int size, int crc) {
+        pages.put(address, new int[]{size, crc});
+    }
+
+    // the image was just written to erased flash, nothing is known about the other pages
+    public void recordImage(FirmwareImage image, MemoryLayout layout) throws IOException {
+        pages.clear();
+        for (MemoryLayout.Sector sector : layout.sectorsFor(image.getRegions())) {
+            put(sector.getAddress(), sector.getSize(), pageCrc(image, sector.getAddress(), sector.getSize()));
+        }
+    }
+
+    // nothing known, e.g. after a mass erase or a write that did not record every page
+    public void clear() {
+        pages.clear();
+    }
+
+    public void save() throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + pages.size() * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(MAGIC).putInt(VERSION).putInt(pages.size());
+        for (Map.Entry<Integer, int[]> page : pages.entrySet()) {
+            data.putInt(page.getKey()).putInt(page.getValue()[0]).putInt(page.getValue()[1]);
+        }
+        data.flip();
+        File temporary = new File(file.getPath() + ".tmp");
+        FileChannel channel = new RandomAccessFile(temporary, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    // removes the saved manifest while the flash changes, the pages in memory stay until save()
+    public void delete() throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+}
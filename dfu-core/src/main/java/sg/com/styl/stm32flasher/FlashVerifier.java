@@ -0,0 +1,79 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * Reads the programmed regions back with DFU_UPLOAD in transfer sized blocks and checks each block as
+ * it arrives, either byte for byte against the source image or into a running CRC32.
+ * The dump is never buffered, and a byte compare stops at the first mismatching block.
+ */
+public class FlashVerifier {
+
+    private final DfuDownloader downloader;
+    private final DfuUploader uploader;
+    private final int blockSize;
+
+    private int firstMismatch;
+    private int bytesVerified;
+
+    public FlashVerifier(DfuProtocol dfu, int blockSize) {
+        this.downloader = new DfuDownloader(dfu);
+        this.uploader = new DfuUploader(dfu, downloader);
+        this.blockSize = blockSize;
+    }
+
+    // address of the first byte that differs, valid after verify() returned false
+    public int getFirstMismatch() {
+        return firstMismatch;
+    }
+
+    public int getBytesVerified() {
+        return bytesVerified;
+    }
+
+    public boolean verify(FirmwareImage image) throws Exception {
+        byte[] block = new byte[blockSize];
+        byte[] expected = new byte[blockSize];
+        bytesVerified = 0;
+        try {
+            for (ImageRegion region : image.getRegions()) {
+                int address = region.getAddress();
+                int length = region.getLength();
+                int done = 0;
+                while (done < length) {
+                    int size = Math.min(blockSize, length - done);
+                    uploader.read(address + done, block, size);
+                    image.read(address + done, expected, 0, size);
+                    for (int i = 0; i < size; i++) {
+                        if (block[i] != expected[i]) {
+                            firstMismatch = address + done + i;
+                            bytesVerified += done + i;
+                            return false;
+                        }
+                    }
+                    done += size;
+                }
+                bytesVerified += length;
+            }
+        } finally {
+            uploader.finish();
+        }
+        return true;
+    }
+
+    public boolean verifyCrc(int address, int length, int expectedCrc) throws Exception {
+        byte[] block = new byte[blockSize];
+        Crc32 crc = new Crc32();
+        bytesVerified = 0;
+        try {
+            while (bytesVerified < length) {
+                int size = Math.min(blockSize, length - bytesVerified);
+                uploader.read(address + bytesVerified, block, size);
+                crc.update(block, 0, size);
+                bytesVerified += size;
+            }
+        } finally {
+            uploader.finish();
+        }
+        firstMismatch = address;    // a CRC cannot tell where
+        return crc.finish() == expectedCrc;
+    }
+}
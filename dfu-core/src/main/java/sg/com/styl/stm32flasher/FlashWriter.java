@@ -0,0 +1,107 @@
+package sg.com.styl.stm32flasher;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/*
+ * Programs every region of an image in one DFU session. Regions are joined when the gap between
+ * them falls inside a block that is sent anyway, so the address pointer is set once per region
+ * and the blocks of a region follow each other with increasing wBlockNum.
+ * The last block of a region is padded with 0xFF, matching the ST bootloader's CRC.
+ * With setSkipBlank(true) blocks that are all 0xFF are not sent, which is only right on erased
+ * flash; DfuDownloader sets the address pointer again for the block after a skipped one.
+ * With a FlashJournal, every confirmed block is recorded and blocks already in the journal are
+ * not sent again.
+ */
+public class FlashWriter {
+
+    public interface Listener {
+        void onBlockWritten(int address, int blocksDone, int blocksTotal);
+    }
+
+    private final DfuDownloader downloader;
+    private final int blockSize;
+    private Listener listener;
+    private boolean skipBlank;
+    private int blocksSkipped;
+    private FlashJournal journal;
+
+    public FlashWriter(DfuProtocol dfu, int blockSize) {
+        this.downloader = new DfuDownloader(dfu);
+        this.blockSize = blockSize;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setSkipBlank(boolean skipBlank) {
+        this.skipBlank = skipBlank;
+    }
+
+    public void setJournal(FlashJournal journal) {
+        this.journal = journal;
+    }
+
+    // blank blocks and blocks confirmed by the journal
+    public int getBlocksSkipped() {
+        return blocksSkipped;
+    }
+
+    // true when data[0, length) is all 0xFF, compared eight bytes at a time
+    static boolean isBlank(byte[] data, int length) {
+        ByteBuffer words = ByteBuffer.wrap(data);
+        int i = 0;
+        for (int end = length - 7; i < end; i += 8) {
+            if (words.getLong(i) != -1L) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (data[i] != (byte) 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static int countBlocks(List<ImageRegion> regions, int blockSize) {
+        int blocks = 0;
+        for (ImageRegion region : ImageRegion.coalesce(regions, blockSize)) {
+            blocks += (region.getLength() + blockSize - 1) / blockSize;
+        }
+        return blocks;
+    }
+
+    // returns the number of blocks written, skipped blocks not included
+    public int write(FirmwareImage image) throws Exception {
+        List<ImageRegion> regions = ImageRegion.coalesce(image.getRegions(), blockSize);
+        int total = countBlocks(regions, blockSize);
+        int done = 0;
+        blocksSkipped = 0;
+        byte[] block = new byte[blockSize];
+        for (ImageRegion region : regions) {
+            for (int address = region.getAddress(); address - region.getEnd() < 0; address += blockSize) {
+                image.read(address, block, 0, blockSize);
+                if (journal != null && journal.isConfirmed(address)) {
+                    blocksSkipped++;
+                } else {
+                    if (skipBlank && isBlank(block, blockSize)) {
+                        blocksSkipped++;
+                    } else {
+                        downloader.writeBlock(address, block);
+                    }
+                    if (journal != null) {
+                        journal.record(address, block);
+                    }
+                }
+                done++;
+                if (listener != null) {
+                    listener.onBlockWritten(address, done, total);
+                }
+            }
+        }
+        downloader.finish();
+        return done - blocksSkipped;
+    }
+}
@@ -0,0 +1,199 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/*
+ * Programs one image into several DFU devices at once, with an independent session per device on
+ * its FlashJobScheduler thread. The image is shared read-only, so it is parsed once however many
+ * boards there are, and a failing board does not stop the others.
+ * Most of a session is spent waiting for the device (bwPollTimeout), so the time for a tray of
+ * boards stays close to the time for one as long as the USB bus is not saturated.
+ */
+public class GangProgrammer {
+
+    public interface Listener {
+        // called from the device's worker thread
+        void onProgress(String device, int blocksDone, int blocksTotal);
+
+        void onFinished(Result result);
+    }
+
+    public static class Result {
+        private final String device;
+        private final Exception error;
+        private final long millis;
+        private final SessionMetrics metrics;
+
+        Result(String device, Exception error, long millis, SessionMetrics metrics) {
+            this.device = device;
+            this.error = error;
+            this.millis = millis;
+            this.metrics = metrics;
+        }
+
+        // for a device that never got a session, e.g. one that failed the checks before it
+        public static Result failed(String device, Exception error) {
+            return new Result(device, error, 0, new SessionMetrics());
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public SessionMetrics getMetrics() {
+            return metrics;
+        }
+
+        public boolean isCancelled() {
+            return error instanceof InterruptedException;
+        }
+
+        @Override
+        public String toString() {
+            if (isCancelled()) {
+                return device + ": cancelled after " + millis + " ms";
+            }
+            return device + (error == null ? ": ok in " + millis + " ms" : ": failed, " + error.getMessage());
+        }
+    }
+
+    private final FlashJobScheduler scheduler;
+    private final FirmwareImage image;
+    private final int blockSize;
+    private boolean massErase;
+    private boolean verify;
+    private Listener listener;
+
+    public GangProgrammer(FlashJobScheduler scheduler, FirmwareImage image, int blockSize) {
+        this.scheduler = scheduler;
+        this.image = image;
+        this.blockSize = blockSize;
+    }
+
+    public void setMassErase(boolean massErase) {
+        this.massErase = massErase;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /*
+     * One result per device, in the order of the map. Each session is queued on the device's
+     * scheduler thread; interrupting the caller cancels the sessions at their next block. The
+     * results are returned once every session has stopped and its device is back in dfuIDLE, with
+     * the caller's interrupt status set again; sessions that never started come back cancelled.
+     */
+    public List<Result> program(Map<String, DfuTransport> devices) {
+        final Result[] results = new Result[devices.size()];
+        List<Future<FlashJobScheduler.Result<Void>>> sessions = new ArrayList<>();
+        int i = 0;
+        for (Map.Entry<String, DfuTransport> device : devices.entrySet()) {
+            SessionMetrics metrics = new SessionMetrics();
+            sessions.add(scheduler.submit(device.getKey(), new MeteredTransport(device.getValue(), metrics),
+                    session(device.getKey(), metrics, results, i++)));
+        }
+        try {
+            for (Future<FlashJobScheduler.Result<Void>> session : sessions) {
+                try {
+                    session.get();
+                } catch (ExecutionException e) {
+                    // already recorded by the session
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<FlashJobScheduler.Result<Void>> session : sessions) {
+                session.cancel(true);
+            }
+            for (Future<FlashJobScheduler.Result<Void>> session : sessions) {
+                FlashJobScheduler.cancelAndWait(session);
+            }
+            Thread.currentThread().interrupt();
+        }
+        i = 0;
+        for (String device : devices.keySet()) {
+            synchronized (results) {
+                if (results[i] == null) {
+                    results[i] = Result.failed(device, new InterruptedException("Cancelled before it started"));
+                }
+            }
+            i++;
+        }
+        return Arrays.asList(results);
+    }
+
+    private FlashJobScheduler.Job<Void> session(final String device, final SessionMetrics metrics,
+                                                final Result[] results, final int index) {
+        return new FlashJobScheduler.Job<Void>() {
+            @Override
+            public Void run(DfuProtocol dfu) throws Exception {
+                long start = System.nanoTime();
+                try {
+                    if (massErase) {
+                        long phaseStart = System.nanoTime();
+                        DfuDownloader downloader = new DfuDownloader(dfu);
+                        downloader.massErase();
+                        downloader.finish();
+                        metrics.endPhase(SessionMetrics.PHASE_ERASE, phaseStart);
+                    }
+                    long phaseStart = System.nanoTime();
+                    FlashWriter writer = new FlashWriter(dfu, blockSize);
+                    writer.setSkipBlank(massErase);
+                    writer.setListener(new FlashWriter.Listener() {
+                        @Override
+                        public void onBlockWritten(int address, int blocksDone, int blocksTotal) {
+                            if (listener != null) {
+                                listener.onProgress(device, blocksDone, blocksTotal);
+                            }
+                        }
+                    });
+                    writer.write(image);
+                    metrics.endPhase(SessionMetrics.PHASE_WRITE, phaseStart);
+                    if (verify) {
+                        phaseStart = System.nanoTime();
+                        FlashVerifier verifier = new FlashVerifier(dfu, blockSize);
+                        if (!verifier.verify(image)) {
+                            throw new Exception("Verify failed at 0x" + Integer.toHexString(verifier.getFirstMismatch()));
+                        }
+                        metrics.endPhase(SessionMetrics.PHASE_VERIFY, phaseStart);
+                    }
+                    finished(results, index, new Result(device, null, (System.nanoTime() - start) / 1000000, metrics));
+                    return null;
+                } catch (Exception e) {
+                    finished(results, index, new Result(device, e, (System.nanoTime() - start) / 1000000, metrics));
+                    throw e;    // lets the scheduler return the device to dfuIDLE
+                }
+            }
+        };
+    }
+
+    private void finished(Result[] results, int index, Result result) {
+        synchronized (results) {
+            results[index] = result;
+        }
+        if (listener != null) {
+            listener.onFinished(result);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Address range of a firmware image that carries data.
+ */
+public class ImageRegion {
+
+    private final int address;
+    private final int length;
+
+    public ImageRegion(int address, int length) {
+        this.address = address;
+        this.length = length;
+    }
+
+    public int getAddress() {
+        return address;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getEnd() {
+        return address + length;
+    }
+
+    /*
+     * Joins regions (sorted by address) when the next one starts before the previous one's last
+     * granularity sized block is complete, so the gap is padding inside a block that is sent anyway.
+     * A granularity of 1 only joins regions that touch.
+     */
+    public static List<ImageRegion> coalesce(List<ImageRegion> regions, int granularity) {
+        List<ImageRegion> spans = new ArrayList<>();
+        ImageRegion current = null;
+        for (ImageRegion region : regions) {
+            if (current != null) {
+                long blocks = ((long) current.length + granularity - 1) / granularity;
+                if (region.address <= current.address + blocks * granularity) {
+                    int end = Math.max(current.getEnd(), region.getEnd());
+                    current = new ImageRegion(current.address, end - current.address);
+                    continue;
+                }
+                spans.add(current);
+            }
+            current = region;
+        }
+        if (current != null) {
+            spans.add(current);
+        }
+        return spans;
+    }
+
+    // addresses are unsigned; Integer.remainderUnsigned needs API 26
+    public static int alignDown(int address, int granularity) {
+        return (int) ((address & 0xFFFFFFFFL) / granularity * granularity);
+    }
+
+    public static int alignUp(int address, int granularity) {
+        return (int) (((address & 0xFFFFFFFFL) + granularity - 1) / granularity * granularity);
+    }
+
+    @Override
+    public String toString() {
+        return "0x" + Integer.toHexString(address) + "+" + length;
+    }
+}
@@ -0,0 +1,153 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Intel HEX file, decoded line by line in one pass. Data records that continue where the previous
+ * one ended are appended to the same run, anything else starts a new run, so only the decoded
+ * bytes are kept and the gaps between runs are left to the write path to skip.
+ */
+public class IntelHexReader implements FirmwareReader {
+
+    private static final int RECORD_DATA = 0x00;
+    private static final int RECORD_EOF = 0x01;
+    private static final int RECORD_EXTENDED_SEGMENT = 0x02;
+    private static final int RECORD_START_SEGMENT = 0x03;
+    private static final int RECORD_EXTENDED_LINEAR = 0x04;
+    private static final int RECORD_START_LINEAR = 0x05;
+
+    private final FileChannel channel;
+    private SparseImage image;
+
+    public IntelHexReader(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void parse(DfuFile dfuFile) throws Exception {
+        channel.position(0);
+        BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), Charset.forName("US-ASCII")));
+        List<ByteArrayImage> runs = new ArrayList<>();
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        int runAddress = 0;
+        int base = 0;
+        boolean eof = false;
+        String line;
+        int lineNumber = 0;
+        while (!eof && (line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            byte[] record = decode(line, lineNumber);
+            int count = record[0] & 0xFF;
+            int offset = (record[1] & 0xFF) << 8 | (record[2] & 0xFF);
+            switch (record[3]) {
+                case RECORD_DATA:
+                    int address = base + offset;
+                    if (run.size() > 0 && address != runAddress + run.size()) {
+                        runs.add(new ByteArrayImage(runAddress, run.toByteArray()));
+                        run.reset();
+                    }
+                    if (run.size() == 0) {
+                        runAddress = address;
+                    }
+                    run.write(record, 4, count);
+                    break;
+                case RECORD_EOF:
+                    eof = true;
+                    break;
+                case RECORD_EXTENDED_SEGMENT:
+                    base = ((record[4] & 0xFF) << 8 | (record[5] & 0xFF)) << 4;
+                    break;
+                case RECORD_EXTENDED_LINEAR:
+                    base = ((record[4] & 0xFF) << 8 | (record[5] & 0xFF)) << 16;
+                    break;
+                case RECORD_START_SEGMENT:
+                case RECORD_START_LINEAR:
+                    break;      // entry point, the bootloader jumps to the reset vector
+                default:
+                    throw new FirmwareFormatException("Unknown record type at line " + lineNumber);
+            }
+        }
+        if (!eof) {
+            throw new FirmwareFormatException("Missing end of file record");
+        }
+        if (run.size() > 0) {
+            runs.add(new ByteArrayImage(runAddress, run.toByteArray()));
+        }
+        image = new SparseImage(runs);
+
+        dfuFile.TargetName = "Intel HEX";
+        dfuFile.TargetSize = (int) image.getDataLength();
+        dfuFile.NumTargets = 1;
+        dfuFile.NumElements = image.getRunCount();
+        dfuFile.elementStartAddress = getAddress();
+        dfuFile.elementLength = getLength();
+        dfuFile.VID = ANY_ID;
+        dfuFile.PID = ANY_ID;
+        dfuFile.BootVersion = ANY_ID;
+        dfuFile.fileSize = channel.size();
+        dfuFile.image = this;
+    }
+
+    // ":LLAAAATT<data>CC" to bytes, checking length and checksum
+    private static byte[] decode(String line, int lineNumber) throws FirmwareFormatException {
+        if (line.charAt(0) != ':' || line.length() < 11 || (line.length() & 1) == 0) {
+            throw new FirmwareFormatException("Bad record at line " + lineNumber);
+        }
+        byte[] record = new byte[(line.length() - 1) / 2];
+        int sum = 0;
+        for (int i = 0; i < record.length; i++) {
+            int high = Character.digit(line.charAt(1 + 2 * i), 16);
+            int low = Character.digit(line.charAt(2 + 2 * i), 16);
+            if (high < 0 || low < 0) {
+                throw new FirmwareFormatException("Bad record at line " + lineNumber);
+            }
+            record[i] = (byte) (high << 4 | low);
+            sum += record[i];
+        }
+        if ((record[0] & 0xFF) + 5 != record.length) {
+            throw new FirmwareFormatException("Bad record length at line " + lineNumber);
+        }
+        if ((sum & 0xFF) != 0) {
+            throw new FirmwareFormatException("Checksum error at line " + lineNumber);
+        }
+        return record;
+    }
+
+    @Override
+    public int getAddress() {
+        return image.getAddress();
+    }
+
+    @Override
+    public int getLength() {
+        return image.getLength();
+    }
+
+    @Override
+    public List<ImageRegion> getRegions() {
+        return image.getRegions();
+    }
+
+    @Override
+    public void read(int address, byte[] buffer, int offset, int length) {
+        image.read(address, buffer, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        image = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,63 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * Latency histogram with power of two microsecond buckets (bucket n holds [2^(n-1), 2^n) us),
+ * so recording is a couple of instructions and any two sessions can be compared bucket by bucket.
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+
+    public synchronized void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))]++;
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public synchronized long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public synchronized long getBucketCount(int bucket) {
+        return counts[bucket];
+    }
+
+    // upper bound in microseconds of the bucket holding the given fraction (0..1) of the samples
+    public synchronized long percentileMicros(double fraction) {
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (count == 0) {
+            return "n=0";
+        }
+        return "n=" + count + " total=" + totalNanos / 1000000 + "ms mean=" + totalNanos / count / 1000
+                + "us p50<" + percentileMicros(0.5) + "us p99<" + percentileMicros(0.99)
+                + "us max=" + maxNanos / 1000 + "us";
+    }
+}
@@ -0,0 +1,58 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * Fixed capacity ring of log lines for the log view; the oldest line is overwritten once full,
+ * so a long batch session does not grow the text without limit.
+ */
+public class LogBuffer {
+
+    private final String[] lines;
+    private int head;       // index of the oldest line
+    private int size;
+
+    public LogBuffer(int capacity) {
+        lines = new String[capacity];
+    }
+
+    // multi-line text is stored line by line
+    public void add(String text) {
+        int start = 0;
+        for (int end; (end = text.indexOf('\n', start)) >= 0; start = end + 1) {
+            addLine(text.substring(start, end));
+        }
+        if (start < text.length()) {
+            addLine(text.substring(start));
+        }
+    }
+
+    private void addLine(String line) {
+        if (size < lines.length) {
+            lines[(head + size++) % lines.length] = line;
+        } else {
+            lines[head] = line;
+            head = (head + 1) % lines.length;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String get(int index) {
+        return lines[(head + index) % lines.length];
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            text.append(get(i)).append('\n');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,183 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * A DfuSe memory layout string (UM0424 / AN3156), one per alternate setting, e.g.
+ *   @Internal Flash  /0x08000000/04*016Kg,01*064Kg,07*128Kg
+ * Each "/address/" starts a segment of sector groups "count*size[ KM]type". The type letter
+ * 'a'..'g' holds the readable (1), erasable (2) and writeable (4) bits.
+ */
+public class MemoryLayout {
+
+    public static class Sector {
+        private final int address;
+        private final int size;
+        private final int attributes;
+
+        Sector(int address, int size, int attributes) {
+            this.address = address;
+            this.size = size;
+            this.attributes = attributes;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getEnd() {
+            return (address & 0xFFFFFFFFL) + size;
+        }
+
+        public boolean isReadable() {
+            return (attributes & 1) != 0;
+        }
+
+        public boolean isErasable() {
+            return (attributes & 2) != 0;
+        }
+
+        public boolean isWriteable() {
+            return (attributes & 4) != 0;
+        }
+
+        @Override
+        public String toString() {
+            return "0x" + Integer.toHexString(address) + "+" + size;
+        }
+    }
+
+    private final String name;
+    private final List<Sector> sectors;     // in address order
+
+    private MemoryLayout(String name, List<Sector> sectors) {
+        this.name = name;
+        this.sectors = sectors;
+    }
+
+    public static MemoryLayout parse(String layout) throws FirmwareFormatException {
+        int nul = layout.indexOf('\0');
+        if (nul >= 0) {
+            layout = layout.substring(0, nul);
+        }
+        String[] fields = layout.trim().split("/");
+        if (fields.length < 3 || fields.length % 2 == 0 || !fields[0].startsWith("@")) {
+            throw new FirmwareFormatException("Bad memory layout: " + layout);
+        }
+        List<Sector> sectors = new ArrayList<>();
+        for (int f = 1; f < fields.length; f += 2) {
+            long address = parseAddress(fields[f].trim(), layout);
+            for (String group : fields[f + 1].split(",")) {
+                int star = group.indexOf('*');
+                if (star <= 0 || group.length() < star + 3) {
+                    throw new FirmwareFormatException("Bad sector group '" + group + "' in " + layout);
+                }
+                int count = parseNumber(group.substring(0, star).trim(), layout);
+                int end = group.length() - 1;
+                char type = group.charAt(end);
+                char unit = group.charAt(end - 1);
+                int multiplier = 1;
+                if (unit == 'K') {
+                    multiplier = 1024;
+                } else if (unit == 'M') {
+                    multiplier = 1024 * 1024;
+                } else if (unit != ' ' && unit != 'B') {
+                    end++;      // no unit letter, the digit belongs to the size
+                }
+                int size = parseNumber(group.substring(star + 1, end - 1).trim(), layout) * multiplier;
+                if (type < 'a' || type > 'g' || size <= 0) {
+                    throw new FirmwareFormatException("Bad sector group '" + group + "' in " + layout);
+                }
+                for (int i = 0; i < count; i++) {
+                    sectors.add(new Sector((int) address, size, type - 'a' + 1));
+                    address += size;
+                }
+            }
+        }
+        return new MemoryLayout(fields[0].substring(1).trim(), Collections.unmodifiableList(sectors));
+    }
+
+    private static long parseAddress(String text, String layout) throws FirmwareFormatException {
+        try {
+            return Long.decode(text);
+        } catch (NumberFormatException e) {
+            throw new FirmwareFormatException("Bad address '" + text + "' in " + layout);
+        }
+    }
+
+    private static int parseNumber(String text, String layout) throws FirmwareFormatException {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new FirmwareFormatException("Bad number '" + text + "' in " + layout);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Sector> getSectors() {
+        return sectors;
+    }
+
+    // null when the address is not in this memory
+    public Sector sectorAt(int address) {
+        long target = address & 0xFFFFFFFFL;
+        for (Sector sector : sectors) {
+            if (target >= (sector.getAddress() & 0xFFFFFFFFL) && target < sector.getEnd()) {
+                return sector;
+            }
+        }
+        return null;
+    }
+
+    // true when every byte of the region is in a writeable sector
+    public boolean canWrite(ImageRegion region) {
+        long address = region.getAddress() & 0xFFFFFFFFL;
+        long end = address + region.getLength();
+        while (address < end) {
+            Sector sector = sectorAt((int) address);
+            if (sector == null || !sector.isWriteable()) {
+                return false;
+            }
+            address = sector.getEnd();
+        }
+        return true;
+    }
+
+    // the sectors any region touches, each once and in address order
+    public List<Sector> sectorsFor(List<ImageRegion> regions) {
+        List<Sector> covered = new ArrayList<>();
+        for (Sector sector : sectors) {
+            long start = sector.getAddress() & 0xFFFFFFFFL;
+            for (ImageRegion region : regions) {
+                long regionStart = region.getAddress() & 0xFFFFFFFFL;
+                if (regionStart < sector.getEnd() && regionStart + region.getLength() > start) {
+                    covered.add(sector);
+                    break;
+                }
+            }
+        }
+        return covered;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Sector sector : sectors) {
+            size += sector.getSize();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + sectors.size() + " sectors, " + getSize() + " Bytes";
+    }
+}
@@ -0,0 +1,74 @@
+package sg.com.styl.stm32flasher;
+
+/*
+ * DfuTransport decorator that times every control transfer into a SessionMetrics and notes the
+ * busy GETSTATUS replies, whatever code path issued them.
+ */
+public class MeteredTransport implements DfuTransport, PollScheduler.Clock {
+
+    private final DfuTransport transport;
+    private final SessionMetrics metrics;
+
+    public MeteredTransport(DfuTransport transport, SessionMetrics metrics) {
+        this.transport = transport;
+        this.metrics = metrics;
+    }
+
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return transport.isConnected();
+    }
+
+    @Override
+    public int getDeviceVersion() {
+        return transport.getDeviceVersion();
+    }
+
+    @Override
+    public byte[] getRawDescriptors() {
+        return transport.getRawDescriptors();
+    }
+
+    @Override
+    public DfuCapabilities getCapabilities() {
+        return transport.getCapabilities();
+    }
+
+    // the clock of the wrapped transport, so polls on a simulated device stay simulated
+    @Override
+    public long nanoTime() {
+        return clock().nanoTime();
+    }
+
+    @Override
+    public void parkNanos(long nanos) {
+        clock().parkNanos(nanos);
+    }
+
+    private PollScheduler.Clock clock() {
+        return (transport instanceof PollScheduler.Clock) ? (PollScheduler.Clock) transport : PollScheduler.SYSTEM_CLOCK;
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+        long start = System.nanoTime();
+        int result = transport.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+        metrics.transfer(request).record(System.nanoTime() - start);
+        if (result < 0) {
+            metrics.countFailedTransfer();
+        } else if (request == DfuProtocol.DFU_GETSTATUS && result >= 6
+                && (buffer[4] == DfuProtocol.STATE_DFU_DOWNLOAD_BUSY || buffer[4] == DfuProtocol.STATE_DFU_MANIFEST)) {
+            metrics.countBusyPoll((buffer[1] & 0xFF) | (buffer[2] & 0xFF) << 8 | (buffer[3] & 0xFF) << 16);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean release() {
+        return transport.release();
+    }
+}
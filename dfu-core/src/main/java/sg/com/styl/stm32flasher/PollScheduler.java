@@ -0,0 +1,154 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Waits out bwPollTimeout before the next GETSTATUS instead of polling a busy device back to back.
+ * The timeout is the worst case, so when a kind of operation (keyed by the timeout it reports)
+ * keeps finishing within the wait, the wait is shortened step by step, down to half; a poll that
+ * still finds the device busy puts it back up. Waits park on System.nanoTime(), not Thread.sleep's
+ * millisecond ticks.
+ */
+public class PollScheduler {
+
+    /* Time source; DfuSeEmulator supplies its simulated time */
+    public interface Clock {
+        long nanoTime();
+
+        void parkNanos(long nanos);
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void parkNanos(long nanos) {
+            LockSupport.parkNanos(nanos);
+        }
+    };
+
+    private static final int MAX_BUSY_POLLS = 1000;    // a device that stays busy this long is broken
+    private static final double MIN_FACTOR = 0.5;
+    private static final double SHRINK = 0.9;
+    private static final int STREAK = 4;                // polls on time before the wait shrinks
+
+    private static class Learned {
+        double factor = 1.0;
+        int streak;
+    }
+
+    private final Clock clock;
+    private final Map<Integer, Learned> learned = new HashMap<>();
+    private long waitedNanos;
+    private long polls;
+    private long earlyPolls;
+
+    public PollScheduler() {
+        this(SYSTEM_CLOCK);
+    }
+
+    public PollScheduler(Clock clock) {
+        this.clock = clock;
+    }
+
+    // the transport's own clock when it has one (a simulated device), otherwise System.nanoTime()
+    public static Clock clockOf(DfuTransport usb) {
+        return (usb instanceof Clock) ? (Clock) usb : SYSTEM_CLOCK;
+    }
+
+    // status holds a reply just received; GETSTATUS, after the wait, until the device is no longer busy
+    public void pollWhileBusy(DfuProtocol dfu, DfuStatus status) throws Exception {
+        for (int n = 0; status.bState == DfuProtocol.STATE_DFU_DOWNLOAD_BUSY; n++) {
+            if (n == MAX_BUSY_POLLS) {
+                throw new Exception("Device busy after " + MAX_BUSY_POLLS + " polls");
+            }
+            int pollTimeout = status.bwPollTimeout;
+            park(waitNanos(pollTimeout));
+            dfu.getStatus(status);
+            record(pollTimeout, status.bState == DfuProtocol.STATE_DFU_DOWNLOAD_BUSY);
+        }
+    }
+
+    // status holds a dfuMANIFEST reply; GETSTATUS every full bwPollTimeout until manifestation is over
+    public void pollWhileManifesting(DfuProtocol dfu, DfuStatus status) throws Exception {
+        for (int n = 0; status.bState == DfuProtocol.STATE_DFU_MANIFEST; n++) {
+            if (n == MAX_BUSY_POLLS) {
+                throw new Exception("Device manifesting after " + MAX_BUSY_POLLS + " polls");
+            }
+            waitOut(status.bwPollTimeout);
+            dfu.getStatus(status);
+        }
+    }
+
+    // the whole bwPollTimeout, for a device that will not answer GETSTATUS once it is over
+    public void waitOut(int pollTimeout) {
+        park(pollTimeout * 1000000L);
+    }
+
+    synchronized long waitNanos(int pollTimeout) {
+        Learned entry = learned.get(pollTimeout);
+        double factor = (entry != null) ? entry.factor : 1.0;
+        return (long) (pollTimeout * 1000000L * factor);
+    }
+
+    synchronized void record(int pollTimeout, boolean stillBusy) {
+        Learned entry = learned.get(pollTimeout);
+        if (entry == null) {
+            entry = new Learned();
+            learned.put(pollTimeout, entry);
+        }
+        polls++;
+        if (stillBusy) {
+            earlyPolls++;
+            entry.factor = Math.min(1.0, entry.factor / (SHRINK * SHRINK));
+            entry.streak = 0;
+        } else if (++entry.streak >= STREAK) {
+            entry.factor = Math.max(MIN_FACTOR, entry.factor * SHRINK);
+            entry.streak = 0;
+        }
+    }
+
+    private void park(long nanos) {
+        park(clock, nanos);
+        synchronized (this) {
+            waitedNanos += nanos;
+        }
+    }
+
+    // an interrupt does not cut the wait short, cancellation is checked between blocks
+    static void park(Clock clock, long nanos) {
+        long deadline = clock.nanoTime() + nanos;
+        boolean interrupted = false;
+        long remaining;
+        while ((remaining = deadline - clock.nanoTime()) > 0) {
+            clock.parkNanos(remaining);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized long getPolls() {
+        return polls;
+    }
+
+    // polls that found the device still busy, i.e. the wait was too short
+    public synchronized long getEarlyPolls() {
+        return earlyPolls;
+    }
+
+    public synchronized long getWaitedNanos() {
+        return waitedNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "polls: " + polls + ", early " + earlyPolls + ", waited " + waitedNanos / 1000000 + " ms";
+    }
+}
@@ -0,0 +1,151 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Retries of control transfers: bounded attempts, exponential backoff with jitter and a time budget
+ * per operation. UsbDeviceConnection returns -1 for a STALL and a timeout alike, so the two are told
+ * apart by how long the transfer took. A STALL puts the device in dfuERROR and repeating the request
+ * will not help, so only requests without side effects (GETSTATUS, GETSTATE) are retried after one.
+ * A request with side effects that timed out may still have reached the device, e.g. a DNLOAD whose
+ * block is now being written, so it is only sent again once GETSTATUS shows it never arrived.
+ * Backoff waits run on the transport's clock and, like bwPollTimeout waits, are not cut short by
+ * an interrupt. Retries are counted by cause.
+ */
+public class RetryPolicy {
+
+    public enum Cause {
+        TIMEOUT,        // no answer within the transfer timeout, e.g. a marginal hub
+        STALL,          // answered at once with an error
+        DISCONNECTED    // the device went away, never retried
+    }
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long budgetMillis;
+    private final Random random = new Random();
+
+    private final AtomicLongArray retries = new AtomicLongArray(Cause.values().length);
+    private final AtomicLongArray failures = new AtomicLongArray(Cause.values().length);
+
+    public RetryPolicy() {
+        this(5, 10, 500, 5000);
+    }
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long budgetMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budgetMillis = budgetMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    // same contract as DfuTransport.controlTransfer, but throws once the policy gives up
+    public int transfer(DfuTransport usb, String operation, boolean idempotent, int requestType, int request,
+                        int value, int index, byte[] buffer, int length, int timeout) throws Exception {
+        long start = System.nanoTime();
+        for (int attempt = 1; ; attempt++) {
+            long attemptStart = System.nanoTime();
+            int result = usb.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+            if (result >= 0) {
+                return result;
+            }
+            Cause cause = classify(usb, (System.nanoTime() - attemptStart) / 1000000, timeout);
+            long delay = backoff(attempt);
+            long spent = (System.nanoTime() - start) / 1000000;
+            if (cause == Cause.DISCONNECTED || cause == Cause.STALL && !idempotent
+                    || attempt >= maxAttempts || spent + delay > budgetMillis) {
+                failures.incrementAndGet(cause.ordinal());
+                throw new Exception("USB failed during " + operation + ": " + cause + " after " + attempt
+                        + (attempt == 1 ? " attempt" : " attempts") + " in " + spent + " ms");
+            }
+            if (cause == Cause.TIMEOUT && !idempotent) {
+                int state = getState(usb, timeout);
+                if (alreadyDone(request, state)) {
+                    retries.incrementAndGet(cause.ordinal());
+                    return 0;
+                }
+                if (!neverArrived(request, state)) {
+                    failures.incrementAndGet(cause.ordinal());
+                    throw new Exception("USB failed during " + operation + ": " + cause + " and the device is in state "
+                            + (state < 0 ? "unknown" : "0x" + Integer.toHexString(state)) + ", not sent again");
+                }
+            }
+            retries.incrementAndGet(cause.ordinal());
+            PollScheduler.park(PollScheduler.clockOf(usb), delay * 1000000L);
+        }
+    }
+
+    // bState from one GETSTATUS, -1 without an answer
+    private static int getState(DfuTransport usb, int timeout) {
+        byte[] status = new byte[6];
+        int result = usb.controlTransfer(DfuProtocol.DFU_RequestType | DfuProtocol.USB_DIR_IN, DfuProtocol.DFU_GETSTATUS,
+                0, 0, status, status.length, timeout);
+        return (result == status.length) ? status[4] & 0xFF : -1;
+    }
+
+    // the state shows a lost request never reached the device, so sending it again is safe
+    static boolean neverArrived(int request, int state) {
+        switch (request) {
+            case DfuProtocol.DFU_DNLOAD:    // one that arrived waits in dfuDNLOAD-SYNC, reported as busy
+                return state == DfuProtocol.STATE_DFU_IDLE || state == DfuProtocol.STATE_DFU_DOWNLOAD_IDLE;
+            case DfuProtocol.DFU_UPLOAD:    // the same wBlockNum reads the same block again
+                return state == DfuProtocol.STATE_DFU_IDLE || state == DfuProtocol.STATE_DFU_UPLOAD_IDLE;
+            case DfuProtocol.DFU_CLRSTATUS:
+                return state == DfuProtocol.STATE_DFU_ERROR;
+            case DfuProtocol.DFU_ABORT:
+                return state == DfuProtocol.STATE_DFU_DOWNLOAD_IDLE || state == DfuProtocol.STATE_DFU_UPLOAD_IDLE;
+            default:
+                return false;   // DETACH: the device may be on its way out
+        }
+    }
+
+    // the device is where the lost request would have put it
+    static boolean alreadyDone(int request, int state) {
+        return (request == DfuProtocol.DFU_CLRSTATUS || request == DfuProtocol.DFU_ABORT)
+                && state == DfuProtocol.STATE_DFU_IDLE;
+    }
+
+    // a failure that took (nearly) the whole timeout is a timeout, anything quicker a STALL
+    static Cause classify(DfuTransport usb, long elapsedMillis, int timeout) {
+        if (!usb.isConnected()) {
+            return Cause.DISCONNECTED;
+        }
+        return (timeout > 0 && elapsedMillis * 10 >= timeout * 9L) ? Cause.TIMEOUT : Cause.STALL;
+    }
+
+    // baseDelay * 2^(attempt - 1), capped, with the upper half randomised so devices on one hub drift apart
+    long backoff(int attempt) {
+        long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        long half = delay / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+
+    public long getRetries(Cause cause) {
+        return retries.get(cause.ordinal());
+    }
+
+    public long getFailures(Cause cause) {
+        return failures.get(cause.ordinal());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("retries:");
+        for (Cause cause : Cause.values()) {
+            text.append(' ').append(cause.name().toLowerCase()).append(' ').append(getRetries(cause))
+                    .append('/').append(getFailures(cause));
+        }
+        return text.append(" (retried/gave up)").toString();
+    }
+}
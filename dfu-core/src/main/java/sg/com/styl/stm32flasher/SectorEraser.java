@@ -0,0 +1,32 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.List;
+
+/*
+ * Erases only the sectors an image touches, with the DfuSe page erase command (0x41 + address),
+ * instead of a mass erase of the whole part. Sectors are taken from the device's memory layout.
+ */
+public class SectorEraser {
+
+    private final DfuDownloader downloader;
+
+    public SectorEraser(DfuProtocol dfu) {
+        this.downloader = new DfuDownloader(dfu);
+    }
+
+    // returns the number of sectors erased
+    public int erase(MemoryLayout layout, FirmwareImage image) throws Exception {
+        List<MemoryLayout.Sector> sectors = layout.sectorsFor(image.getRegions());
+        for (MemoryLayout.Sector sector : sectors) {
+            if (!sector.isErasable()) {
+                throw new Exception("Sector " + sector + " of " + layout.getName() + " cannot be erased");
+            }
+        }
+        for (MemoryLayout.Sector sector : sectors) {
+            DfuDownloader.checkCancelled(sector.getAddress());
+            downloader.erasePage(sector.getAddress());
+        }
+        downloader.finish();
+        return sectors.size();
+    }
+}
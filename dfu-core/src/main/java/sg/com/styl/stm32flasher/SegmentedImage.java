@@ -0,0 +1,170 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Image whose data sits as-is in the file: a table of segments (flash address, length, file
+ * offset) built by the format's parse(), with the bytes read straight from the FileChannel when
+ * a block is needed. The channel is memory-mapped when it allows it.
+ */
+public abstract class SegmentedImage implements FirmwareReader {
+
+    protected final FileChannel channel;
+    protected final long size;
+    private MappedByteBuffer mapped;
+
+    private final List<Segment> segments = new ArrayList<>();   // sorted by address after layout()
+    private List<ImageRegion> regions;
+
+    protected SegmentedImage(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        try {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException | UnsupportedOperationException e) {
+            mapped = null;      // not a regular file, use positional reads
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    protected void clearSegments() {
+        segments.clear();
+        regions = null;
+    }
+
+    protected void addSegment(int address, int length, long fileOffset) throws FirmwareFormatException {
+        if (fileOffset < 0 || fileOffset + (length & 0xFFFFFFFFL) > size) {
+            throw new FirmwareFormatException("Segment at 0x" + Integer.toHexString(address) + " exceeds file size");
+        }
+        if (length != 0) {
+            segments.add(new Segment(address, length, fileOffset));
+        }
+    }
+
+    // sorts the segments and joins touching ones into regions, returns the number of data bytes
+    protected long layout() throws FirmwareFormatException {
+        if (segments.isEmpty()) {
+            throw new FirmwareFormatException("No data in file");
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return Integer.compare(a.address, b.address);
+            }
+        });
+        List<ImageRegion> layout = new ArrayList<>();
+        long dataLength = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (i > 0 && segment.address < segments.get(i - 1).address + segments.get(i - 1).length) {
+                throw new FirmwareFormatException("Elements overlap at 0x" + Integer.toHexString(segment.address));
+            }
+            layout.add(new ImageRegion(segment.address, segment.length));
+            dataLength += segment.length;
+        }
+        regions = ImageRegion.coalesce(layout, 1);
+        return dataLength;
+    }
+
+    protected int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public int getAddress() {
+        return segments.get(0).address;
+    }
+
+    @Override
+    public int getLength() {
+        Segment last = segments.get(segments.size() - 1);
+        return last.address + last.length - getAddress();
+    }
+
+    @Override
+    public List<ImageRegion> getRegions() {
+        return regions;
+    }
+
+    @Override
+    public void read(int address, byte[] buffer, int offset, int length) throws IOException {
+        Arrays.fill(buffer, offset, offset + length, (byte) 0xFF);
+        for (Segment segment : segments) {
+            long from = Math.max(address, segment.address);
+            long to = Math.min((long) address + length, (long) segment.address + segment.length);
+            if (from < to) {
+                readFile(segment.fileOffset + from - segment.address, buffer, (int) (offset + from - address), (int) (to - from));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mapped = null;
+        channel.close();
+    }
+
+    // view of the mapped file, null when the channel could not be mapped
+    protected ByteBuffer view(long position, long length) {
+        if (mapped == null) {
+            return null;
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) position);
+        view.limit((int) (position + length));
+        return view;
+    }
+
+    protected byte[] readBytes(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        readFile(position, bytes, 0, length);
+        return bytes;
+    }
+
+    protected void readFile(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (mapped != null) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) position);
+            view.get(buffer, offset, length);
+            return;
+        }
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position() - offset) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    protected static int getInt(byte[] bytes, int index) {
+        return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8
+                | (bytes[index + 2] & 0xFF) << 16 | (bytes[index + 3] & 0xFF) << 24;
+    }
+
+    protected static int getShort(byte[] bytes, int index) {
+        return (bytes[index] & 0xFF) | (bytes[index + 1] & 0xFF) << 8;
+    }
+
+    private static class Segment {
+        final int address;
+        final int length;
+        final long fileOffset;
+
+        Segment(int address, int length, long fileOffset) {
+            this.address = address;
+            this.length = length;
+            this.fileOffset = fileOffset;
+        }
+    }
+}
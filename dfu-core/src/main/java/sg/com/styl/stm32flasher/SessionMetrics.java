@@ -0,0 +1,109 @@
+package sg.com.styl.stm32flasher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Where the time of one DFU session goes: a latency histogram per control request (filled in by
+ * MeteredTransport) and per phase, plus counts of failed transfers and of busy GETSTATUS replies
+ * with the bwPollTimeout the device asked for.
+ */
+public class SessionMetrics {
+
+    public static final String PHASE_RESET = "reset to DFU";
+    public static final String PHASE_ENUMERATION = "enumeration";
+    public static final String PHASE_PROTECTION = "protection probe";
+    public static final String PHASE_FILE_LOAD = "file load";
+    public static final String PHASE_ERASE = "erase";
+    public static final String PHASE_WRITE = "write";
+    public static final String PHASE_VERIFY = "verify";
+    public static final String PHASE_DUMP = "dump";
+    public static final String PHASE_LEAVE = "leave";
+
+    private final Map<Integer, LatencyHistogram> transfers = new LinkedHashMap<>();
+    private final Map<String, LatencyHistogram> phases = new LinkedHashMap<>();
+    private long failedTransfers;
+    private long busyPolls;
+    private long pollTimeoutMillis;
+    private final long startNanos = System.nanoTime();
+
+    public static String requestName(int request) {
+        switch (request) {
+            case DfuProtocol.DFU_DETACH:
+                return "DETACH";
+            case DfuProtocol.DFU_DNLOAD:
+                return "DNLOAD";
+            case DfuProtocol.DFU_UPLOAD:
+                return "UPLOAD";
+            case DfuProtocol.DFU_GETSTATUS:
+                return "GETSTATUS";
+            case DfuProtocol.DFU_CLRSTATUS:
+                return "CLRSTATUS";
+            case DfuProtocol.DFU_GETSTATE:
+                return "GETSTATE";
+            case DfuProtocol.DFU_ABORT:
+                return "ABORT";
+            default:
+                return "0x" + Integer.toHexString(request);
+        }
+    }
+
+    public synchronized LatencyHistogram transfer(int request) {
+        LatencyHistogram histogram = transfers.get(request);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            transfers.put(request, histogram);
+        }
+        return histogram;
+    }
+
+    public synchronized LatencyHistogram phase(String name) {
+        LatencyHistogram histogram = phases.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            phases.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    // records the time since startNanos (from System.nanoTime()) against the phase
+    public void endPhase(String name, long startNanos) {
+        phase(name).record(System.nanoTime() - startNanos);
+    }
+
+    public synchronized void countFailedTransfer() {
+        failedTransfers++;
+    }
+
+    public synchronized void countBusyPoll(int pollTimeout) {
+        busyPolls++;
+        pollTimeoutMillis += pollTimeout;
+    }
+
+    public synchronized long getFailedTransfers() {
+        return failedTransfers;
+    }
+
+    public synchronized long getBusyPolls() {
+        return busyPolls;
+    }
+
+    public synchronized long getPollTimeoutMillis() {
+        return pollTimeoutMillis;
+    }
+
+    public synchronized String summary() {
+        StringBuilder text = new StringBuilder();
+        text.append("session ").append((System.nanoTime() - startNanos) / 1000000).append(" ms\n");
+        for (Map.Entry<String, LatencyHistogram> phase : phases.entrySet()) {
+            text.append("  ").append(phase.getKey()).append(": ").append(phase.getValue()).append('\n');
+        }
+        for (Map.Entry<Integer, LatencyHistogram> transfer : transfers.entrySet()) {
+            text.append("  ").append(requestName(transfer.getKey())).append(": ").append(transfer.getValue()).append('\n');
+        }
+        text.append("  failed transfers: ").append(failedTransfers)
+                .append(", busy polls: ").append(busyPolls)
+                .append(" (bwPollTimeout ").append(pollTimeoutMillis).append(" ms)");
+        return text.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package sg.com.styl.stm32flasher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Image held in memory as runs of bytes at their flash addresses, with nothing kept for the gaps.
+ */
+public class SparseImage implements FirmwareImage {
+
+    private final List<ByteArrayImage> runs;    // sorted by address
+    private final List<ImageRegion> regions;
+    private final long dataLength;
+
+    public SparseImage(List<ByteArrayImage> runs) throws FirmwareFormatException {
+        if (runs.isEmpty()) {
+            throw new FirmwareFormatException("No data in file");
+        }
+        this.runs = new ArrayList<>(runs);
+        Collections.sort(this.runs, new Comparator<ByteArrayImage>() {
+            @Override
+            public int compare(ByteArrayImage a, ByteArrayImage b) {
+                return Integer.compare(a.getAddress(), b.getAddress());
+            }
+        });
+        List<ImageRegion> layout = new ArrayList<>();
+        long length = 0;
+        for (int i = 0; i < this.runs.size(); i++) {
+            ByteArrayImage run = this.runs.get(i);
+            if (i > 0 && run.getAddress() < this.runs.get(i - 1).getAddress() + this.runs.get(i - 1).getLength()) {
+                throw new FirmwareFormatException("Records overlap at 0x" + Integer.toHexString(run.getAddress()));
+            }
+            layout.add(new ImageRegion(run.getAddress(), run.getLength()));
+            length += run.getLength();
+        }
+        this.regions = ImageRegion.coalesce(layout, 1);
+        this.dataLength = length;
+    }
+
+    // copies the regions of another image, e.g. to keep it after its file is closed
+    public static SparseImage copyOf(FirmwareImage image) throws IOException, FirmwareFormatException {
+        List<ByteArrayImage> runs = new ArrayList<>();
+        for (ImageRegion region : image.getRegions()) {
+            byte[] data = new byte[region.getLength()];
+            image.read(region.getAddress(), data, 0, data.length);
+            runs.add(new ByteArrayImage(region.getAddress(), data));
+        }
+        return new SparseImage(runs);
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    // bytes held, gaps not counted
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    @Override
+    public int getAddress() {
+        return runs.get(0).getAddress();
+    }
+
+    @Override
+    public int getLength() {
+        ByteArrayImage last = runs.get(runs.size() - 1);
+        return last.getAddress() + last.getLength() - getAddress();
+    }
+
+    @Override
+    public List<ImageRegion> getRegions() {
+        return regions;
+    }
+
+    @Override
+    public void read(int address, byte[] buffer, int offset, int length) {
+        Arrays.fill(buffer, offset, offset + length, (byte) 0xFF);
+        for (ByteArrayImage run : runs) {
+            long from = Math.max(address, run.getAddress());
+            long to = Math.min((long) address + length, (long) run.getAddress() + run.getLength());
+            if (from < to) {
+                run.read((int) from, buffer, (int) (offset + from - address), (int) (to - from));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,37 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AttachLatchTest {
+
+    @Test
+    public void waitsForClaimAfterArm() throws Exception {
+        final AttachLatch latch = new AttachLatch();
+        latch.signal();     // connection from before the reset
+        latch.arm();
+        assertFalse(latch.await(20));
+        assertEquals(-1, latch.getLatencyMillis());
+
+        latch.arm();
+        Thread claim = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                latch.signal();
+            }
+        });
+        long start = System.nanoTime();
+        claim.start();
+        assertTrue(latch.await(5000));
+        long waited = (System.nanoTime() - start) / 1000000;
+        assertTrue("woke after " + waited + " ms", waited < 1000);
+        assertTrue(latch.getLatencyMillis() >= 40);
+        claim.join();
+    }
+}
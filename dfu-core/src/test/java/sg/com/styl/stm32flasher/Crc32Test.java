@@ -0,0 +1,50 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class Crc32Test {
+
+    private static int reference(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    @Test
+    public void matchesZipCrcForAllAlignments() {
+        byte[] data = new byte[300];
+        new Random(6).nextBytes(data);
+        Crc32 crc = new Crc32();
+        for (int offset = 0; offset < 9; offset++) {
+            for (int length = 0; length < data.length - offset; length += 7) {
+                crc.update(data, offset, length);
+                assertEquals(reference(data, offset, length), crc.finish());
+                int half = length / 2;
+                int register = CRC8Utils.update(-1, data, offset, half);
+                assertEquals(~reference(data, offset, length), CRC8Utils.update(register, data, offset + half, length - half));
+            }
+        }
+    }
+
+    @Test
+    public void directBuffersAndCombine() throws Exception {
+        byte[] data = new byte[3 << 20];
+        new Random(7).nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        int expected = reference(data, 0, data.length);
+
+        assertEquals(expected, ~CRC8Utils.update(-1, data, 0, data.length));
+        assertEquals(expected, Crc32.compute(direct, 4));
+        assertEquals(expected, Crc32.compute(ByteBuffer.wrap(data), 3));
+        assertEquals(expected, Crc32.combine(reference(data, 0, 1000), reference(data, 1000, data.length - 1000), data.length - 1000));
+        assertEquals(expected, Crc32.compute(direct, 4));    // the shared threads are reused
+        assertEquals(data.length, direct.remaining());
+    }
+}
@@ -0,0 +1,66 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaFlasherTest {
+
+    @Test
+    public void rewritesOnlyChangedPages() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        byte[] image = new byte[6 * 1024 + 100];
+        new Random(7).nextBytes(image);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, image);
+        byte[] tail = new byte[1024 - 100];
+        Arrays.fill(tail, (byte) 0xFF);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START + image.length, tail);
+
+        image[10] ^= 1;             // page 0
+        image[3 * 1024 + 5] ^= 1;   // page 3
+        image[4 * 1024 + 7] ^= 1;   // page 4
+        byte[] file = new byte[image.length + 20];
+        System.arraycopy(image, 0, file, 20, image.length);
+
+        DeltaFlasher deltaFlasher = new DeltaFlasher(new DfuProtocol(emulator), emulator.getCapabilities().getLayout(0), 2048);
+        deltaFlasher.program(new ByteArrayImage(DfuSeEmulator.FLASH_START, file, 20, image.length));
+
+        assertEquals(7, deltaFlasher.getPagesChecked());
+        assertEquals(3, deltaFlasher.getPagesWritten());
+        assertArrayEquals(image, emulator.readMemory(DfuSeEmulator.FLASH_START, image.length));
+    }
+
+    @Test
+    public void unchangedImageWritesNothing() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        byte[] image = new byte[4096];
+        new Random(3).nextBytes(image);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, image);
+
+        DeltaFlasher deltaFlasher = new DeltaFlasher(new DfuProtocol(emulator), emulator.getCapabilities().getLayout(0), 2048);
+        deltaFlasher.program(new ByteArrayImage(DfuSeEmulator.FLASH_START, image));
+
+        assertEquals(0, deltaFlasher.getPagesWritten());
+        assertEquals(1, emulator.getTransferCount(DfuProtocol.DFU_DNLOAD));     // address pointer only
+        assertEquals(2, emulator.getTransferCount(DfuProtocol.DFU_UPLOAD));
+    }
+
+    @Test
+    public void largerSectorsAreRewrittenWhole() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator(DfuSeEmulator.FLASH_SIZE, 2048);
+        byte[] image = new byte[3 * 2048];
+        new Random(5).nextBytes(image);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, image);
+
+        image[2048 + 1500] ^= 1;    // second half of sector 1, which the erase wipes whole
+        DeltaFlasher deltaFlasher = new DeltaFlasher(new DfuProtocol(emulator), emulator.getCapabilities().getLayout(0), 1024);
+        deltaFlasher.program(new ByteArrayImage(DfuSeEmulator.FLASH_START, image));
+
+        assertEquals(3, deltaFlasher.getPagesChecked());
+        assertEquals(1, deltaFlasher.getPagesWritten());
+        assertArrayEquals(image, emulator.readMemory(DfuSeEmulator.FLASH_START, image.length));
+    }
+}
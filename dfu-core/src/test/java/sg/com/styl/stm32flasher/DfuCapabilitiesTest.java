@@ -0,0 +1,104 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DfuCapabilitiesTest {
+
+    @Test
+    public void parsesDescriptorsOfTheBootloader() throws Exception {
+        DfuCapabilities capabilities = DfuCapabilities.read(new DfuSeEmulator(), null);
+        assertEquals(0x0483, capabilities.getVendorId());
+        assertEquals(0xDF11, capabilities.getProductId());
+        assertEquals(0x2200, capabilities.getDeviceVersion());
+        assertEquals("STM32  BOOTLOADER", capabilities.getProduct());
+        assertEquals("FFFFFFFEFFFF", capabilities.getSerial());
+        assertEquals(1, capabilities.getConfigurationValue());
+        assertEquals(2048, capabilities.getFunctional().getTransferSize());
+
+        assertEquals(2, capabilities.getAlternates().size());
+        assertEquals(DfuSeEmulator.FLASH_SIZE, capabilities.getLayout(0).getSize());
+        assertEquals("Option Bytes", capabilities.getLayout(1).getName());
+        assertEquals(1, capabilities.findAlternate(DfuSeEmulator.OPTION_BYTES_START).getAlternateSetting());
+        assertNull(capabilities.findAlternate(0x20000000));
+    }
+
+    @Test
+    public void cachedPerSerialWithoutFurtherTransfers() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        DfuCapabilities first = DfuCapabilities.forDevice("cache-test", emulator);
+        int transfers = emulator.getTransferCount();
+        assertTrue(transfers > 0);
+        assertSame(first, DfuCapabilities.forDevice("cache-test", new DfuSeEmulator()));
+        assertEquals(transfers, emulator.getTransferCount());
+
+        DfuCapabilities.forget("cache-test");
+        assertFalse(first == DfuCapabilities.forDevice("cache-test", emulator));
+    }
+
+    @Test
+    public void versionIsNotSignExtended() throws Exception {
+        byte[] raw = new DfuSeEmulator().getRawDescriptors();
+        raw[12] = (byte) 0x9A;
+        raw[13] = (byte) 0x81;
+        assertEquals(0x819A, DfuCapabilities.read(new RawTransport(raw), "x").getDeviceVersion());
+    }
+
+    @Test
+    public void transferSizeFallsBackToBootloaderVersion() throws Exception {
+        byte[] raw = new DfuSeEmulator().getRawDescriptors();
+        raw = Arrays.copyOf(raw, raw.length - 9);    // no functional descriptor
+        raw[12] = 0x1A;
+        raw[13] = 0x01;
+        assertEquals(1024, DfuCapabilities.read(new RawTransport(raw), "x").getTransferSize());
+        raw[12] = 0x34;
+        try {
+            DfuCapabilities.read(new RawTransport(raw), "x").getTransferSize();
+            fail("unknown bootloader without wTransferSize");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("134"));
+        }
+    }
+
+    // descriptors only, every request stalls
+    private static class RawTransport implements DfuTransport {
+        private final byte[] raw;
+
+        RawTransport(byte[] raw) {
+            this.raw = raw;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public int getDeviceVersion() {
+            return 0;
+        }
+
+        @Override
+        public byte[] getRawDescriptors() {
+            return raw;
+        }
+
+        @Override
+        public DfuCapabilities getCapabilities() {
+            return null;
+        }
+
+        @Override
+        public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+            return -1;
+        }
+
+        @Override
+        public boolean release() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DfuDownloaderTest {
+
+    private DfuSeEmulator emulator;
+    private DfuDownloader downloader;
+
+    @Before
+    public void setUp() {
+        emulator = new DfuSeEmulator();
+        downloader = new DfuDownloader(new DfuProtocol(emulator));
+    }
+
+    @Test
+    public void threeTransfersPerBlock() throws Exception {
+        byte[] image = new byte[16 * 2048];
+        new Random(1).nextBytes(image);
+        byte[] block = new byte[2048];
+        for (int i = 0; i < 16; i++) {
+            System.arraycopy(image, i * block.length, block, 0, block.length);
+            downloader.writeBlock(DfuSeEmulator.FLASH_START + i * block.length, block);
+        }
+        downloader.finish();
+
+        assertArrayEquals(image, emulator.readMemory(DfuSeEmulator.FLASH_START, image.length));
+        assertEquals(16, emulator.getTransferCount(DfuProtocol.DFU_DNLOAD) - 1);
+        assertEquals(0, emulator.getTransferCount(DfuProtocol.DFU_CLRSTATUS));
+        // initial GETSTATUS, set address, 3 per block, abort
+        assertEquals(1 + 3 + 16 * 3 + 1, emulator.getTransferCount());
+        assertEquals(DfuProtocol.STATE_DFU_IDLE, downloader.getState());
+    }
+
+    @Test
+    public void gapResendsAddressPointer() throws Exception {
+        byte[] block = new byte[1024];
+        block[0] = 0x42;
+        downloader.writeBlock(DfuSeEmulator.FLASH_START, block);
+        downloader.writeBlock(DfuSeEmulator.FLASH_START + 4096, block);
+        assertEquals(4, emulator.getTransferCount(DfuProtocol.DFU_DNLOAD));
+        assertEquals(0x42, emulator.readMemory(DfuSeEmulator.FLASH_START + 4096, 1)[0]);
+    }
+
+    @Test
+    public void errorIsClearedAndReported() throws Exception {
+        byte[] block = new byte[1024];
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, new byte[]{0, 1});
+        block[0] = 0x55;
+        try {
+            downloader.writeBlock(DfuSeEmulator.FLASH_START, block);
+            fail("write over programmed flash must fail");
+        } catch (Exception e) {
+            assertEquals(DfuProtocol.STATE_DFU_IDLE, downloader.getState());
+            assertEquals(1, emulator.getTransferCount(DfuProtocol.DFU_CLRSTATUS));
+        }
+        downloader.massErase();
+        downloader.writeBlock(DfuSeEmulator.FLASH_START, block);
+        assertEquals(0x55, emulator.readMemory(DfuSeEmulator.FLASH_START, 1)[0]);
+    }
+
+    @Test
+    public void leaveWaitsOutManifestationOfTheBootloader() throws Exception {
+        DfuFunctionalDescriptor functional = emulator.getCapabilities().getFunctional();
+        assertFalse(functional.isManifestationTolerant());
+        assertTrue(downloader.leave(DfuSeEmulator.FLASH_START, functional));
+        assertFalse(emulator.isConnected());
+        assertEquals(0, emulator.getTransferCount(DfuProtocol.DFU_DETACH));
+
+        emulator.reconnect();
+        DfuDownloader second = new DfuDownloader(new DfuProtocol(emulator));
+        assertFalse("no bitWillDetach, the host resets it",
+                second.leave(DfuSeEmulator.FLASH_START, new DfuFunctionalDescriptor(0x03, 255, 2048, 0x011A)));
+    }
+}
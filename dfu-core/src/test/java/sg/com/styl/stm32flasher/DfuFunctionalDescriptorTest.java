@@ -0,0 +1,55 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DfuFunctionalDescriptorTest {
+
+    @Test
+    public void parsedFromConfiguration() {
+        DfuFunctionalDescriptor functional = DfuFunctionalDescriptor.parse(new DfuSeEmulator().getRawDescriptors());
+        assertNotNull(functional);
+        assertEquals(2048, functional.getTransferSize());
+        assertEquals(255, functional.getDetachTimeout());
+        assertEquals(0x011A, functional.getDfuVersion());
+        assertTrue(functional.canDownload());
+        assertTrue(functional.canUpload());
+        assertFalse(functional.isManifestationTolerant());
+        assertTrue(functional.willDetach());
+    }
+
+    @Test
+    public void missingOrMalformed() {
+        assertNull(DfuFunctionalDescriptor.parse(null));
+        assertNull(DfuFunctionalDescriptor.parse(new byte[]{18, 0x01, 0, 2}));
+        assertNull(DfuFunctionalDescriptor.parse(new byte[]{0, 0x21, 0, 0, 0, 0, 0}));
+        // DFU 1.0 descriptor without bcdDFUVersion
+        DfuFunctionalDescriptor functional = DfuFunctionalDescriptor.parse(new byte[]{7, 0x21, 0x03, 100, 0, 0, 4});
+        assertEquals(1024, functional.getTransferSize());
+        assertEquals(0x0100, functional.getDfuVersion());
+    }
+
+    @Test
+    public void largerTransfersTakeFewerRoundTrips() throws Exception {
+        byte[] data = new byte[16384];
+        new Random(15).nextBytes(data);
+        FirmwareImage image = new ByteArrayImage(DfuSeEmulator.FLASH_START, data);
+
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        emulator.setTransferSize(4096);
+        int transferSize = DfuFunctionalDescriptor.parse(emulator.getRawDescriptors()).getTransferSize();
+        assertEquals(4096, transferSize);
+        new FlashWriter(new DfuProtocol(emulator), transferSize).write(image);
+        assertArrayEquals(data, emulator.readMemory(DfuSeEmulator.FLASH_START, data.length));
+        assertEquals(1 + 4, emulator.getTransferCount(DfuProtocol.DFU_DNLOAD));
+
+        try {
+            new FlashWriter(new DfuProtocol(emulator), 8192).write(image);
+            fail("blocks above wTransferSize must be refused");
+        } catch (Exception expected) {
+        }
+    }
+}
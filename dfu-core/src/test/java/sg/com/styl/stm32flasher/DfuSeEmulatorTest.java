@@ -0,0 +1,110 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DfuSeEmulatorTest {
+
+    private DfuSeEmulator emulator;
+    private DfuProtocol dfu;
+    private DfuStatus status;
+
+    @Before
+    public void setUp() {
+        emulator = new DfuSeEmulator();
+        dfu = new DfuProtocol(emulator);
+        status = new DfuStatus();
+    }
+
+    private void execute() throws Exception {
+        dfu.getStatus(status);
+        assertEquals(DfuProtocol.STATE_DFU_DOWNLOAD_BUSY, status.bState);
+        dfu.getStatus(status);
+    }
+
+    @Test
+    public void downloadThenUploadRoundTrip() throws Exception {
+        byte[] block = new byte[2048];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) i;
+        }
+        dfu.setAddressPointer(DfuSeEmulator.FLASH_START);
+        execute();
+        assertEquals(DfuProtocol.STATE_DFU_DOWNLOAD_IDLE, status.bState);
+        dfu.download(block, 2);
+        dfu.getStatus(status);
+        assertEquals(DfuProtocol.STATE_DFU_DOWNLOAD_BUSY, status.bState);
+        assertEquals(62, status.bwPollTimeout);     // 1024 half-words at 60us
+        dfu.getStatus(status);
+        assertEquals(DfuProtocol.STATE_DFU_DOWNLOAD_IDLE, status.bState);
+        assertArrayEquals(block, emulator.readMemory(DfuSeEmulator.FLASH_START, block.length));
+
+        byte[] readBack = new byte[block.length];
+        emulator.controlTransfer(DfuProtocol.DFU_RequestType, DfuProtocol.DFU_ABORT, 0, 0, null, 0, 0);
+        int length = emulator.controlTransfer(DfuProtocol.DFU_RequestType | DfuProtocol.USB_DIR_IN,
+                DfuProtocol.DFU_UPLOAD, 2, 0, readBack, readBack.length, 0);
+        assertEquals(block.length, length);
+        assertArrayEquals(block, readBack);
+    }
+
+    @Test
+    public void writingProgrammedFlashFails() throws Exception {
+        byte[] block = new byte[1024];
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, new byte[]{0x12, 0x34});
+        dfu.setAddressPointer(DfuSeEmulator.FLASH_START);
+        execute();
+        Arrays.fill(block, (byte) 0x55);
+        dfu.download(block, 2);
+        execute();
+        assertEquals(DfuProtocol.STATE_DFU_ERROR, status.bState);
+        assertEquals(DfuProtocol.STATUS_ERR_PROG, status.bStatus);
+
+        dfu.clearStatus();
+        dfu.massEraseCommand();
+        execute();
+        dfu.download(block, 2);
+        execute();
+        assertEquals(DfuProtocol.STATE_DFU_DOWNLOAD_IDLE, status.bState);
+    }
+
+    @Test
+    public void clearStatusOutsideErrorEntersError() throws Exception {
+        dfu.clearStatus();
+        dfu.getStatus(status);
+        assertEquals(DfuProtocol.STATE_DFU_ERROR, status.bState);
+        dfu.clearStatus();
+        dfu.getStatus(status);
+        assertEquals(DfuProtocol.STATE_DFU_IDLE, status.bState);
+    }
+
+    @Test
+    public void readProtectionBlocksAddressUntilUnprotected() throws Exception {
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, new byte[]{1, 2, 3, 4});
+        emulator.setReadProtected(true);
+        dfu.setAddressPointer(DfuSeEmulator.FLASH_START);
+        execute();
+        assertEquals(DfuProtocol.STATE_DFU_ERROR, status.bState);
+
+        dfu.clearStatus();
+        dfu.unProtectCommand();
+        dfu.getStatus(status);
+        assertEquals(DfuProtocol.STATE_DFU_DOWNLOAD_BUSY, status.bState);
+        assertFalse(emulator.isConnected());
+        emulator.reconnect();
+        assertFalse(emulator.isReadProtected());
+        assertArrayEquals(new byte[]{-1, -1, -1, -1}, emulator.readMemory(DfuSeEmulator.FLASH_START, 4));
+    }
+
+    @Test
+    public void simulatedTimeIncludesPollTimeouts() throws Exception {
+        dfu.massEraseCommand();
+        execute();
+        assertEquals(3, emulator.getTransferCount());
+        assertEquals(2, emulator.getTransferCount(DfuProtocol.DFU_GETSTATUS));
+        assertTrue(emulator.getSimulatedNanos() >= 25000000L);
+    }
+}
@@ -0,0 +1,125 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DfuSeReaderTest {
+
+    static byte[] buildDfuSe(int address, byte[] data) {
+        return buildDfuSe(new int[][]{{address}}, new byte[][][]{{data}});
+    }
+
+    // addresses[t][e] and data[t][e] describe element e of target t
+    static byte[] buildDfuSe(int[][] addresses, byte[][][] data) {
+        int size = 11 + 16;
+        for (byte[][] target : data) {
+            size += 274;
+            for (byte[] element : target) {
+                size += 8 + element.length;
+            }
+        }
+        ByteBuffer file = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        file.put("DfuSe".getBytes()).put((byte) 1).putInt(file.capacity() - 16).put((byte) data.length);
+        byte[] name = new byte[255];
+        System.arraycopy("ST...".getBytes(), 0, name, 0, 5);
+        for (int t = 0; t < data.length; t++) {
+            int targetSize = 0;
+            for (byte[] element : data[t]) {
+                targetSize += 8 + element.length;
+            }
+            file.put("Target".getBytes()).put((byte) t).putInt(1).put(name).putInt(targetSize).putInt(data[t].length);
+            for (int e = 0; e < data[t].length; e++) {
+                file.putInt(addresses[t][e]).putInt(data[t][e].length).put(data[t][e]);
+            }
+        }
+        file.putShort((short) 0x2200).putShort((short) 0xDF11).putShort((short) 0x0483).putShort((short) 0x011A);
+        file.put("UFD".getBytes()).put((byte) 16);
+        file.putInt(CRC8Utils.update(-1, file.array(), 0, file.position()));
+        return file.array();
+    }
+
+    static File writeTemp(byte[] content) throws Exception {
+        File file = File.createTempFile("image", ".dfu");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void parsesHeadersAndServesBlocks() throws Exception {
+        byte[] data = new byte[3000];
+        new Random(2).nextBytes(data);
+        DfuFile dfuFile = new DfuFile();
+        DfuSeReader reader = new DfuSeReader(new RandomAccessFile(writeTemp(buildDfuSe(0x08000000, data)), "r").getChannel());
+        reader.parse(dfuFile);
+
+        assertEquals("ST...", dfuFile.TargetName);
+        assertEquals(1, dfuFile.NumElements);
+        assertEquals(0x08000000, dfuFile.elementStartAddress);
+        assertEquals(3000, dfuFile.elementLength);
+        assertEquals(0x0483, dfuFile.VID);
+        assertEquals(0xDF11, dfuFile.PID);
+        assertEquals(0x2200, dfuFile.BootVersion);
+        assertSame(reader, dfuFile.image);
+
+        byte[] block = new byte[2048];
+        reader.read(0x08000800, block, 0, block.length);
+        for (int i = 0; i < 952; i++) {
+            assertEquals(data[2048 + i], block[i]);
+        }
+        assertEquals((byte) 0xFF, block[952]);
+        reader.close();
+    }
+
+    @Test
+    public void joinsElementsOfAllTargets() throws Exception {
+        byte[] low = new byte[600], next = new byte[400], high = new byte[700];
+        Random random = new Random(3);
+        random.nextBytes(low);
+        random.nextBytes(next);
+        random.nextBytes(high);
+        byte[] content = buildDfuSe(new int[][]{{0x08000258, 0x08000000}, {0x08002000}},
+                new byte[][][]{{next, low}, {high}});
+        DfuFile dfuFile = new DfuFile();
+        DfuSeReader reader = new DfuSeReader(new RandomAccessFile(writeTemp(content), "r").getChannel());
+        reader.parse(dfuFile);
+
+        assertEquals(2, dfuFile.NumTargets);
+        assertEquals(3, dfuFile.NumElements);
+        assertEquals(0x08000000, dfuFile.elementStartAddress);
+        assertEquals(0x2000 + 700, dfuFile.elementLength);
+        assertEquals(2, reader.getRegions().size());
+        assertEquals(1000, reader.getRegions().get(0).getLength());
+        assertEquals(0x08002000, reader.getRegions().get(1).getAddress());
+
+        byte[] block = new byte[1024];
+        reader.read(0x08000200, block, 0, block.length);
+        assertEquals(low[0x200], block[0]);
+        assertEquals(next[0], block[0x58]);
+        assertEquals((byte) 0xFF, block[0x58 + 400]);
+        reader.close();
+    }
+
+    @Test(expected = FirmwareFormatException.class)
+    public void rejectsOverlappingElements() throws Exception {
+        byte[] content = buildDfuSe(new int[][]{{0x08000000, 0x08000100}}, new byte[][][]{{new byte[1024], new byte[1024]}});
+        new DfuSeReader(new RandomAccessFile(writeTemp(content), "r").getChannel()).parse(new DfuFile());
+    }
+
+    @Test(expected = FirmwareFormatException.class)
+    public void rejectsCorruptedFile() throws Exception {
+        byte[] content = buildDfuSe(0x08000000, new byte[1024]);
+        content[400] ^= 1;
+        new DfuSeReader(new RandomAccessFile(writeTemp(content), "r").getChannel()).parse(new DfuFile());
+    }
+}
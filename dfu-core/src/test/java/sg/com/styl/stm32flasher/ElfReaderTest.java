@@ -0,0 +1,63 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class ElfReaderTest {
+
+    // text at 0x08000000, data loaded from 0x08000400 but linked to RAM, and a bss-only segment
+    private static byte[] buildElf(byte[] text, byte[] data) {
+        int phoff = 52, dataOffset = phoff + 3 * 32;
+        ByteBuffer elf = ByteBuffer.allocate(dataOffset + text.length + data.length).order(ByteOrder.LITTLE_ENDIAN);
+        elf.put(new byte[]{0x7F, 'E', 'L', 'F', 1, 1, 1});
+        elf.position(16);
+        elf.putShort((short) 2).putShort((short) 40).putInt(1).putInt(0x08000001).putInt(phoff).putInt(0)
+                .putInt(0).putShort((short) 52).putShort((short) 32).putShort((short) 3)
+                .putShort((short) 40).putShort((short) 0).putShort((short) 0);
+        elf.putInt(1).putInt(dataOffset).putInt(0x08000000).putInt(0x08000000).putInt(text.length).putInt(text.length).putInt(5).putInt(4);
+        elf.putInt(1).putInt(dataOffset + text.length).putInt(0x20000000).putInt(0x08000400).putInt(data.length).putInt(data.length).putInt(6).putInt(4);
+        elf.putInt(1).putInt(0).putInt(0x20000100).putInt(0x20000100).putInt(0).putInt(0x200).putInt(6).putInt(4);
+        elf.put(text).put(data);
+        return elf.array();
+    }
+
+    @Test
+    public void loadsSegmentsAtPhysicalAddress() throws Exception {
+        byte[] text = new byte[700], data = new byte[100];
+        text[0] = 0x11;
+        data[0] = 0x22;
+        FirmwareReader reader = FirmwareReaders.open(new RandomAccessFile(DfuSeReaderTest.writeTemp(buildElf(text, data)), "r").getChannel(), 0);
+        assertTrue(reader instanceof ElfReader);
+        DfuFile dfuFile = new DfuFile();
+        reader.parse(dfuFile);
+
+        assertEquals(2, dfuFile.NumElements);
+        assertEquals(2, reader.getRegions().size());
+        assertEquals(0x08000400, reader.getRegions().get(1).getAddress());
+        byte[] block = new byte[1];
+        reader.read(0x08000400, block, 0, 1);
+        assertEquals(0x22, block[0]);
+        reader.read(0x08000000, block, 0, 1);
+        assertEquals(0x11, block[0]);
+        reader.close();
+    }
+
+    @Test
+    public void unknownContentIsRawBinary() throws Exception {
+        byte[] content = new byte[600];
+        content[599] = 0x33;
+        FirmwareReader reader = FirmwareReaders.open(new RandomAccessFile(DfuSeReaderTest.writeTemp(content), "r").getChannel(), 0x08001000);
+        assertTrue(reader instanceof BinaryReader);
+        reader.parse(new DfuFile());
+        assertEquals(0x08001000, reader.getAddress());
+        byte[] block = new byte[2];
+        reader.read(0x08001000 + 599, block, 0, 2);
+        assertArrayEquals(new byte[]{0x33, (byte) 0xFF}, block);
+        reader.close();
+    }
+}
@@ -0,0 +1,74 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class FirmwareCacheTest {
+
+    private static DfuFile parsed(int size) {
+        DfuFile dfuFile = new DfuFile();
+        byte[] data = new byte[size];
+        data[0] = 0x5A;
+        dfuFile.image = new ByteArrayImage(0x08000000, data);
+        dfuFile.TargetName = "ST...";
+        dfuFile.elementStartAddress = 0x08000000;
+        dfuFile.elementLength = size;
+        dfuFile.maxBlockSize = 2048;
+        return dfuFile;
+    }
+
+    @Test
+    public void hitFillsFileAndRemembersDevice() throws Exception {
+        FirmwareCache cache = new FirmwareCache(1 << 20);
+        cache.put("a", parsed(4096), "483:df11:2200");
+
+        DfuFile dfuFile = new DfuFile();
+        dfuFile.filePath = "content://firmware/1";
+        dfuFile.maxBlockSize = 1024;
+        assertTrue(cache.load("a", dfuFile));
+        assertEquals("content://firmware/1", dfuFile.filePath);
+        assertEquals("ST...", dfuFile.TargetName);
+        assertEquals(1024, dfuFile.maxBlockSize);     // the device's, not that of whoever put the entry
+        byte[] first = new byte[1];
+        dfuFile.image.read(0x08000000, first, 0, 1);
+        assertEquals(0x5A, first[0]);
+
+        assertTrue(cache.isCompatible("a", "483:df11:2200"));
+        assertFalse(cache.isCompatible("a", "483:df11:2100"));
+        assertFalse(cache.load("b", new DfuFile()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        FirmwareCache cache = new FirmwareCache(2 * 10000);
+        cache.put("a", parsed(9000), "d");
+        cache.put("b", parsed(9000), "d");
+        cache.load("a", new DfuFile());
+        cache.put("c", parsed(9000), "d");
+        cache.put("huge", parsed(40000), "d");
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.load("a", new DfuFile()));
+        assertFalse(cache.load("b", new DfuFile()));
+        assertTrue(cache.load("c", new DfuFile()));
+        assertFalse(cache.load("huge", new DfuFile()));
+    }
+
+    @Test
+    public void keysChangeWithContent() throws Exception {
+        File file = DfuSeReaderTest.writeTemp(new byte[]{1, 2, 3});
+        String before = FirmwareCache.contentKey(new RandomAccessFile(file, "r").getChannel());
+        String key = FirmwareCache.fileKey(file);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.write(new byte[]{1, 2, 4, 5});
+        out.close();
+        assertNotEquals(before, FirmwareCache.contentKey(new RandomAccessFile(file, "r").getChannel()));
+        assertNotEquals(key, FirmwareCache.fileKey(file));
+    }
+}
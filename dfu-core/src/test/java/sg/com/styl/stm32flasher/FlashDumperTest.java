@@ -0,0 +1,107 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class FlashDumperTest {
+
+    private final DfuSeEmulator emulator = new DfuSeEmulator();
+    private byte[] flash;
+
+    @Before
+    public void setUp() {
+        flash = new byte[DfuSeEmulator.FLASH_SIZE];
+        new Random(25).nextBytes(flash);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, flash);
+    }
+
+    private File dump(DfuCapabilities.Alternate alternate, FlashDumper.Format format, FlashDumper dumper) throws Exception {
+        File file = Files.createTempFile("dump", format == FlashDumper.Format.BIN ? ".bin" : ".dfu").toFile();
+        file.deleteOnExit();
+        FileChannel out = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            assertEquals(dumper.dump(alternate, out, format), out.size());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void binHoldsTheFlashAndItsCrc() throws Exception {
+        FlashDumper dumper = new FlashDumper(new DfuProtocol(emulator), 2048);
+        File file = dump(emulator.getCapabilities().getAlternate(0), FlashDumper.Format.BIN, dumper);
+
+        assertArrayEquals(flash, Files.readAllBytes(file.toPath()));
+        CRC32 expected = new CRC32();
+        expected.update(flash);
+        assertEquals((int) expected.getValue(), dumper.getCrc());
+        assertEquals(flash.length / 2048, emulator.getTransferCount(DfuProtocol.DFU_UPLOAD));
+        assertEquals(1, emulator.getTransferCount(DfuProtocol.DFU_DNLOAD));    // one address pointer for all blocks
+    }
+
+    @Test
+    public void dfuSeFileReadsBack() throws Exception {
+        File file = dump(emulator.getCapabilities().getAlternate(0), FlashDumper.Format.DFUSE,
+                new FlashDumper(new DfuProtocol(emulator), 2048));
+
+        FileChannel in = new RandomAccessFile(file, "r").getChannel();
+        try {
+            DfuSeReader reader = new DfuSeReader(in);
+            DfuFile dfuFile = new DfuFile();
+            reader.parse(dfuFile);
+            assertEquals("Internal Flash", dfuFile.TargetName);
+            assertEquals(0x0483, dfuFile.VID);
+            assertEquals(0xDF11, dfuFile.PID);
+            assertEquals(DfuSeEmulator.FLASH_START, dfuFile.elementStartAddress);
+            byte[] data = new byte[flash.length];
+            reader.read(DfuSeEmulator.FLASH_START, data, 0, data.length);
+            assertArrayEquals(flash, data);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void otherAlternateIsSelectedAndRestored() throws Exception {
+        byte[] optionBytes = {(byte) 0xAA, 0x55, (byte) 0xFF, 0x00, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12};
+        emulator.writeMemory(DfuSeEmulator.OPTION_BYTES_START, optionBytes);
+        File file = dump(emulator.getCapabilities().getAlternate(1), FlashDumper.Format.DFUSE,
+                new FlashDumper(new DfuProtocol(emulator), 2048));
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        assertEquals(11 + 274 + 8 + optionBytes.length + 16, content.length);
+        assertEquals(1, content[11 + 6]);      // bAlternateSetting
+        assertArrayEquals(optionBytes, Arrays.copyOfRange(content, 11 + 274 + 8, 11 + 274 + 8 + optionBytes.length));
+        assertEquals(0, emulator.getAlternateSetting());
+    }
+
+    @Test
+    public void binFillsGapsBetweenRegions() throws Exception {
+        FlashDumper dumper = new FlashDumper(new DfuProtocol(emulator), 1024);
+        File file = Files.createTempFile("dump", ".bin").toFile();
+        file.deleteOnExit();
+        FileChannel out = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            dumper.dump(Arrays.asList(new ImageRegion(DfuSeEmulator.FLASH_START, 100),
+                    new ImageRegion(DfuSeEmulator.FLASH_START + 200, 50)), 0, 0, "gaps", out, FlashDumper.Format.BIN);
+        } finally {
+            out.close();
+        }
+        byte[] content = Files.readAllBytes(file.toPath());
+        byte[] expected = Arrays.copyOf(flash, 250);
+        Arrays.fill(expected, 100, 200, (byte) 0xFF);
+        assertArrayEquals(expected, content);
+        assertEquals(150, dumper.getBytesRead());
+    }
+}
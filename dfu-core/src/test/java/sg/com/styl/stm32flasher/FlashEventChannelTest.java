@@ -0,0 +1,75 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FlashEventChannelTest {
+
+    private final List<Runnable> dispatched = new ArrayList<>();
+    private final List<List<String>> batches = new ArrayList<>();
+    private final List<Integer> progress = new ArrayList<>();
+    private FlashEventChannel channel;
+
+    @Before
+    public void setUp() {
+        channel = new FlashEventChannel(new FlashEventChannel.Dispatcher() {
+            @Override
+            public void dispatch(Runnable drain, long delayMillis) {
+                assertTrue(delayMillis <= FlashEventChannel.FRAME_MILLIS);
+                dispatched.add(drain);
+            }
+        }, new FlashEventChannel.Listener() {
+            @Override
+            public void onLog(List<String> lines) {
+                batches.add(lines);
+            }
+
+            @Override
+            public void onProgress(int value) {
+                progress.add(value);
+            }
+        }, 100);
+    }
+
+    @Test
+    public void eventsBetweenFramesAreCoalesced() {
+        for (int i = 1; i <= 50; i++) {
+            channel.log("block " + i);
+            channel.progress(i * 2);
+        }
+        assertEquals(1, dispatched.size());
+        dispatched.get(0).run();
+
+        assertEquals(1, batches.size());
+        assertEquals(50, batches.get(0).size());
+        assertEquals("block 1", batches.get(0).get(0));
+        assertEquals("block 50", batches.get(0).get(49));
+        assertEquals(1, progress.size());
+        assertEquals(100, (int) progress.get(0));
+
+        channel.progress(100);
+        assertEquals(2, dispatched.size());
+        dispatched.get(1).run();
+        assertEquals(1, batches.size());
+        assertEquals(2, progress.size());
+    }
+
+    @Test
+    public void oldestPendingLinesAreDropped() {
+        for (int i = 0; i < 250; i++) {
+            channel.log("line " + i);
+        }
+        dispatched.get(0).run();
+
+        List<String> lines = batches.get(0);
+        assertEquals(101, lines.size());
+        assertEquals("... 150 lines dropped", lines.get(0));
+        assertEquals("line 150", lines.get(1));
+        assertEquals("line 249", lines.get(100));
+    }
+}
@@ -0,0 +1,164 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class FlashJobSchedulerTest {
+
+    private static FlashJobScheduler.Job<Integer> state() {
+        return new FlashJobScheduler.Job<Integer>() {
+            @Override
+            public Integer run(DfuProtocol dfu) throws Exception {
+                DfuStatus status = new DfuStatus();
+                dfu.getStatus(status);
+                return (int) status.bState;
+            }
+        };
+    }
+
+    private static FlashJobScheduler.Job<Void> massErase() {
+        return new FlashJobScheduler.Job<Void>() {
+            @Override
+            public Void run(DfuProtocol dfu) throws Exception {
+                DfuDownloader downloader = new DfuDownloader(dfu);
+                downloader.massErase();
+                downloader.finish();
+                return null;
+            }
+        };
+    }
+
+    // returns the number of blocks written
+    private static FlashJobScheduler.Job<Integer> program(final FirmwareImage image, final FlashWriter.Listener listener) {
+        return new FlashJobScheduler.Job<Integer>() {
+            @Override
+            public Integer run(DfuProtocol dfu) throws Exception {
+                FlashWriter writer = new FlashWriter(dfu, 2048);
+                writer.setListener(listener);
+                return writer.write(image);
+            }
+        };
+    }
+
+    // returns the address of the first differing byte, or null when the flash matches the image
+    private static FlashJobScheduler.Job<Integer> verify(final FirmwareImage image) {
+        return new FlashJobScheduler.Job<Integer>() {
+            @Override
+            public Integer run(DfuProtocol dfu) throws Exception {
+                FlashVerifier verifier = new FlashVerifier(dfu, 2048);
+                return verifier.verify(image) ? null : verifier.getFirstMismatch();
+            }
+        };
+    }
+
+    private static FlashJobScheduler.Job<byte[]> read(final int address, final int length) {
+        return new FlashJobScheduler.Job<byte[]>() {
+            @Override
+            public byte[] run(DfuProtocol dfu) throws Exception {
+                DfuUploader uploader = new DfuUploader(dfu, new DfuDownloader(dfu));
+                byte[] data = new byte[length];
+                byte[] block = new byte[2048];
+                try {
+                    for (int done = 0; done < length; ) {
+                        int size = Math.min(block.length, length - done);
+                        uploader.read(address + done, block, size);
+                        System.arraycopy(block, 0, data, done, size);
+                        done += size;
+                    }
+                } finally {
+                    uploader.finish();
+                }
+                return data;
+            }
+        };
+    }
+
+    @Test
+    public void cancelledJobLeavesDeviceIdle() throws Exception {
+        byte[] data = new byte[DfuSeEmulator.FLASH_SIZE];
+        new Random(11).nextBytes(data);
+        FirmwareImage image = new ByteArrayImage(DfuSeEmulator.FLASH_START, data);
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        emulator.setRealTime(true);
+        FlashJobScheduler scheduler = new FlashJobScheduler();
+
+        final CountDownLatch started = new CountDownLatch(2);
+        Future<FlashJobScheduler.Result<Integer>> job = scheduler.submit("board", emulator,
+                program(image, new FlashWriter.Listener() {
+                    @Override
+                    public void onBlockWritten(int address, int blocksDone, int blocksTotal) {
+                        started.countDown();
+                    }
+                }));
+        started.await();
+        assertTrue(job.cancel(true));
+        assertTrue(job.isCancelled());
+        FlashJobScheduler.Result<Integer> result = job.get();    // once the job has stopped
+        assertTrue(job.isDone());
+        assertTrue(result.isCancelled());
+        assertNull(result.getValue());
+        assertTrue(result.getRunMillis() > 0);
+
+        // the clean up ran before get() returned
+        emulator.setRealTime(false);
+        DfuStatus status = new DfuStatus();
+        new DfuProtocol(emulator).getStatus(status);
+        assertEquals(DfuProtocol.STATE_DFU_IDLE, status.bState);
+        assertNotEquals(data[data.length - 1], emulator.readMemory(DfuSeEmulator.FLASH_START + data.length - 1, 1)[0]);
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void queuedJobCancelledBeforeItRuns() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        FlashJobScheduler scheduler = new FlashJobScheduler();
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<FlashJobScheduler.Result<Void>> first = scheduler.submit("board", emulator, new FlashJobScheduler.Job<Void>() {
+            @Override
+            public Void run(DfuProtocol dfu) throws Exception {
+                release.await();
+                return null;
+            }
+        });
+        Future<FlashJobScheduler.Result<Integer>> queued = scheduler.submit("board", emulator, state());
+
+        assertTrue(queued.cancel(true));
+        assertFalse(queued.isDone());   // still waiting for its turn
+        release.countDown();
+        FlashJobScheduler.Result<Integer> result = queued.get();
+        assertTrue(result.isCancelled());
+        assertNull(result.getValue());
+        assertEquals(0, result.getRunMillis());
+        assertFalse(first.get().isCancelled());
+        assertEquals(0, emulator.getTransferCount());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void jobsOfOneDeviceRunInOrder() throws Exception {
+        byte[] data = new byte[4096];
+        new Random(12).nextBytes(data);
+        FirmwareImage image = new ByteArrayImage(DfuSeEmulator.FLASH_START, data);
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, new byte[]{0, 0});
+        FlashJobScheduler scheduler = new FlashJobScheduler();
+
+        scheduler.submit("board", emulator, massErase());
+        Future<FlashJobScheduler.Result<Integer>> written = scheduler.submit("board", emulator, program(image, null));
+        Future<FlashJobScheduler.Result<byte[]>> read = scheduler.submit("board", emulator,
+                read(DfuSeEmulator.FLASH_START, data.length));
+        Future<FlashJobScheduler.Result<Integer>> verified = scheduler.submit("board", emulator, verify(image));
+
+        assertEquals(2, (int) written.get().getValue());
+        assertArrayEquals(data, read.get().getValue());
+        assertNull(verified.get().getValue());
+        assertEquals("board", verified.get().getDevice());
+        assertTrue(verified.get().getQueuedMillis() >= 0);
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,148 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlashJournalTest {
+
+    private static final int BLOCK_SIZE = 2048;
+
+    private final DfuSeEmulator emulator = new DfuSeEmulator();
+    private File directory;
+    private FirmwareImage image;
+    private byte[] data;
+    private MemoryLayout layout;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("journal").toFile();
+        directory.deleteOnExit();
+        data = new byte[8 * BLOCK_SIZE];
+        new Random(18).nextBytes(data);
+        image = new ByteArrayImage(DfuSeEmulator.FLASH_START, data);
+        layout = MemoryLayout.parse("@Internal Flash  /0x08000000/032*0001Kg");
+    }
+
+    // the link drops on the given DNLOAD, before the block reaches flash
+    private DfuTransport droppingAfter(final int dnloads) {
+        return new DfuTransport() {
+            private int count;
+
+            @Override
+            public boolean isConnected() {
+                return emulator.isConnected();
+            }
+
+            @Override
+            public int getDeviceVersion() {
+                return emulator.getDeviceVersion();
+            }
+
+            @Override
+            public byte[] getRawDescriptors() {
+                return emulator.getRawDescriptors();
+            }
+
+            @Override
+            public DfuCapabilities getCapabilities() {
+                return emulator.getCapabilities();
+            }
+
+            @Override
+            public int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+                if (request == DfuProtocol.DFU_DNLOAD && ++count == dnloads) {
+                    emulator.release();
+                }
+                return emulator.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+            }
+
+            @Override
+            public boolean release() {
+                return emulator.release();
+            }
+        };
+    }
+
+    private void interruptedWrite() throws Exception {
+        FlashJournal journal = FlashJournal.open(directory, "board", image, BLOCK_SIZE);
+        FlashWriter writer = new FlashWriter(new DfuProtocol(droppingAfter(1 + 5)), BLOCK_SIZE);
+        writer.setJournal(journal);
+        try {
+            writer.write(image);
+            fail("link was dropped");
+        } catch (Exception expected) {
+        } finally {
+            journal.close();
+        }
+        emulator.reconnect();
+        // the fifth block was half programmed when the link went
+        emulator.writeMemory(DfuSeEmulator.FLASH_START + 4 * BLOCK_SIZE, new byte[]{0x12, 0x34});
+    }
+
+    @Test
+    public void resumesAtFirstUnconfirmedBlock() throws Exception {
+        interruptedWrite();
+
+        FlashJournal journal = FlashJournal.open(directory, "board", image, BLOCK_SIZE);
+        assertEquals(4, journal.getConfirmedCount());
+        DfuProtocol dfu = new DfuProtocol(emulator);
+        assertTrue(journal.prepareResume(dfu, image, layout));
+
+        emulator.resetCounters();
+        FlashWriter writer = new FlashWriter(dfu, BLOCK_SIZE);
+        writer.setJournal(journal);
+        assertEquals(4, writer.write(image));
+        assertEquals(4, writer.getBlocksSkipped());
+        assertEquals(1 + 4, emulator.getTransferCount(DfuProtocol.DFU_DNLOAD));
+        assertArrayEquals(data, emulator.readMemory(DfuSeEmulator.FLASH_START, data.length));
+        journal.delete();
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void mismatchingFlashStartsOver() throws Exception {
+        interruptedWrite();
+        emulator.writeMemory(DfuSeEmulator.FLASH_START + 3 * BLOCK_SIZE + 100, new byte[]{0, 0});
+
+        FlashJournal journal = FlashJournal.open(directory, "board", image, BLOCK_SIZE);
+        assertFalse(journal.prepareResume(new DfuProtocol(emulator), image, layout));
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void otherImageDiscardsJournal() throws Exception {
+        interruptedWrite();
+        data[0] ^= 1;
+        FlashJournal journal = FlashJournal.open(directory, "board", new ByteArrayImage(DfuSeEmulator.FLASH_START, data), BLOCK_SIZE);
+        assertTrue(journal.isEmpty());
+        journal.close();
+        journal = FlashJournal.open(directory, "board", image, 1024);
+        assertTrue(journal.isEmpty());
+        journal.delete();
+    }
+
+    @Test
+    public void blankConfirmedBlocksDoNotMatchAnErasedChip() throws Exception {
+        Arrays.fill(data, BLOCK_SIZE, data.length, (byte) 0xFF);
+        image = new ByteArrayImage(DfuSeEmulator.FLASH_START, data);
+        interruptedWrite();
+        byte[] erased = new byte[DfuSeEmulator.FLASH_SIZE];
+        Arrays.fill(erased, (byte) 0xFF);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, erased);
+
+        FlashJournal journal = FlashJournal.open(directory, "board", image, BLOCK_SIZE);
+        assertEquals(4, journal.getConfirmedCount());
+        assertFalse(journal.prepareResume(new DfuProtocol(emulator), image, layout));
+        journal.close();
+        FlashJournal.delete(directory, "board");
+        assertEquals(0, directory.listFiles().length);
+    }
+}
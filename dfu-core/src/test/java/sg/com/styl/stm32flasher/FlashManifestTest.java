@@ -0,0 +1,97 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlashManifestTest {
+
+    private static final int PAGE_SIZE = 1024;
+
+    private final DfuSeEmulator emulator = new DfuSeEmulator();
+    private File directory;
+    private byte[] data;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("manifest").toFile();
+        directory.deleteOnExit();
+        data = new byte[6 * PAGE_SIZE];
+        new Random(24).nextBytes(data);
+    }
+
+    private MemoryLayout layout() {
+        return emulator.getCapabilities().getLayout(0);
+    }
+
+    private DeltaFlasher program(byte[] image) throws Exception {
+        DeltaFlasher deltaFlasher = new DeltaFlasher(new DfuProtocol(emulator), layout(), 2048);
+        FlashManifest manifest = FlashManifest.open(directory, "SN 0001");
+        deltaFlasher.program(new ByteArrayImage(DfuSeEmulator.FLASH_START, image), manifest);
+        manifest.save();    // as after a passing verify
+        return deltaFlasher;
+    }
+
+    @Test
+    public void savedAndReopened() throws Exception {
+        FlashManifest manifest = FlashManifest.open(directory, "SN 0001");
+        assertTrue(manifest.isEmpty());
+        manifest.recordImage(new ByteArrayImage(DfuSeEmulator.FLASH_START + 100, new byte[PAGE_SIZE]), layout());
+        manifest.save();
+
+        FlashManifest reopened = FlashManifest.open(directory, "SN 0001");
+        assertEquals(2, reopened.getPageCount());
+        byte[] page = new byte[PAGE_SIZE];
+        Arrays.fill(page, 0, 100, (byte) 0xFF);
+        int crc = FlashManifest.pageCrc(new ByteArrayImage(DfuSeEmulator.FLASH_START, page), DfuSeEmulator.FLASH_START, PAGE_SIZE);
+        assertTrue(reopened.matches(DfuSeEmulator.FLASH_START, PAGE_SIZE, crc));
+        assertFalse(reopened.matches(DfuSeEmulator.FLASH_START, 2 * PAGE_SIZE, crc));    // a sector of another part
+        assertTrue(FlashManifest.open(directory, "SN 0002").isEmpty());
+    }
+
+    @Test
+    public void changedPagesComeFromTheManifest() throws Exception {
+        DeltaFlasher first = program(data);
+        assertFalse(first.isManifestUsed());
+        assertEquals(6, first.getPagesWritten());
+
+        data[2 * PAGE_SIZE + 3] ^= 1;
+        int uploads = emulator.getTransferCount(DfuProtocol.DFU_UPLOAD);
+        DeltaFlasher second = program(data);
+        assertTrue(second.isManifestUsed());
+        assertEquals(1, second.getPagesWritten());
+        assertEquals(2, emulator.getTransferCount(DfuProtocol.DFU_UPLOAD) - uploads);     // the sampled pages only
+        assertArrayEquals(data, emulator.readMemory(DfuSeEmulator.FLASH_START, data.length));
+    }
+
+    @Test
+    public void stalePageFallsBackToReadBack() throws Exception {
+        byte[] image = new byte[2 * PAGE_SIZE];
+        System.arraycopy(data, 0, image, 0, image.length);
+        program(image);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START + PAGE_SIZE + 8, new byte[]{0, 0});  // flashed behind our back
+
+        image[5] ^= 1;
+        DeltaFlasher deltaFlasher = program(image);
+        assertFalse(deltaFlasher.isManifestUsed());
+        assertEquals(2, deltaFlasher.getPagesWritten());
+        assertArrayEquals(image, emulator.readMemory(DfuSeEmulator.FLASH_START, image.length));
+        assertEquals(2, FlashManifest.open(directory, "SN 0001").getPageCount());
+    }
+
+    @Test
+    public void unverifiedProgramLeavesNoManifest() throws Exception {
+        program(data);
+        data[3] ^= 1;
+        new DeltaFlasher(new DfuProtocol(emulator), layout(), 2048).program(
+                new ByteArrayImage(DfuSeEmulator.FLASH_START, data), FlashManifest.open(directory, "SN 0001"));
+
+        assertTrue(FlashManifest.open(directory, "SN 0001").isEmpty());
+    }
+}
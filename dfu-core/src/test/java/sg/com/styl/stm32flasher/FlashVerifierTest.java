@@ -0,0 +1,41 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class FlashVerifierTest {
+
+    @Test
+    public void reportsFirstMismatch() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        byte[] image = new byte[5000];
+        new Random(5).nextBytes(image);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, image);
+
+        FlashVerifier verifier = new FlashVerifier(new DfuProtocol(emulator), 2048);
+        assertTrue(verifier.verify(new ByteArrayImage(DfuSeEmulator.FLASH_START, image)));
+        assertEquals(3, emulator.getTransferCount(DfuProtocol.DFU_UPLOAD));
+
+        image[4321] ^= 0x10;
+        assertFalse(verifier.verify(new ByteArrayImage(DfuSeEmulator.FLASH_START, image)));
+        assertEquals(DfuSeEmulator.FLASH_START + 4321, verifier.getFirstMismatch());
+    }
+
+    @Test
+    public void verifiesAgainstCrc() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        byte[] image = new byte[3000];
+        new Random(9).nextBytes(image);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, image);
+        CRC32 crc = new CRC32();
+        crc.update(image);
+
+        FlashVerifier verifier = new FlashVerifier(new DfuProtocol(emulator), 1024);
+        assertTrue(verifier.verifyCrc(DfuSeEmulator.FLASH_START, image.length, (int) crc.getValue()));
+        assertFalse(verifier.verifyCrc(DfuSeEmulator.FLASH_START, image.length, (int) crc.getValue() + 1));
+    }
+}
@@ -0,0 +1,67 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FlashWriterTest {
+
+    @Test
+    public void oneAddressPointerPerRegion() throws Exception {
+        byte[] first = new byte[3000], second = new byte[1500];
+        new Random(4).nextBytes(first);
+        new Random(5).nextBytes(second);
+        byte[] content = DfuSeReaderTest.buildDfuSe(new int[][]{{0x08000000, 0x08004000}},
+                new byte[][][]{{first, second}});
+        DfuSeReader reader = new DfuSeReader(new RandomAccessFile(DfuSeReaderTest.writeTemp(content), "r").getChannel());
+        reader.parse(new DfuFile());
+
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        DfuProtocol dfu = new DfuProtocol(emulator);
+        FlashWriter writer = new FlashWriter(dfu, 1024);
+        assertEquals(3 + 2, writer.write(reader));
+        // two address pointers and five blocks, nothing written across the gap
+        assertEquals(2 + 5, emulator.getTransferCount(DfuProtocol.DFU_DNLOAD));
+        assertArrayEquals(first, emulator.readMemory(0x08000000, first.length));
+        assertArrayEquals(second, emulator.readMemory(0x08004000, second.length));
+        assertEquals((byte) 0xFF, emulator.readMemory(0x08000000 + 3072, 1)[0]);
+
+        assertTrue(new FlashVerifier(dfu, 1024).verify(reader));
+        reader.close();
+    }
+
+    @Test
+    public void blankBlocksAreSkipped() throws Exception {
+        byte[] data = new byte[8 * 1024 + 10];
+        new Random(17).nextBytes(data);
+        Arrays.fill(data, 2048, 6144, (byte) 0xFF);     // blocks 2..5 are padding
+        data[5000] = 0;                                             // except block 4
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        FlashWriter writer = new FlashWriter(new DfuProtocol(emulator), 1024);
+        writer.setSkipBlank(true);
+
+        assertEquals(9 - 3, writer.write(new ByteArrayImage(DfuSeEmulator.FLASH_START, data)));
+        assertEquals(3, writer.getBlocksSkipped());
+        assertArrayEquals(data, emulator.readMemory(DfuSeEmulator.FLASH_START, data.length));
+        // blocks 0, 1, 4, 6, 7, 8 and an address pointer before 0, 4 and 6
+        assertEquals(6 + 3, emulator.getTransferCount(DfuProtocol.DFU_DNLOAD));
+    }
+
+    @Test
+    public void blankScanChecksEveryByte() {
+        byte[] block = new byte[1027];
+        Arrays.fill(block, (byte) 0xFF);
+        assertTrue(FlashWriter.isBlank(block, block.length));
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) 0xFE;
+            assertFalse(FlashWriter.isBlank(block, block.length));
+            block[i] = (byte) 0xFF;
+        }
+        block[1026] = 0;
+        assertTrue(FlashWriter.isBlank(block, 1026));
+    }
+}
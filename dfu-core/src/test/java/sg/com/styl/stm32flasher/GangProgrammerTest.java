@@ -0,0 +1,117 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GangProgrammerTest {
+
+    @Test
+    public void programsAllBoardsInParallel() throws Exception {
+        byte[] data = new byte[8192];
+        new Random(8).nextBytes(data);
+        FirmwareImage image = new ByteArrayImage(DfuSeEmulator.FLASH_START, data);
+
+        Map<String, DfuTransport> devices = new LinkedHashMap<>();
+        DfuSeEmulator[] boards = new DfuSeEmulator[4];
+        for (int i = 0; i < boards.length; i++) {
+            boards[i] = new DfuSeEmulator();
+            boards[i].writeMemory(DfuSeEmulator.FLASH_START, new byte[]{0, 0});    // left over from a previous run
+            devices.put("board" + i, boards[i]);
+        }
+        boards[2].setReadProtected(true);
+
+        GangProgrammer programmer = new GangProgrammer(new FlashJobScheduler(), image, 2048);
+        programmer.setMassErase(true);
+        programmer.setVerify(true);
+        // every good board holds its first block until the others have written theirs too,
+        // which only works out when the sessions run side by side
+        final CountDownLatch firstBlocks = new CountDownLatch(3);
+        final AtomicInteger waitedOut = new AtomicInteger();
+        programmer.setListener(new GangProgrammer.Listener() {
+            @Override
+            public void onProgress(String device, int blocksDone, int blocksTotal) {
+                if (blocksDone != 1) {
+                    return;
+                }
+                firstBlocks.countDown();
+                try {
+                    if (!firstBlocks.await(5, TimeUnit.SECONDS)) {
+                        waitedOut.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    waitedOut.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onFinished(GangProgrammer.Result result) {
+            }
+        });
+
+        List<GangProgrammer.Result> results = programmer.program(devices);
+
+        assertEquals(0, firstBlocks.getCount());
+        assertEquals(0, waitedOut.get());
+        assertEquals(4, results.size());
+        for (int i = 0; i < boards.length; i++) {
+            assertEquals("board" + i, results.get(i).getDevice());
+            if (i == 2) {
+                assertFalse(results.get(i).isSuccess());
+            } else {
+                assertTrue(results.get(i).toString(), results.get(i).isSuccess());
+                assertArrayEquals(data, boards[i].readMemory(DfuSeEmulator.FLASH_START, data.length));
+            }
+        }
+    }
+
+    @Test
+    public void interruptedGangWaitsForTheBoardsToStop() throws Exception {
+        byte[] data = new byte[DfuSeEmulator.FLASH_SIZE];
+        new Random(9).nextBytes(data);
+        FirmwareImage image = new ByteArrayImage(DfuSeEmulator.FLASH_START, data);
+        Map<String, DfuTransport> devices = new LinkedHashMap<>();
+        DfuSeEmulator[] boards = new DfuSeEmulator[2];
+        for (int i = 0; i < boards.length; i++) {
+            boards[i] = new DfuSeEmulator();
+            boards[i].setRealTime(true);
+            devices.put("board" + i, boards[i]);
+        }
+
+        GangProgrammer programmer = new GangProgrammer(new FlashJobScheduler(), image, 2048);
+        final Thread caller = Thread.currentThread();
+        programmer.setListener(new GangProgrammer.Listener() {
+            @Override
+            public void onProgress(String device, int blocksDone, int blocksTotal) {
+                if (blocksDone == 2) {
+                    caller.interrupt();
+                }
+            }
+
+            @Override
+            public void onFinished(GangProgrammer.Result result) {
+            }
+        });
+
+        List<GangProgrammer.Result> results = programmer.program(devices);
+
+        assertTrue(Thread.interrupted());
+        assertEquals(2, results.size());
+        for (int i = 0; i < boards.length; i++) {
+            assertTrue(results.get(i).toString(), results.get(i).isCancelled());
+            // stopped and back in dfuIDLE before program() returned
+            boards[i].setRealTime(false);
+            DfuStatus status = new DfuStatus();
+            new DfuProtocol(boards[i]).getStatus(status);
+            assertEquals(DfuProtocol.STATE_DFU_IDLE, status.bState);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class IntelHexReaderTest {
+
+    static String record(int type, int address, byte[] data) {
+        StringBuilder line = new StringBuilder(":");
+        int sum = data.length + (address >> 8) + (address & 0xFF) + type;
+        line.append(String.format("%02X%04X%02X", data.length, address, type));
+        for (byte b : data) {
+            line.append(String.format("%02X", b & 0xFF));
+            sum += b & 0xFF;
+        }
+        return line.append(String.format("%02X", -sum & 0xFF)).append("\r\n").toString();
+    }
+
+    private static FirmwareReader open(String hex) throws Exception {
+        return FirmwareReaders.open(new RandomAccessFile(DfuSeReaderTest.writeTemp(hex.getBytes("US-ASCII")), "r").getChannel(), 0);
+    }
+
+    @Test
+    public void mergesAdjacentRecordsAndKeepsGaps() throws Exception {
+        byte[] data = new byte[16];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        String hex = record(4, 0, new byte[]{0x08, 0x00})
+                + record(0, 0x0000, data) + record(0, 0x0010, data)
+                + record(0, 0x1000, data)
+                + record(5, 0, new byte[]{0x08, 0x00, 0x01, 0x01})
+                + record(1, 0, new byte[0]);
+        FirmwareReader reader = open(hex);
+        assertTrue(reader instanceof IntelHexReader);
+        DfuFile dfuFile = new DfuFile();
+        reader.parse(dfuFile);
+
+        assertEquals(2, dfuFile.NumElements);
+        assertEquals(0x08000000, reader.getAddress());
+        assertEquals(0x1010, reader.getLength());
+        assertEquals(2, reader.getRegions().size());
+        assertEquals(32, reader.getRegions().get(0).getLength());
+        assertEquals(FirmwareReader.ANY_ID, dfuFile.VID);
+
+        byte[] block = new byte[48];
+        reader.read(0x08000000, block, 0, block.length);
+        assertEquals(15, block[31]);
+        assertEquals((byte) 0xFF, block[32]);
+        reader.close();
+    }
+
+    @Test(expected = FirmwareFormatException.class)
+    public void rejectsBadChecksum() throws Exception {
+        String hex = record(0, 0, new byte[]{1, 2, 3, 4});
+        hex = hex.substring(0, 9) + "FF" + hex.substring(11) + record(1, 0, new byte[0]);
+        open(hex).parse(new DfuFile());
+    }
+}
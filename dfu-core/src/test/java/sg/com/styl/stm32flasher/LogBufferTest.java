@@ -0,0 +1,23 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogBufferTest {
+
+    @Test
+    public void keepsTheLastLines() {
+        LogBuffer buffer = new LogBuffer(3);
+        buffer.add("a");
+        buffer.add("b\nc\nd");
+        assertEquals(3, buffer.size());
+        assertEquals("b\nc\nd\n", buffer.toString());
+
+        buffer.add("e\n");
+        assertEquals("c", buffer.get(0));
+        assertEquals("e", buffer.get(2));
+        buffer.clear();
+        assertEquals("", buffer.toString());
+    }
+}
@@ -0,0 +1,83 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MemoryLayoutTest {
+
+    @Test
+    public void parsesSectorGroups() throws Exception {
+        MemoryLayout f042 = MemoryLayout.parse("@Internal Flash  /0x08000000/032*0001Kg");
+        assertEquals("Internal Flash", f042.getName());
+        assertEquals(32, f042.getSectors().size());
+        assertEquals(32768, f042.getSize());
+        assertEquals(0x08007C00, f042.sectorAt(0x08007FFF).getAddress());
+        assertNull(f042.sectorAt(0x08008000));
+
+        MemoryLayout f4 = MemoryLayout.parse("@Internal Flash  /0x08000000/04*016Kg,01*064Kg,07*128Kg");
+        assertEquals(12, f4.getSectors().size());
+        assertEquals(1024 * 1024, f4.getSize());
+        assertEquals(0x08010000, f4.getSectors().get(4).getAddress());
+        assertEquals(65536, f4.getSectors().get(4).getSize());
+
+        MemoryLayout options = MemoryLayout.parse("@Option Bytes  /0x1FFFF800/01*016 e\0");
+        MemoryLayout.Sector sector = options.getSectors().get(0);
+        assertEquals(16, sector.getSize());
+        assertTrue(sector.isReadable());
+        assertFalse(sector.isErasable());
+        assertTrue(sector.isWriteable());
+
+        MemoryLayout twoSegments = MemoryLayout.parse("@Device Feature/0xFFFF0000/01*004 e/0x1FFF7800/01*512 a");
+        assertEquals(2, twoSegments.getSectors().size());
+        assertFalse(twoSegments.canWrite(new ImageRegion(0x1FFF7800, 4)));
+        assertTrue(twoSegments.canWrite(new ImageRegion(0xFFFF0000, 4)));
+        assertFalse(twoSegments.canWrite(new ImageRegion(0xFFFF0000, 5)));
+    }
+
+    @Test
+    public void rejectsMalformedLayouts() {
+        for (String layout : new String[]{"Internal Flash/0x08000000/032*0001Kg", "@Flash/0x08000000",
+                "@Flash/0x0800000G/032*0001Kg", "@Flash/0x08000000/032*0001Kz", "@Flash/0x08000000/32x1Kg"}) {
+            try {
+                MemoryLayout.parse(layout);
+                fail(layout);
+            } catch (FirmwareFormatException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void sectorEraseOnlyTouchesTheImage() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        byte[] descriptor = new byte[255];
+        int length = emulator.controlTransfer(0x80, 0x06, 0x0304, 0, descriptor, descriptor.length, 500);
+        MemoryLayout layout = MemoryLayout.parse(new String(descriptor, 2, length - 2, Charset.forName("UTF-16LE")));
+
+        byte[] old = new byte[DfuSeEmulator.FLASH_SIZE];
+        Arrays.fill(old, (byte) 0x11);
+        emulator.writeMemory(DfuSeEmulator.FLASH_START, old);
+        byte[] data = new byte[6 * 1024 - 100];
+        new Random(16).nextBytes(data);
+        FirmwareImage image = new ByteArrayImage(DfuSeEmulator.FLASH_START, data);
+        List<MemoryLayout.Sector> sectors = layout.sectorsFor(image.getRegions());
+        assertEquals(6, sectors.size());
+
+        DfuProtocol dfu = new DfuProtocol(emulator);
+        emulator.resetCounters();
+        assertEquals(6, new SectorEraser(dfu).erase(layout, image));
+        long sectorEraseNanos = emulator.getSimulatedNanos();
+        new FlashWriter(dfu, 2048).write(image);
+        assertArrayEquals(data, emulator.readMemory(DfuSeEmulator.FLASH_START, data.length));
+        // the rest of the part is untouched
+        assertEquals(0x11, emulator.readMemory(DfuSeEmulator.FLASH_START + 6 * 1024, 1)[0]);
+        // 6 page erases, set address, 3 blocks
+        assertEquals(6 + 1 + 3, emulator.getTransferCount(DfuProtocol.DFU_DNLOAD));
+        assertTrue(sectorEraseNanos > 0);
+    }
+}
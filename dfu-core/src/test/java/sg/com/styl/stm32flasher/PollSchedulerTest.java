@@ -0,0 +1,55 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PollSchedulerTest {
+
+    @Test
+    public void blockWritesPollOnceAfterTheWait() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        DfuProtocol dfu = new DfuProtocol(emulator);
+        DfuDownloader downloader = new DfuDownloader(dfu);
+        byte[] block = new byte[2048];
+        for (int i = 0; i < 16; i++) {
+            downloader.writeBlock(DfuSeEmulator.FLASH_START + i * block.length, block);
+        }
+        PollScheduler scheduler = dfu.getPollScheduler();
+        assertEquals(0, scheduler.getEarlyPolls());
+        // initial GETSTATUS, then two per request: set address and 16 blocks
+        assertEquals(1 + 2 * 17, emulator.getTransferCount(DfuProtocol.DFU_GETSTATUS));
+        // 62 ms asked for, the emulator always finishes in the typical time
+        assertTrue(scheduler.waitNanos(62) < 62000000L);
+        assertTrue(scheduler.waitNanos(62) >= 31000000L);
+    }
+
+    @Test
+    public void waitGrowsBackWhenDeviceIsStillBusy() {
+        PollScheduler scheduler = new PollScheduler();
+        for (int i = 0; i < 40; i++) {
+            scheduler.record(10, false);
+        }
+        assertEquals(5000000L, scheduler.waitNanos(10));
+        scheduler.record(10, true);
+        scheduler.record(10, true);
+        scheduler.record(10, true);
+        scheduler.record(10, true);
+        assertEquals(10000000L, scheduler.waitNanos(10));
+        assertEquals(4, scheduler.getEarlyPolls());
+        assertEquals(1000000L, scheduler.waitNanos(1));    // learned per poll timeout
+    }
+
+    @Test
+    public void interruptDoesNotCutTheWaitShort() throws Exception {
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        emulator.setRealTime(true);
+        DfuDownloader downloader = new DfuDownloader(new DfuProtocol(emulator));
+        Thread.currentThread().interrupt();
+        long start = System.nanoTime();
+        downloader.massErase();         // 25 ms busy, 40 ms bwPollTimeout
+        long elapsed = System.nanoTime() - start;
+        assertTrue(Thread.interrupted());
+        assertTrue(elapsed >= 40000000L);
+    }
+}
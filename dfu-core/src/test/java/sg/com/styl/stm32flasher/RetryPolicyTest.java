@@ -0,0 +1,167 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    // fails the first `failures` transfers, either at once or after sleeping through the timeout;
+    // with delivered the device gets the request and only the reply is lost
+    private static class FlakyTransport extends DfuSeEmulator {
+        int failures;
+        boolean slow;
+        boolean delivered;
+        int attempts;
+        int downloads;
+
+        @Override
+        public synchronized int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+            attempts++;
+            if (request == DfuProtocol.DFU_DNLOAD) {
+                downloads++;
+            }
+            if (failures > 0) {
+                failures--;
+                if (delivered) {
+                    super.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+                }
+                if (slow) {
+                    try {
+                        Thread.sleep(timeout);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return -1;
+            }
+            return super.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+        }
+    }
+
+    @Test
+    public void statusIsRetriedAfterStall() throws Exception {
+        FlakyTransport usb = new FlakyTransport();
+        usb.failures = 2;
+        RetryPolicy policy = new RetryPolicy(5, 1, 4, 1000);
+        DfuStatus status = new DfuStatus();
+        new DfuProtocol(usb, policy).getStatus(status);
+        assertEquals(DfuProtocol.STATE_DFU_IDLE, status.bState);
+        assertEquals(3, usb.attempts);
+        assertEquals(2, policy.getRetries(RetryPolicy.Cause.STALL));
+    }
+
+    @Test
+    public void stalledDownloadIsNotRepeated() throws Exception {
+        FlakyTransport usb = new FlakyTransport();
+        usb.failures = 1;
+        RetryPolicy policy = new RetryPolicy(5, 1, 4, 1000);
+        try {
+            new DfuProtocol(usb, policy).setAddressPointer(DfuSeEmulator.FLASH_START);
+            fail("stall must be reported");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("STALL"));
+        }
+        assertEquals(1, usb.attempts);
+        assertEquals(1, policy.getFailures(RetryPolicy.Cause.STALL));
+    }
+
+    @Test
+    public void downloadIsRetriedAfterTimeout() throws Exception {
+        FlakyTransport usb = new FlakyTransport();
+        usb.failures = 1;
+        usb.slow = true;
+        RetryPolicy policy = new RetryPolicy(3, 1, 4, 5000);
+        new DfuProtocol(usb, policy).massEraseCommand();
+        assertEquals(3, usb.attempts);      // GETSTATUS showed dfuIDLE in between
+        assertEquals(2, usb.downloads);
+        assertEquals(1, policy.getRetries(RetryPolicy.Cause.TIMEOUT));
+    }
+
+    @Test
+    public void downloadThatArrivedIsNotRepeated() throws Exception {
+        FlakyTransport usb = new FlakyTransport();
+        usb.failures = 1;
+        usb.slow = true;
+        usb.delivered = true;
+        RetryPolicy policy = new RetryPolicy(3, 1, 4, 5000);
+        try {
+            new DfuProtocol(usb, policy).download(new byte[2048], 2);
+            fail("a block that may be written already must not be sent again");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("not sent again"));
+        }
+        assertEquals(1, usb.downloads);
+        assertEquals(1, policy.getFailures(RetryPolicy.Cause.TIMEOUT));
+    }
+
+    @Test
+    public void interruptDoesNotCutTheBackoffShort() throws Exception {
+        FlakyTransport usb = new FlakyTransport();
+        usb.failures = 2;
+        RetryPolicy policy = new RetryPolicy(5, 1, 4, 1000);
+        DfuStatus status = new DfuStatus();
+        Thread.currentThread().interrupt();
+        new DfuProtocol(usb, policy).getStatus(status);
+        assertTrue(Thread.interrupted());   // left for DfuDownloader.checkCancelled
+        assertEquals(DfuProtocol.STATE_DFU_IDLE, status.bState);
+        assertEquals(3, usb.attempts);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        FlakyTransport usb = new FlakyTransport();
+        usb.failures = 10;
+        RetryPolicy policy = new RetryPolicy(3, 1, 4, 1000);
+        try {
+            new DfuProtocol(usb, policy).getStatus(new DfuStatus());
+            fail("must give up");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("3 attempts"));
+        }
+        assertEquals(3, usb.attempts);
+    }
+
+    @Test
+    public void disconnectedIsNotRetried() throws Exception {
+        DfuSeEmulator usb = new DfuSeEmulator();
+        usb.release();
+        RetryPolicy policy = new RetryPolicy();
+        try {
+            new DfuProtocol(usb, policy).getStatus(new DfuStatus());
+            fail("must fail");
+        } catch (Exception e) {
+            assertEquals(1, policy.getFailures(RetryPolicy.Cause.DISCONNECTED));
+        }
+    }
+
+    @Test
+    public void backoffGrowsAndStaysWithinCap() {
+        RetryPolicy policy = new RetryPolicy(10, 10, 100, 1000);
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            long expected = Math.min(100, 10L << (attempt - 1));
+            long delay = policy.backoff(attempt);
+            assertTrue(delay >= expected / 2 && delay <= expected);
+        }
+    }
+
+    @Test
+    public void clearToIdleIsBounded() throws Exception {
+        DfuProtocol dfu = new DfuProtocol(new DfuSeEmulator() {
+            @Override
+            public synchronized int controlTransfer(int requestType, int request, int value, int index, byte[] buffer, int length, int timeout) {
+                int result = super.controlTransfer(requestType, request, value, index, buffer, length, timeout);
+                if (request == DfuProtocol.DFU_GETSTATUS) {
+                    buffer[4] = DfuProtocol.STATE_DFU_ERROR;    // never leaves dfuERROR
+                }
+                return result;
+            }
+        });
+        try {
+            dfu.clearToIdle(new DfuStatus());
+            fail("must not spin forever");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().startsWith("Device not idle"));
+        }
+    }
+}
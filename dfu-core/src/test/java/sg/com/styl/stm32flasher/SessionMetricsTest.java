@@ -0,0 +1,53 @@
+package sg.com.styl.stm32flasher;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SessionMetricsTest {
+
+    @Test
+    public void histogramBucketsArePowersOfTwo() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(300000);       // 300 us -> [256, 512)
+        }
+        histogram.record(5000000);          // 5 ms -> [4096, 8192)
+        assertEquals(100, histogram.getCount());
+        assertEquals(99, histogram.getBucketCount(9));
+        assertEquals(512, histogram.percentileMicros(0.5));
+        assertEquals(512, histogram.percentileMicros(0.99));
+        assertEquals(8192, histogram.percentileMicros(1.0));
+        assertEquals(5000000, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void meteredTransportCountsTransfersAndPolls() throws Exception {
+        SessionMetrics metrics = new SessionMetrics();
+        DfuSeEmulator emulator = new DfuSeEmulator();
+        DfuProtocol dfu = new DfuProtocol(new MeteredTransport(emulator, metrics));
+
+        byte[] data = new byte[4096];
+        new Random(13).nextBytes(data);
+        new FlashWriter(dfu, 2048).write(new ByteArrayImage(DfuSeEmulator.FLASH_START, data));
+
+        assertEquals(emulator.getTransferCount(DfuProtocol.DFU_DNLOAD), metrics.transfer(DfuProtocol.DFU_DNLOAD).getCount());
+        assertEquals(emulator.getTransferCount(DfuProtocol.DFU_GETSTATUS), metrics.transfer(DfuProtocol.DFU_GETSTATUS).getCount());
+        // set address + 2 blocks
+        assertEquals(3, metrics.getBusyPolls());
+        assertTrue(metrics.getPollTimeoutMillis() > 0);
+        assertEquals(0, metrics.getFailedTransfers());
+
+        emulator.release();
+        try {
+            dfu.clearStatus();
+            fail("released device must fail");
+        } catch (Exception expected) {
+        }
+        assertEquals(1, metrics.getFailedTransfers());
+        String summary = metrics.summary();
+        assertTrue(summary, summary.contains("DNLOAD: n=" + metrics.transfer(DfuProtocol.DFU_DNLOAD).getCount()));
+    }
+}